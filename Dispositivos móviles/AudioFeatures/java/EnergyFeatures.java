@@ -0,0 +1,78 @@
+package com.example.laura.audio;
+
+/**
+ * Medidas de energía de una trama, sin crear objetos: energía media, en dB respecto al fondo de escala
+ * del PCM de 16 bits, tasa de cruces por cero (alta en ruido y fricativas, baja en vocales) y flujo
+ * espectral entre dos espectros de potencia (cambios bruscos: golpes, comienzos de nota o de palabra).
+ */
+public final class EnergyFeatures {
+
+    //Energía media mínima, para que el silencio digital no dé -infinito (unos -100 dB)
+    private static final float MIN_ENERGY = 1e-3f;
+    private static final float FULL_SCALE = 32768f * 32768f;
+
+    private EnergyFeatures() {
+    }
+
+    /**
+     * Energía media (media de los cuadrados) de pcm[offset .. offset+n)
+     */
+    public static float meanEnergy(short[] pcm, int offset, int n) {
+        float s = 0;
+        for (int i = 0; i < n; ++i) {
+            float x = pcm[offset + i];
+            s += x * x;
+        }
+        return s / n;
+    }
+
+    public static float meanEnergy(float[] samples, int offset, int n) {
+        float s = 0;
+        for (int i = 0; i < n; ++i) {
+            float x = samples[offset + i];
+            s += x * x;
+        }
+        return s / n;
+    }
+
+    /**
+     * Energía media en dB respecto a una señal de amplitud máxima (0 dB), para PCM de 16 bits
+     */
+    public static float energyDb(short[] pcm, int offset, int n) {
+        return toDb(meanEnergy(pcm, offset, n));
+    }
+
+    /**
+     * Energía media en dB respecto a una señal de amplitud máxima, para muestras en la escala del PCM
+     * de 16 bits (-32768 a 32767)
+     */
+    public static float energyDb(float[] samples, int offset, int n) {
+        return toDb(meanEnergy(samples, offset, n));
+    }
+
+    /**
+     * Fracción de pares de muestras consecutivas que cambian de signo
+     */
+    public static float zeroCrossingRate(short[] pcm, int offset, int n) {
+        int crossings = 0;
+        for (int i = 1; i < n; ++i)
+            crossings += (pcm[offset + i - 1] ^ pcm[offset + i]) >>> 31;
+        return n > 1 ? (float) crossings / (n - 1) : 0;
+    }
+
+    /**
+     * Suma de los aumentos de potencia de cada contenedor entre el espectro anterior y el actual
+     */
+    public static float spectralFlux(float[] previous, float[] current, int bins) {
+        float s = 0;
+        for (int k = 0; k < bins; ++k) {
+            float d = current[k] - previous[k];
+            s += d > 0 ? d : 0;
+        }
+        return s;
+    }
+
+    private static float toDb(float meanEnergy) {
+        return (float) (10 * Math.log10((meanEnergy > MIN_ENERGY ? meanEnergy : MIN_ENERGY) / FULL_SCALE));
+    }
+}
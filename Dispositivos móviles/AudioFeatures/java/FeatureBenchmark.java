@@ -0,0 +1,138 @@
+package com.example.laura.audio;
+
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Mide cuántas tramas por segundo se procesan con RealFft, Mfcc y EnergyFeatures y cuántos bytes se
+ * reservan en total durante la medida, una vez calentado el JIT (debe ser 0). Se ejecuta en el
+ * ordenador con
+ *
+ *   java com.example.laura.audio.FeatureBenchmark [segundos por prueba]
+ *
+ * La memoria reservada se mide con com.sun.management.ThreadMXBean si la máquina virtual lo tiene; se
+ * busca por reflexión porque esta librería se compila con la aplicación contra android.jar, que no
+ * tiene java.lang.management.
+ */
+public final class FeatureBenchmark {
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int HOP = 160;
+    private static final int WARMUP_FRAMES = 200000;
+
+    //ThreadMXBean y su getThreadAllocatedBytes(long), o null si no se puede medir la memoria
+    private static Object threads;
+    private static Method allocated;
+    //Bytes que reserva la propia medida (la llamada por reflexión), que se restan
+    private static long overhead;
+
+    static {
+        try {
+            Object bean = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+            Class<?> sun = Class.forName("com.sun.management.ThreadMXBean");
+            if (sun.isInstance(bean) && (Boolean) sun.getMethod("isThreadAllocatedMemorySupported").invoke(bean)) {
+                sun.getMethod("setThreadAllocatedMemoryEnabled", boolean.class).invoke(bean, true);
+                allocated = sun.getMethod("getThreadAllocatedBytes", long.class);
+                threads = bean;
+                for (int i = 0; i < 1000; ++i)
+                    overhead = -allocatedBytes() + allocatedBytes();
+            }
+        } catch (Exception e) {
+            //Android y otras máquinas virtuales: no se mide la memoria
+            allocated = null;
+        }
+    }
+
+    //Resultado acumulado para que el JIT no elimine los cálculos
+    private static float sink;
+
+    private interface Task {
+        void frame(int i);
+    }
+
+    public static void main(String[] args) {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 2.0;
+
+        //Un segundo de "voz" sintética: armónicos con frecuencia variable y algo de ruido
+        final short[] pcm = new short[SAMPLE_RATE + 512];
+        Random random = new Random(42);
+        double phase = 0;
+        for (int i = 0; i < pcm.length; ++i) {
+            double f = 150 + 100 * Math.sin(2 * Math.PI * i / SAMPLE_RATE);
+            phase += 2 * Math.PI * f / SAMPLE_RATE;
+            double x = 6000 * Math.sin(phase) + 3000 * Math.sin(3 * phase) + 1000 * Math.sin(7 * phase)
+                    + 300 * random.nextGaussian();
+            pcm[i] = (short) Math.max(-32768, Math.min(32767, x));
+        }
+        final float[] samples = new float[pcm.length];
+        for (int i = 0; i < pcm.length; ++i)
+            samples[i] = pcm[i];
+        final int frames = (SAMPLE_RATE - 400) / HOP;
+
+        final RealFft fft = new RealFft(512);
+        final float[] power = new float[fft.bins()];
+        final Mfcc mfcc = Mfcc.speech16k();
+        final float[] out = new float[mfcc.coefficients()];
+
+        System.out.println(String.format(Locale.US, "%-28s %14s %12s %14s", "task", "frames/s", "ns/frame", "bytes"));
+        run("RealFft 512 power", seconds, new Task() {
+            public void frame(int i) {
+                fft.powerSpectrum(samples, (i % frames) * HOP, power);
+                sink += power[10];
+            }
+        });
+        run("Mfcc 16k (short)", seconds, new Task() {
+            public void frame(int i) {
+                mfcc.compute(pcm, (i % frames) * HOP, out, 0);
+                sink += out[1];
+            }
+        });
+        run("Mfcc 16k (float)", seconds, new Task() {
+            public void frame(int i) {
+                mfcc.compute(samples, (i % frames) * HOP, out, 0);
+                sink += out[1];
+            }
+        });
+        run("Energy dB + ZCR", seconds, new Task() {
+            public void frame(int i) {
+                int offset = (i % frames) * HOP;
+                sink += EnergyFeatures.energyDb(pcm, offset, 400) + EnergyFeatures.zeroCrossingRate(pcm, offset, 400);
+            }
+        });
+        System.out.println("(" + sink + ")");
+    }
+
+    private static void run(String name, double seconds, Task task) {
+        for (int i = 0; i < WARMUP_FRAMES; ++i)
+            task.frame(i);
+
+        long before = allocatedBytes();
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        long start = System.nanoTime();
+        int n = 0;
+        //Se mira el reloj cada 1024 tramas para que no cuente en la medida
+        do {
+            for (int i = 0; i < 1024; ++i)
+                task.frame(n++);
+        } while (System.nanoTime() < deadline);
+        long elapsed = System.nanoTime() - start;
+        long after = allocatedBytes();
+
+        String allocation = before < 0 || after < 0 ? "n/a"
+                : Long.toString(Math.max(0, after - before - overhead));
+        System.out.println(String.format(Locale.US, "%-28s %14.0f %12.1f %14s", name,
+                n / (elapsed / 1e9), (double) elapsed / n, allocation));
+    }
+
+    //Bytes reservados por este hilo, o -1 si la máquina virtual no lo permite medir
+    private static long allocatedBytes() {
+        if (allocated == null)
+            return -1;
+        try {
+            return (Long) allocated.invoke(threads, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+}
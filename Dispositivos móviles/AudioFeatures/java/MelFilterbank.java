@@ -0,0 +1,100 @@
+package com.example.laura.audio;
+
+/**
+ * Banco de filtros triangulares equiespaciados en la escala mel sobre un espectro de potencia. Cada
+ * filtro solo guarda los pesos de los contenedores donde no es cero, y los de todos los filtros están
+ * seguidos en un único array, así que aplicar el banco es una suma de productos contigua por filtro.
+ */
+public final class MelFilterbank {
+
+    private final int filters;
+    private final int bins;
+    //Primer contenedor, posición en weights y número de pesos de cada filtro
+    private final int[] firstBin;
+    private final int[] offset;
+    private final int[] length;
+    private final float[] weights;
+
+    /**
+     * @param sampleRate frecuencia de muestreo en Hz
+     * @param fftSize tamaño de la FFT (el espectro tiene fftSize/2 + 1 contenedores)
+     * @param filters número de filtros
+     * @param lowHz frecuencia del borde inferior del primer filtro
+     * @param highHz frecuencia del borde superior del último filtro (como mucho sampleRate/2)
+     */
+    public MelFilterbank(int sampleRate, int fftSize, int filters, float lowHz, float highHz) {
+        if (filters < 1 || lowHz < 0 || highHz <= lowHz || highHz > sampleRate / 2f)
+            throw new IllegalArgumentException("Invalid mel filterbank parameters");
+        this.filters = filters;
+        this.bins = fftSize / 2 + 1;
+        firstBin = new int[filters];
+        offset = new int[filters];
+        length = new int[filters];
+
+        //Bordes de los filtros, en contenedores de la FFT (con decimales)
+        double melLow = toMel(lowHz), melHigh = toMel(highHz);
+        double[] edges = new double[filters + 2];
+        for (int m = 0; m < edges.length; ++m)
+            edges[m] = toHz(melLow + (melHigh - melLow) * m / (filters + 1)) * fftSize / sampleRate;
+
+        int total = 0;
+        for (int m = 0; m < filters; ++m) {
+            int first = (int) Math.ceil(edges[m]);
+            int last = Math.min(bins - 1, (int) Math.floor(edges[m + 2]));
+            firstBin[m] = first;
+            offset[m] = total;
+            length[m] = Math.max(0, last - first + 1);
+            total += length[m];
+        }
+        weights = new float[total];
+        for (int m = 0; m < filters; ++m) {
+            for (int i = 0; i < length[m]; ++i) {
+                int b = firstBin[m] + i;
+                double w = b <= edges[m + 1] ? (b - edges[m]) / (edges[m + 1] - edges[m])
+                        : (edges[m + 2] - b) / (edges[m + 2] - edges[m + 1]);
+                weights[offset[m] + i] = (float) Math.max(0, w);
+            }
+        }
+    }
+
+    public int filters() {
+        return filters;
+    }
+
+    public int bins() {
+        return bins;
+    }
+
+    /**
+     * Energía de cada filtro: out[outOffset + m] = suma de los pesos del filtro m por power
+     */
+    public void apply(float[] power, float[] out, int outOffset) {
+        for (int m = 0; m < filters; ++m)
+            out[outOffset + m] = dot(weights, offset[m], power, firstBin[m], length[m]);
+    }
+
+    /**
+     * Como apply, pero con el logaritmo natural de cada energía (las menores que floor cuentan como floor)
+     */
+    public void applyLog(float[] power, float[] out, int outOffset, float floor) {
+        for (int m = 0; m < filters; ++m) {
+            float e = dot(weights, offset[m], power, firstBin[m], length[m]);
+            out[outOffset + m] = (float) Math.log(e > floor ? e : floor);
+        }
+    }
+
+    private static float dot(float[] a, int i, float[] b, int j, int n) {
+        float s = 0;
+        for (int k = 0; k < n; ++k)
+            s += a[i + k] * b[j + k];
+        return s;
+    }
+
+    public static double toMel(double hz) {
+        return 2595 * Math.log10(1 + hz / 700);
+    }
+
+    public static double toHz(double mel) {
+        return 700 * (Math.pow(10, mel / 2595) - 1);
+    }
+}
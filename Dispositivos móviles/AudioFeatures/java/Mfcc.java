@@ -0,0 +1,109 @@
+package com.example.laura.audio;
+
+/**
+ * Coeficientes cepstrales en escala mel (MFCC) de tramas de audio: preénfasis, ventana de Hamming,
+ * espectro de potencia con {@link RealFft}, banco de filtros mel ({@link MelFilterbank}), logaritmo y
+ * DCT-II ortonormal. La ventana y la DCT se precalculan, y los arrays intermedios son del objeto, así
+ * que calcular una trama no crea objetos. Las tramas pueden ser PCM de 16 bits o float.
+ *
+ * No es segura entre hilos: cada hilo debe tener la suya.
+ */
+public final class Mfcc {
+
+    private static final float PREEMPHASIS = 0.97f;
+    private static final float LOG_FLOOR = 1e-10f;
+
+    private final int frameLength;
+    private final int coefficients;
+    private final int filters;
+    private final RealFft fft;
+    private final MelFilterbank filterbank;
+    private final float[] window;
+    //DCT por filas: dct[c * filters + m]
+    private final float[] dct;
+
+    private final float[] buffer;
+    private final float[] power;
+    private final float[] logMel;
+
+    /**
+     * @param sampleRate frecuencia de muestreo en Hz
+     * @param frameLength muestras por trama
+     * @param fftSize tamaño de la FFT, potencia de dos y al menos frameLength (la trama se rellena con ceros)
+     * @param filters número de filtros mel
+     * @param coefficients número de coeficientes (como mucho filters)
+     */
+    public Mfcc(int sampleRate, int frameLength, int fftSize, int filters, int coefficients, float lowHz, float highHz) {
+        if (frameLength > fftSize || coefficients > filters)
+            throw new IllegalArgumentException("Invalid MFCC parameters");
+        this.frameLength = frameLength;
+        this.coefficients = coefficients;
+        this.filters = filters;
+        fft = new RealFft(fftSize);
+        filterbank = new MelFilterbank(sampleRate, fftSize, filters, lowHz, highHz);
+
+        window = new float[frameLength];
+        for (int i = 0; i < frameLength; ++i)
+            window[i] = (float) (0.54 - 0.46 * Math.cos(2 * Math.PI * i / (frameLength - 1)));
+        dct = new float[coefficients * filters];
+        for (int c = 0; c < coefficients; ++c)
+            for (int m = 0; m < filters; ++m)
+                dct[c * filters + m] = (float) (Math.sqrt(2.0 / filters) * Math.cos(Math.PI * c * (m + 0.5) / filters));
+
+        buffer = new float[fftSize];
+        power = new float[fft.bins()];
+        logMel = new float[filters];
+    }
+
+    /**
+     * Configuración habitual para voz a 16 kHz: tramas de 25 ms, FFT de 512, 26 filtros entre 20 Hz y
+     * 8 kHz y 13 coeficientes
+     */
+    public static Mfcc speech16k() {
+        return new Mfcc(16000, 400, 512, 26, 13, 20f, 8000f);
+    }
+
+    public int frameLength() {
+        return frameLength;
+    }
+
+    public int coefficients() {
+        return coefficients;
+    }
+
+    /**
+     * MFCC de la trama pcm[offset .. offset+frameLength) en out[outOffset .. outOffset+coefficients)
+     */
+    public void compute(short[] pcm, int offset, float[] out, int outOffset) {
+        float[] b = buffer, w = window;
+        b[0] = (1 - PREEMPHASIS) * pcm[offset] * w[0];
+        for (int i = 1; i < frameLength; ++i)
+            b[i] = (pcm[offset + i] - PREEMPHASIS * pcm[offset + i - 1]) * w[i];
+        finish(out, outOffset);
+    }
+
+    /**
+     * MFCC de la trama samples[offset .. offset+frameLength) en out[outOffset .. outOffset+coefficients)
+     */
+    public void compute(float[] samples, int offset, float[] out, int outOffset) {
+        float[] b = buffer, w = window;
+        b[0] = (1 - PREEMPHASIS) * samples[offset] * w[0];
+        for (int i = 1; i < frameLength; ++i)
+            b[i] = (samples[offset + i] - PREEMPHASIS * samples[offset + i - 1]) * w[i];
+        finish(out, outOffset);
+    }
+
+    private void finish(float[] out, int outOffset) {
+        for (int i = frameLength; i < buffer.length; ++i)
+            buffer[i] = 0;
+        fft.powerSpectrum(buffer, 0, power);
+        filterbank.applyLog(power, logMel, 0, LOG_FLOOR);
+        for (int c = 0; c < coefficients; ++c) {
+            int row = c * filters;
+            float s = 0;
+            for (int m = 0; m < filters; ++m)
+                s += dct[row + m] * logMel[m];
+            out[outOffset + c] = s;
+        }
+    }
+}
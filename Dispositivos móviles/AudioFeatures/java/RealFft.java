@@ -0,0 +1,160 @@
+package com.example.laura.audio;
+
+/**
+ * FFT de señales reales de tamaño potencia de dos, planificada al crearla: las tablas de inversión de
+ * bits y los factores de giro de cada etapa se calculan en el constructor, y los cálculos usan arrays
+ * propios o los que pasa quien llama, así que transformar una trama no crea objetos.
+ *
+ * La señal real de n muestras se empaqueta como n/2 números complejos (pares en la parte real,
+ * impares en la imaginaria), se hace una FFT compleja de n/2 puntos y se separa el resultado, lo que
+ * cuesta la mitad que una FFT compleja de n puntos.
+ *
+ * Los factores de giro de cada etapa están seguidos en memoria y los bucles internos recorren los
+ * arrays con paso 1 y sin llamadas, para que el compilador JIT los pueda vectorizar.
+ *
+ * No es segura entre hilos: cada hilo debe tener la suya.
+ */
+public final class RealFft {
+
+    private final int n;
+    private final int half;
+    private final int[] reverse;
+    //Factores de giro de la FFT compleja de half puntos; la etapa con bloques de tamaño s empieza en s/2 - 1
+    private final float[] stageCos;
+    private final float[] stageSin;
+    //Factores de giro de la separación final, e^(-2*pi*i*k/n)
+    private final float[] splitCos;
+    private final float[] splitSin;
+    private final float[] zr;
+    private final float[] zi;
+    private final float[] specRe;
+    private final float[] specIm;
+
+    /**
+     * @param n número de muestras, potencia de dos y al menos 4
+     */
+    public RealFft(int n) {
+        if (n < 4 || Integer.bitCount(n) != 1)
+            throw new IllegalArgumentException("FFT size must be a power of two >= 4: " + n);
+        this.n = n;
+        this.half = n / 2;
+        int bits = Integer.numberOfTrailingZeros(half);
+        reverse = new int[half];
+        for (int i = 0; i < half; ++i)
+            reverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+
+        stageCos = new float[Math.max(1, half - 1)];
+        stageSin = new float[Math.max(1, half - 1)];
+        for (int size = 2; size <= half; size <<= 1) {
+            int base = size / 2 - 1;
+            for (int k = 0; k < size / 2; ++k) {
+                stageCos[base + k] = (float) Math.cos(-2 * Math.PI * k / size);
+                stageSin[base + k] = (float) Math.sin(-2 * Math.PI * k / size);
+            }
+        }
+        splitCos = new float[half + 1];
+        splitSin = new float[half + 1];
+        for (int k = 0; k <= half; ++k) {
+            splitCos[k] = (float) Math.cos(-2 * Math.PI * k / n);
+            splitSin[k] = (float) Math.sin(-2 * Math.PI * k / n);
+        }
+        zr = new float[half];
+        zi = new float[half];
+        specRe = new float[half + 1];
+        specIm = new float[half + 1];
+    }
+
+    public int size() {
+        return n;
+    }
+
+    /**
+     * Número de contenedores del espectro, n/2 + 1 (de 0 a la frecuencia de Nyquist)
+     */
+    public int bins() {
+        return half + 1;
+    }
+
+    /**
+     * Transformada de x[offset .. offset+n)
+     * @param re parte real de los contenedores 0..n/2 (al menos bins() elementos)
+     * @param im parte imaginaria de los contenedores 0..n/2
+     */
+    public void forward(float[] x, int offset, float[] re, float[] im) {
+        transformPacked(x, offset);
+        for (int k = 0; k <= half; ++k) {
+            int a = k == half ? 0 : k;
+            int b = k == 0 ? 0 : half - k;
+            float ar = zr[a], ai = zi[a];
+            float br = zr[b], bi = -zi[b];
+            //Parte de las muestras pares y de las impares
+            float er = 0.5f * (ar + br), ei = 0.5f * (ai + bi);
+            float or = 0.5f * (ai - bi), oi = -0.5f * (ar - br);
+            float wr = splitCos[k], wi = splitSin[k];
+            re[k] = er + wr * or - wi * oi;
+            im[k] = ei + wr * oi + wi * or;
+        }
+    }
+
+    /**
+     * Espectro de potencia |X[k]|^2 de x[offset .. offset+n) en power[0 .. n/2]
+     */
+    public void powerSpectrum(float[] x, int offset, float[] power) {
+        forward(x, offset, specRe, specIm);
+        for (int k = 0; k <= half; ++k)
+            power[k] = specRe[k] * specRe[k] + specIm[k] * specIm[k];
+    }
+
+    //Empaqueta las muestras en zr/zi en orden de bits invertidos y hace la FFT compleja de half puntos
+    private void transformPacked(float[] x, int offset) {
+        for (int i = 0; i < half; ++i) {
+            int j = reverse[i];
+            zr[j] = x[offset + 2 * i];
+            zi[j] = x[offset + 2 * i + 1];
+        }
+        //Las dos primeras etapas tienen factores 1 y -i: se hacen sin multiplicaciones
+        float[] re = zr, im = zi;
+        for (int i = 0; i + 1 < half; i += 2) {
+            float tr = re[i + 1], ti = im[i + 1];
+            re[i + 1] = re[i] - tr;
+            im[i + 1] = im[i] - ti;
+            re[i] += tr;
+            im[i] += ti;
+        }
+        for (int i = 0; i + 3 < half; i += 4) {
+            float tr = re[i + 2], ti = im[i + 2];
+            re[i + 2] = re[i] - tr;
+            im[i + 2] = im[i] - ti;
+            re[i] += tr;
+            im[i] += ti;
+            //Por -i: (a + bi)(-i) = b - ai
+            tr = im[i + 3];
+            ti = -re[i + 3];
+            re[i + 3] = re[i + 1] - tr;
+            im[i + 3] = im[i + 1] - ti;
+            re[i + 1] += tr;
+            im[i + 1] += ti;
+        }
+        for (int size = 8; size <= half; size <<= 1) {
+            int h = size >> 1;
+            int base = h - 1;
+            for (int start = 0; start < half; start += size)
+                butterflies(start, h, base);
+        }
+    }
+
+    //Mariposas de un bloque: el bucle recorre con paso 1 las dos mitades del bloque y los factores
+    private void butterflies(int start, int h, int base) {
+        float[] re = zr, im = zi, c = stageCos, s = stageSin;
+        for (int k = 0; k < h; ++k) {
+            int a = start + k, b = a + h;
+            float wr = c[base + k], wi = s[base + k];
+            float tr = wr * re[b] - wi * im[b];
+            float ti = wr * im[b] + wi * re[b];
+            re[b] = re[a] - tr;
+            im[b] = im[a] - ti;
+            re[a] += tr;
+            im[a] += ti;
+        }
+    }
+}
@@ -9,17 +9,16 @@ import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
 import android.os.Bundle;
+import android.os.Handler;
 import android.speech.RecognizerIntent;
-import android.speech.SpeechRecognizer;
 import android.support.v7.widget.Toolbar;
 import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.Menu;
 import android.view.MenuItem;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -35,6 +34,10 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import com.example.laura.movingsound.MusicService.MusicBinder;
+import com.example.laura.voice.KeywordSpotter;
+import com.example.laura.voice.LocalGrammar;
+import com.example.laura.voice.VoiceActivity;
+import com.example.laura.voice.VoiceDialogue;
 import android.widget.MediaController.MediaPlayerControl;
 import android.view.View.OnTouchListener;
 import android.widget.Toast;
@@ -62,10 +65,31 @@ public class MainActivity extends VoiceActivity implements MediaPlayerControl, S
     private GestureLibrary gLibrary;
     //Variables para la voz
     private static final String LOGTAG = "TALKBACK";
-    private static Integer ID_PROMPT_QUERY = 0;
-    private static Integer ID_PROMPT_INFO = 1;
-    private long startListeningTime = 0;
-    private int pulsaciones_micro = 0;
+    private static Integer ID_PROMPT_INFO = SongRequestDialogue.ID_PROMPT_INFO;
+    private static Integer ID_PROMPT_CONFIRM = SongRequestDialogue.ID_PROMPT_CONFIRM;
+    //Si el mensaje de confirmación no termina en este tiempo, la canción empieza de todos modos
+    private static final long MAX_CONFIRM_WAIT_MS = 5000;
+    private final Handler handler = new Handler();
+    private final Runnable releaseSong = new Runnable() {
+        public void run() {
+            handler.removeCallbacks(this);
+            if(musicSrv != null && musicBound)
+                musicSrv.releaseStart();
+            reanudarComandos();
+        }
+    };
+    //Parecido mínimo de una hipótesis con un título para darlo por bueno
+    private static final float UMBRAL_TITULO = 0.8f;
+    //Lógica del diálogo para pedir canciones, sin Android; aquí solo se le pasan los eventos de voz
+    private SongRequestDialogue dialogue;
+    //Órdenes por voz sin tocar la pantalla: detector de palabras clave con ejemplos grabados por el usuario
+    private static final String[] COMANDOS = {"siguiente", "anterior", "pausa", "continúa", "música"};
+    private static final int EJEMPLOS_POR_COMANDO = 2;
+    private static Integer ID_PROMPT_TRAIN = 3;
+    private KeywordSpotter spotter;
+    private boolean comandos_activos = false;
+    //Ejemplo que se está grabando al entrenar (-1 si no se está entrenando)
+    private int ejemplo_actual = -1;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -98,6 +122,20 @@ public class MainActivity extends VoiceActivity implements MediaPlayerControl, S
         tView.setOnTouchListener(this);
 
         initSpeechInputOutput(this);
+        //Pedimos resultados parciales para ir preparando la canción mientras se dice el título
+        setPartialResults(true);
+        //Los títulos se buscan también en el dispositivo: si una hipótesis parcial ya es un título,
+        //no esperamos al resultado final del reconocedor
+        ArrayList<String> titulos = new ArrayList<String>();
+        for(Song song : songList)
+            titulos.add(song.getTitle());
+        setGrammar(new LocalGrammar(titulos), UMBRAL_TITULO);
+        //Sintetizamos por adelantado el mensaje inicial para que suene sin esperar al TTS
+        cachePrompt(getResources().getString(R.string.mensaje_inicial), "ES");
+        dialogue = new SongRequestDialogue(voice, host, getResources().getString(R.string.mensaje_inicial),
+                getResources().getString(R.string.cancion));
+
+        spotter = new KeywordSpotter(new File(getFilesDir(), "comandos.bin"), keywordListener);
 
     }
 
@@ -137,32 +175,152 @@ public class MainActivity extends VoiceActivity implements MediaPlayerControl, S
                 musicSrv.setReplay();
                 break;
 
+            case R.id.action_latency:
+                showLatencies();
+                break;
+
+            case R.id.action_keywords:
+                //Sin ejemplos no se puede reconocer nada: primero hay que entrenar
+                if(!spotter.hasExamples()){
+                    Toast.makeText(this, "Primero hay que entrenar los comandos", Toast.LENGTH_SHORT).show();
+                    break;
+                }
+                comandos_activos = !comandos_activos;
+                item.setChecked(comandos_activos);
+                if(comandos_activos)
+                    spotter.start();
+                else
+                    spotter.stop();
+                Toast.makeText(this, "Comandos de voz: " + (comandos_activos ? "activados" : "desactivados"), Toast.LENGTH_SHORT).show();
+                break;
+
+            case R.id.action_train:
+                //El hilo de audio no debe seguir comparando con los ejemplos que se borran
+                spotter.stop();
+                spotter.clearExamples();
+                ejemplo_actual = 0;
+                pedirEjemplo();
+                break;
+
             case R.id.action_micro:
+                pedirCancion();
+        }
 
-                pulsaciones_micro++;
-                //Si no hemos pulsado el botón de micro
-                if(pulsaciones_micro == 1) {
+        return true;
+    }
+
+    //Pedimos el nombre de la canción (botón de micro u orden "música")
+    private void pedirCancion(){
+        dialogue.start();
+    }
 
-                    //Pausamos el reproductor
-                    musicSrv.pausePlayer();
-                    playbackPaused = true;
-                    paused = true;
+    //El reproductor, para el diálogo
+    private final SongRequestDialogue.Host host = new SongRequestDialogue.Host() {
+        public void prepararPeticion() {
+            //El micrófono lo necesita el reconocedor
+            spotter.stop();
 
-                    //Desactivamos el modo shuffle
-                    if (musicSrv.getShuffle())
-                        musicSrv.setShuffle();
+            //Pausamos el reproductor
+            musicSrv.pausePlayer();
+            playbackPaused = true;
+            paused = true;
 
-                    try {
-                        speak(getResources().getString(R.string.mensaje_inicial), "ES", ID_PROMPT_QUERY);
-                    } catch (Exception e) {
-                        Log.e(LOGTAG, "TTS not accessible");
-                    }
+            //Desactivamos el modo shuffle
+            if (musicSrv.getShuffle())
+                musicSrv.setShuffle();
+        }
+
+        public boolean prepararCancion(String nombre) {
+            //Buscamos la canción en la lista y la preparamos mientras suena la confirmación; si es la
+            //que se ha preparado con los resultados parciales, ya tiene el fichero abierto
+            if(!musicSrv.playSong(nombre, true))
+                return false;
+            //Si la confirmación no termina, la canción empieza igualmente tras MAX_CONFIRM_WAIT_MS
+            handler.removeCallbacks(releaseSong);
+            handler.postDelayed(releaseSong, MAX_CONFIRM_WAIT_MS);
+            return true;
+        }
+
+        public void soltarCancion() {
+            releaseSong.run();
+        }
+
+        public void volverAtras() {
+            //Seguimos con la canción que pausamos al empezar la petición, desde donde se quedó
+            musicSrv.go();
+            playbackPaused = false;
+        }
+
+        public void terminarPeticion() {
+            if(musicSrv != null && musicBound)
+                musicSrv.cancelSpeculative();
+            reanudarComandos();
+        }
+
+        public void mostrarError(String mensaje) {
+            runOnUiThread(new Runnable() { //Toasts must be in the main thread
+                public void run() {
+                    Toast.makeText(getApplicationContext(), "Speech recognition error", Toast.LENGTH_LONG).show();
                 }
+            });
+            Log.e(LOGTAG, "Error when attempting to listen: " + mensaje);
         }
+    };
 
-        return true;
+    //Volvemos a escuchar órdenes cuando termina la interacción por voz
+    private void reanudarComandos(){
+        if(comandos_activos && ejemplo_actual < 0)
+            spotter.start();
+    }
+
+    //Pedimos al usuario que diga el comando del siguiente ejemplo; se graba al terminar el mensaje
+    private void pedirEjemplo(){
+        spotter.stop();
+        try {
+            speak("Diga " + COMANDOS[ejemplo_actual % COMANDOS.length], "ES", ID_PROMPT_TRAIN, PRIORITY_QUERY);
+        } catch (Exception e) {
+            Log.e(LOGTAG, "TTS not accessible");
+            ejemplo_actual = -1;
+        }
     }
 
+    private final KeywordSpotter.Listener keywordListener = new KeywordSpotter.Listener() {
+
+        @Override
+        public void onKeyword(String keyword, float distance) {
+            Log.i(LOGTAG, "Command " + keyword + " (distance " + distance + ", CPU " + spotter.cpuLoad() + ")");
+            if(musicSrv == null || !musicBound)
+                return;
+            if(keyword.equals("siguiente"))
+                playNext();
+            else if(keyword.equals("anterior"))
+                playPrev();
+            else if(keyword.equals("pausa"))
+                pause();
+            else if(keyword.equals("continúa"))
+                start();
+            else if(keyword.equals("música"))
+                pedirCancion();
+        }
+
+        @Override
+        public void onEnrolled(String keyword, int examples) {
+            spotter.stop();
+            ejemplo_actual++;
+            if(ejemplo_actual < COMANDOS.length * EJEMPLOS_POR_COMANDO) {
+                pedirEjemplo();
+                return;
+            }
+            ejemplo_actual = -1;
+            try {
+                speak("Comandos entrenados", "ES", ID_PROMPT_INFO, PRIORITY_STATUS);
+            } catch (Exception e) {
+                Log.e(LOGTAG, "TTS not accessible");
+            }
+            reanudarComandos();
+        }
+    };
+
     @Override
     protected void onStart() {
         super.onStart();
@@ -183,8 +341,11 @@ public class MainActivity extends VoiceActivity implements MediaPlayerControl, S
 
     @Override
     protected void onDestroy() {
+        spotter.stop();
         stopService(playIntent);
         musicSrv=null;
+        //Nos desconectamos del servicio de voz (el reconocedor y el TTS siguen listos para la siguiente actividad)
+        shutdown();
         super.onDestroy();
     }
 
@@ -455,31 +616,49 @@ public class MainActivity extends VoiceActivity implements MediaPlayerControl, S
 
     /**
      * Checks whether the device is connected to Internet (returns true) or not (returns false)
-     * From: http://developer.android.com/training/monitoring-device-state/connectivity-monitoring.html
+     * The state is kept up to date by the voice service, so it can be checked before every turn
      */
     public boolean deviceConnectedToInternet() {
-        ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
-        NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
-        return (activeNetwork != null && activeNetwork.isConnectedOrConnecting());
+        return isOnline();
     }
 
+    /**
+     * TTS and ASR for the dialogue
+     */
+    private final VoiceDialogue.Voice voice = new VoiceDialogue.Voice() {
+        public void speak(String text, String languageCode, int id, int priority) {
+            try {
+                MainActivity.this.speak(text, languageCode, id, priority);
+            } catch (Exception e) {
+                Log.e(LOGTAG, "TTS not accessible");
+                //Sin confirmación, la canción empieza ya
+                if(id == SongRequestDialogue.ID_PROMPT_CONFIRM)
+                    releaseSong.run();
+            }
+        }
+
+        public void listen(Locale language, int maxResults) {
+            startListening(language, maxResults);
+        }
+    };
+
     /**
      * Starts listening for any user input.
      * When it recognizes something, the <code>processAsrResult</code> method is invoked.
      * If there is any error, the <code>onAsrError</code> method is invoked.
      */
-    private void startListening(){
+    private void startListening(Locale language, int maxResults){
 
-        if(deviceConnectedToInternet()){
+        //Sin conexión se usa el reconocedor del dispositivo, si la versión de Android lo permite
+        if(deviceConnectedToInternet() || canListenOffline()){
             try {
 
-				/*Start listening, with the following default parameters:
-					* Language = English
+				/*Start listening, with the following parameters:
+					* Language = Spanish, the language of the prompts
 					* Recognition model = Free form,
-					* Number of results = 1 (we will use the best result to perform the search)
+					* Number of results = SongRequestDialogue.MAX_RESULTADOS (the song titles are matched against all of them)
 					*/
-                startListeningTime = System.currentTimeMillis();
-                listen(Locale.ENGLISH, RecognizerIntent.LANGUAGE_MODEL_FREE_FORM, 1); //Start listening
+                listen(language, RecognizerIntent.LANGUAGE_MODEL_FREE_FORM, maxResults); //Start listening
             } catch (Exception e) {
                 this.runOnUiThread(new Runnable() {  //Toasts must be in the main thread
                     public void run() {
@@ -488,7 +667,7 @@ public class MainActivity extends VoiceActivity implements MediaPlayerControl, S
                 });
 
                 Log.e(LOGTAG,"ASR could not be started");
-                try { speak("Speech recognition could not be started", "EN", ID_PROMPT_INFO); } catch (Exception ex) { Log.e(LOGTAG, "TTS not accessible"); }
+                try { speak("Speech recognition could not be started", "EN", ID_PROMPT_INFO, PRIORITY_STATUS); } catch (Exception ex) { Log.e(LOGTAG, "TTS not accessible"); }
 
             }
         } else {
@@ -498,7 +677,7 @@ public class MainActivity extends VoiceActivity implements MediaPlayerControl, S
                     Toast.makeText(getApplicationContext(),"Please check your Internet connection", Toast.LENGTH_SHORT).show();
                 }
             });
-            try { speak("Please check your Internet connection", "EN", ID_PROMPT_INFO); } catch (Exception ex) { Log.e(LOGTAG, "TTS not accessible"); }
+            try { speak("Please check your Internet connection", "EN", ID_PROMPT_INFO, PRIORITY_STATUS); } catch (Exception ex) { Log.e(LOGTAG, "TTS not accessible"); }
             Log.e(LOGTAG, "Device not connected to Internet");
 
         }
@@ -516,41 +695,18 @@ public class MainActivity extends VoiceActivity implements MediaPlayerControl, S
 
     @Override
     public void processAsrResults(ArrayList<String> nBestList, float[] nBestConfidences) {
+        dialogue.processAsrResults(nBestList, nBestConfidences);
+    }
 
-        if(nBestList != null){
-
-            //Cogemos el nombre de la canción que hemos dicho
-            String song_name = nBestList.get(0);
-            //Buscamos la canción en la lista
-            boolean exists_song = musicSrv.playSong(song_name);
-
-            //Si la encontramos, la reproducimos
-            if(exists_song){
-
-                try {
-                    speak(getResources().getString(R.string.cancion)+song_name, "ES", ID_PROMPT_QUERY);
-                } catch (Exception e) {
-                    Log.e(LOGTAG, "TTS not accessible");
-                }
-
-                musicSrv.playPrev();
-                musicSrv.go();
-            }
-
-            //Si no, reproducimos lo que estábamos escuchando
-            else{
-
-                try {
-                    speak("No he encontrado la canción "+song_name, "ES", ID_PROMPT_QUERY);
-                } catch (Exception e) {
-                    Log.e(LOGTAG, "TTS not accessible");
-                }
-
-                musicSrv.playPrev();
-                musicSrv.go();
-            }
-
-            pulsaciones_micro = 0;
+    @Override
+    public void processAsrPartialResults(ArrayList<String> partialResults) {
+
+        //Si el título a medio decir ya apunta a una canción, la vamos abriendo y preparando;
+        //processAsrResults la confirma o la descarta
+        if(musicSrv != null && musicBound){
+            int song_posn = musicSrv.guessSong(partialResults.get(0));
+            if(song_posn >= 0)
+                musicSrv.prepareSpeculative(song_posn);
         }
     }
 
@@ -561,61 +717,26 @@ public class MainActivity extends VoiceActivity implements MediaPlayerControl, S
 
     @Override
     public void processAsrError(int errorCode) {
+        dialogue.processAsrError(errorCode);
+    }
 
-        //Possible bug in Android SpeechRecognizer: NO_MATCH errors even before the the ASR
-        // has even tried to recognized. We have adopted the solution proposed in:
-        // http://stackoverflow.com/questions/31071650/speechrecognizer-throws-onerror-on-the-first-listening
-        long duration = System.currentTimeMillis() - startListeningTime;
-        if (duration < 500 && errorCode == SpeechRecognizer.ERROR_NO_MATCH) {
-            Log.e(LOGTAG, "Doesn't seem like the system tried to listen at all. duration = " + duration + "ms. Going to ignore the error");
-            stopListening();
-        } else {
-            String errorMsg = "";
-            switch (errorCode) {
-                case SpeechRecognizer.ERROR_AUDIO:
-                    errorMsg = "Audio recording error";
-                case SpeechRecognizer.ERROR_CLIENT:
-                    errorMsg = "Unknown client side error";
-                case SpeechRecognizer.ERROR_INSUFFICIENT_PERMISSIONS:
-                    errorMsg = "Insufficient permissions";
-                case SpeechRecognizer.ERROR_NETWORK:
-                    errorMsg = "Network related error";
-                case SpeechRecognizer.ERROR_NETWORK_TIMEOUT:
-                    errorMsg = "Network operation timed out";
-                case SpeechRecognizer.ERROR_NO_MATCH:
-                    errorMsg = "No recognition result matched";
-                case SpeechRecognizer.ERROR_RECOGNIZER_BUSY:
-                    errorMsg = "RecognitionService busy";
-                case SpeechRecognizer.ERROR_SERVER:
-                    errorMsg = "Server sends error status";
-                case SpeechRecognizer.ERROR_SPEECH_TIMEOUT:
-                    errorMsg = "No speech input";
-                default:
-                    errorMsg = ""; //Another frequent error that is not really due to the ASR, we will ignore it
-            }
-            if (errorMsg != "") {
-                this.runOnUiThread(new Runnable() { //Toasts must be in the main thread
-                    public void run() {
-                        Toast.makeText(getApplicationContext(), "Speech recognition error", Toast.LENGTH_LONG).show();
+    @Override
+    public void onTTSDone(final String uttId) {
+        if(uttId.equals(ID_PROMPT_TRAIN.toString())) {
+            //Grabamos el ejemplo en cuanto termina el mensaje
+            runOnUiThread(new Runnable() {
+                public void run() {
+                    if(ejemplo_actual >= 0) {
+                        spotter.enroll(COMANDOS[ejemplo_actual % COMANDOS.length]);
+                        spotter.start();
                     }
-                });
-
-                Log.e(LOGTAG, "Error when attempting to listen: " + errorMsg);
-                try {
-                    speak(errorMsg, "EN", ID_PROMPT_INFO);
-                } catch (Exception e) {
-                    Log.e(LOGTAG, "TTS not accessible");
                 }
-            }
+            });
         }
-    }
-
-    @Override
-    public void onTTSDone(String uttId) {
-        if(uttId.equals(ID_PROMPT_QUERY.toString())) {
+        else {
             runOnUiThread(new Runnable() {
                 public void run() {
-                    startListening();
+                    dialogue.onTTSDone(uttId);
                 }
             });
         }
@@ -624,6 +745,8 @@ public class MainActivity extends VoiceActivity implements MediaPlayerControl, S
     @Override
     public void onTTSError(String uttId) {
         Log.e(LOGTAG, "TTS error");
+        if(uttId.equals(ID_PROMPT_CONFIRM.toString()))
+            runOnUiThread(releaseSong);
     }
 
     @Override
@@ -1,6 +1,8 @@
 package com.example.laura.movingsound;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 
 import android.app.Service;
 import android.content.ContentUris;
@@ -19,11 +21,13 @@ import android.app.Notification;
 import android.app.PendingIntent;
 import android.widget.Toast;
 
+import com.example.laura.voice.TurnLatency;
+
 /**
  * Created by Laura on 12/01/2017.
  */
 
-public class MusicService extends Service implements MediaPlayer.OnPreparedListener, MediaPlayer.OnErrorListener, MediaPlayer.OnCompletionListener {
+public class MusicService extends Service implements MediaPlayer.OnPreparedListener, MediaPlayer.OnErrorListener, MediaPlayer.OnCompletionListener, AudioManager.OnAudioFocusChangeListener {
 
     //Reproductor
     private MediaPlayer player;
@@ -38,6 +42,23 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
     private String songTitle = "";
     private static final int NOTIFY_ID=1;
     private Random rand;
+    //Índice de títulos: en minúsculas y ordenados, con la posición de cada canción en la lista
+    private String[] titles = new String[0];
+    private int[] titlePosn = new int[0];
+    //Reproductor que se prepara de antemano con la canción que parece estar pidiéndose por voz
+    //(resultados parciales del reconocedor); con el resultado final se confirma o se descarta
+    private MediaPlayer nextPlayer;
+    private int nextPosn = -1;
+    private boolean nextPrepared = false;
+    //Letras que tiene que tener un resultado parcial para buscar la canción con él
+    private static final int MIN_GUESS_LENGTH = 3;
+    //Canción que se prepara mientras suena el mensaje de confirmación y no empieza hasta releaseStart
+    private boolean holdStart = false;
+    private boolean heldPrepared = false;
+    //Foco de audio de la música y volumen mientras suena un mensaje de voz
+    private boolean audioFocus = false;
+    private boolean ducked = false;
+    private static final float DUCK_VOLUME = 0.2f;
 
     public void onCreate(){
         //Creamos el servicio
@@ -58,16 +79,80 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
 
     //Inicializamos el reproductor
     public void initMusicPlayer(){
-        player.setWakeMode(getApplicationContext(),
+        initMusicPlayer(player);
+    }
+
+    private void initMusicPlayer(MediaPlayer mp){
+        mp.setWakeMode(getApplicationContext(),
                 PowerManager.PARTIAL_WAKE_LOCK);
-        player.setAudioStreamType(AudioManager.STREAM_MUSIC);
-        player.setOnPreparedListener(this);
-        player.setOnCompletionListener(this);
-        player.setOnErrorListener(this);
+        mp.setAudioStreamType(AudioManager.STREAM_MUSIC);
+        mp.setOnPreparedListener(this);
+        mp.setOnCompletionListener(this);
+        mp.setOnErrorListener(this);
     }
 
     public void setList(ArrayList<Song> theSongs){
         songs=theSongs;
+        indexTitles();
+    }
+
+    //Ordenamos los títulos en minúsculas para buscarlos por búsqueda binaria
+    private void indexTitles(){
+        final String[] lower = new String[songs.size()];
+        Integer[] order = new Integer[songs.size()];
+        for(int i=0; i < songs.size(); ++i){
+            lower[i] = songs.get(i).getTitle().toLowerCase();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>(){
+            public int compare(Integer a, Integer b){
+                return lower[a].compareTo(lower[b]);
+            }
+        });
+        titles = new String[order.length];
+        titlePosn = new int[order.length];
+        for(int i=0; i < order.length; ++i){
+            titles[i] = lower[order[i]];
+            titlePosn[i] = order[i];
+        }
+    }
+
+    //Primera posición del índice cuyo título no es menor que key
+    private int lowerBound(String key){
+        int lo = 0, hi = titles.length;
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if(titles[mid].compareTo(key) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Posición de la canción con ese título (sin distinguir mayúsculas), o -1 si no está
+     */
+    public int findSong(String name){
+        String key = name.trim().toLowerCase();
+        int i = lowerBound(key);
+        return i < titles.length && titles[i].equals(key) ? titlePosn[i] : -1;
+    }
+
+    /**
+     * Canción que probablemente se está pidiendo a partir de un resultado parcial: la que tiene
+     * exactamente ese título o, si no, la única cuyo título empieza así. -1 si no hay ninguna clara.
+     */
+    public int guessSong(String partial){
+        String prefix = partial.trim().toLowerCase();
+        if(prefix.length() < MIN_GUESS_LENGTH)
+            return -1;
+        int i = lowerBound(prefix);
+        if(i >= titles.length || !titles[i].startsWith(prefix))
+            return -1;
+        if(titles[i].equals(prefix) || i + 1 >= titles.length || !titles[i + 1].startsWith(prefix))
+            return titlePosn[i];
+        return -1;
     }
 
     public class MusicBinder extends Binder {
@@ -83,13 +168,23 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
 
     @Override
     public boolean onUnbind(Intent intent){
+        ((AudioManager) getSystemService(AUDIO_SERVICE)).abandonAudioFocus(this);
+        audioFocus = false;
         player.stop();
         player.release();
+        if(nextPlayer != null){
+            nextPlayer.release();
+            nextPlayer = null;
+            nextPosn = -1;
+        }
         return false;
     }
 
     @Override
     public void onCompletion(MediaPlayer mp) {
+        //El reproductor de la canción preparada de antemano no está sonando
+        if(mp != player)
+            return;
         if(player.getCurrentPosition() > 0){
             mp.reset();
             playNext();
@@ -99,14 +194,39 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
     @Override
     public boolean onError(MediaPlayer mp, int what, int extra) {
         mp.reset();
+        //Si falla la canción preparada de antemano, se olvida y se reproducirá de la forma normal
+        if(mp == nextPlayer){
+            nextPosn = -1;
+            nextPrepared = false;
+            return true;
+        }
         return false;
     }
 
     @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN)
     @Override
     public void onPrepared(MediaPlayer mp) {
+        //La canción preparada de antemano espera a que se confirme
+        if(mp != player){
+            nextPrepared = true;
+            return;
+        }
+        //La canción pedida por voz espera a que termine el mensaje de confirmación
+        if(holdStart){
+            heldPrepared = true;
+            return;
+        }
+        //Pedimos el foco de audio si no lo tenemos (los mensajes de voz lo piden de forma transitoria
+        //y bajan el volumen mientras suenan)
+        if(!audioFocus)
+            audioFocus = ((AudioManager) getSystemService(AUDIO_SERVICE)).requestAudioFocus(this,
+                    AudioManager.STREAM_MUSIC, AudioManager.AUDIOFOCUS_GAIN) == AudioManager.AUDIOFOCUS_REQUEST_GRANTED;
+        float volume = ducked ? DUCK_VOLUME : 1.0f;
+        mp.setVolume(volume, volume);
         //Iniciamosla reproducción
         mp.start();
+        //Fin del turno de voz si la canción se ha pedido hablando
+        TurnLatency.get().mark(TurnLatency.RESPONSE);
         Intent notIntent = new Intent(this, MainActivity.class);
         notIntent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
         PendingIntent pendInt = PendingIntent.getActivity(this, 0,
@@ -125,7 +245,29 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
         startForeground(NOTIFY_ID, not);
     }
 
+    @Override
+    public void onAudioFocusChange(int focusChange) {
+        //Mientras suena un mensaje de voz bajamos el volumen en lugar de parar la música
+        if(focusChange == AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK){
+            ducked = true;
+            player.setVolume(DUCK_VOLUME, DUCK_VOLUME);
+        }
+        else if(focusChange == AudioManager.AUDIOFOCUS_GAIN){
+            ducked = false;
+            player.setVolume(1.0f, 1.0f);
+        }
+        //Si otra aplicación se queda el foco, lo volvemos a pedir con la siguiente canción
+        else if(focusChange == AudioManager.AUDIOFOCUS_LOSS)
+            audioFocus = false;
+    }
+
     public void playSong(){
+        holdStart = false;
+        openSong();
+    }
+
+    //Abrimos la canción songPosn y la preparamos; empieza en onPrepared
+    private void openSong(){
         player.reset();
         //Obtenemos la canción
         Song playSong = songs.get(songPosn);
@@ -147,41 +289,114 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
     }
 
     public boolean playSong(String name){
-        player.reset();
-        boolean exists = false;
-        Song playSong;
-
-        //Buscamos la canción por su nombre en la lista
-        for(int i=0; i < songs.size() && !exists; ++i){
-
-            //Si encontramos la canción, la reproducimos
-            if(songs.get(songPosn).getTitle().toLowerCase().equals(name.toLowerCase())) {
-                playSong = songs.get(songPosn);
-                songTitle = name;
-                exists = true;
-
-                long currSong = playSong.getID();
-                Uri trackUri = ContentUris.withAppendedId(
-                        android.provider.MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                        currSong);
-                try {
-                    player.setDataSource(getApplicationContext(), trackUri);
-                } catch (Exception e) {
-                    Log.e("MUSIC SERVICE", "Error setting data source", e);
-                }
-
-                player.prepareAsync();
-            }
+        return playSong(name, false);
+    }
 
-            else {
-                songPosn++;
-                if (songPosn >= songs.size())
-                    songPosn = 0;
-            }
+    /**
+     * Busca la canción por su nombre y la prepara. Con holdStart no empieza al estar preparada sino
+     * al llamar a releaseStart, para poder decir el mensaje de confirmación mientras se prepara y que
+     * la canción empiece justo cuando termina.
+     * @return false si no se ha encontrado
+     */
+    public boolean playSong(String name, boolean holdStart){
+        //Buscamos la canción por su nombre en el índice
+        int posn = findSong(name);
+
+        //Si la encontramos, la reproducimos
+        if(posn < 0){
+            cancelSpeculative();
+            return false;
         }
+        playSong(posn, holdStart);
 
         //Devólvemos el resultado de la búsqueda
-        return exists;
+        return true;
+    }
+
+    /**
+     * Reproduce la canción posn. Si es la que se estaba preparando de antemano se usa ese reproductor,
+     * que ya tiene el fichero abierto y, con suerte, ya está preparado. Con holdStart espera a
+     * releaseStart para empezar.
+     */
+    public void playSong(int posn, boolean holdStart){
+        this.holdStart = holdStart;
+        heldPrepared = false;
+        if(posn != nextPosn || nextPlayer == null){
+            cancelSpeculative();
+            songPosn = posn;
+            openSong();
+            return;
+        }
+
+        //Intercambiamos los reproductores y paramos el que sonaba
+        MediaPlayer old = player;
+        player = nextPlayer;
+        nextPlayer = old;
+        nextPlayer.reset();
+        songPosn = posn;
+        songTitle = songs.get(posn).getTitle();
+        boolean prepared = nextPrepared;
+        nextPosn = -1;
+        nextPrepared = false;
+        Log.i("MUSIC SERVICE", "Speculative track confirmed (" + (prepared ? "prepared" : "preparing") + ")");
+
+        //Si aún se está preparando, empezará en onPrepared
+        if(prepared)
+            onPrepared(player);
+    }
+
+    /**
+     * Empieza la canción retenida con playSong(name, true): ya mismo si está preparada o, si no, en
+     * cuanto lo esté
+     */
+    public void releaseStart(){
+        if(!holdStart)
+            return;
+        holdStart = false;
+        if(heldPrepared){
+            heldPrepared = false;
+            onPrepared(player);
+        }
+    }
+
+    /**
+     * Abre y prepara la canción posn en el segundo reproductor, sin empezar a reproducirla
+     */
+    public void prepareSpeculative(int posn){
+        if(posn == nextPosn || posn < 0 || posn >= songs.size())
+            return;
+        if(nextPlayer == null){
+            nextPlayer = new MediaPlayer();
+            initMusicPlayer(nextPlayer);
+        }
+        nextPlayer.reset();
+        nextPrepared = false;
+        nextPosn = -1;
+        try{
+            nextPlayer.setDataSource(getApplicationContext(), trackUri(songs.get(posn)));
+        }
+        catch(Exception e){
+            Log.e("MUSIC SERVICE", "Error setting data source", e);
+            return;
+        }
+        nextPosn = posn;
+        nextPlayer.prepareAsync();
+    }
+
+    /**
+     * Descarta la canción preparada de antemano
+     */
+    public void cancelSpeculative(){
+        if(nextPlayer != null && nextPosn >= 0)
+            nextPlayer.reset();
+        nextPosn = -1;
+        nextPrepared = false;
+    }
+
+    private Uri trackUri(Song song){
+        return ContentUris.withAppendedId(
+                android.provider.MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                song.getID());
     }
 
 
@@ -0,0 +1,81 @@
+package com.example.laura.movingsound;
+
+import android.speech.SpeechRecognizer;
+
+import com.example.laura.voice.DialogueSimulator;
+import com.example.laura.voice.DialogueSimulator.Reply;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Ejecuta el diálogo para pedir canciones de MovingSound en el ordenador con DialogueSimulator:
+ * títulos que están en la lista, uno que no está (se vuelve a preguntar), errores que se reintentan y
+ * errores que se dicen al usuario. Se ejecuta con
+ *
+ *   java com.example.laura.movingsound.SongRequestBenchmark [turnos]
+ *   java com.example.laura.movingsound.SongRequestBenchmark --transcript
+ *
+ * compilando SongRequestDialogue y com.example.laura.voice con android.jar en el classpath (solo
+ * hacen falta las constantes de SpeechRecognizer, que se copian al compilar).
+ */
+public final class SongRequestBenchmark {
+
+    private static final Reply[] SCRIPT = {
+            Reply.say("Hello", "Yellow", "Hello World"),
+            Reply.say("Canción de cuna"),
+            Reply.say("Una que no existe"), Reply.say("Bohemian Rhapsody"),
+            Reply.error(SpeechRecognizer.ERROR_RECOGNIZER_BUSY), Reply.say("Hello World"),
+            Reply.error(SpeechRecognizer.ERROR_NO_MATCH, 50), Reply.error(SpeechRecognizer.ERROR_NO_MATCH),
+            Reply.error(SpeechRecognizer.ERROR_SPEECH_TIMEOUT),
+    };
+
+    private static final HashSet<String> SONGS = new HashSet<String>(Arrays.asList(
+            "Hello", "Hello World", "Canción de cuna", "Bohemian Rhapsody"));
+
+    //Sin reproductor: solo se cuenta lo que se le pide
+    private static int requests, played, back, errors;
+
+    private static final SongRequestDialogue.Host HOST = new SongRequestDialogue.Host() {
+        public void prepararPeticion() {
+            requests++;
+        }
+
+        public boolean prepararCancion(String nombre) {
+            return SONGS.contains(nombre);
+        }
+
+        public void soltarCancion() {
+            played++;
+        }
+
+        public void volverAtras() {
+            back++;
+        }
+
+        public void terminarPeticion() {
+            errors++;
+        }
+
+        public void mostrarError(String mensaje) {
+        }
+    };
+
+    public static void main(String[] args) {
+        DialogueSimulator simulator = new DialogueSimulator(SCRIPT);
+        simulator.setDialogue(new SongRequestDialogue(simulator, HOST, "Diga el nombre de la canción", "Reproduciendo "));
+
+        if (args.length > 0 && args[0].equals("--transcript")) {
+            simulator.setTranscript(System.out);
+            simulator.run(6);
+            System.out.println(String.format("requests %d, played %d, not found %d, errors %d", requests, played, back, errors));
+            return;
+        }
+
+        int turns = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        simulator.run(turns);   //Calentamiento del JIT
+        simulator.resetStats();
+        simulator.run(turns);
+        System.out.print(simulator.report());
+    }
+}
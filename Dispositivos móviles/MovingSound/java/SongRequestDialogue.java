@@ -0,0 +1,129 @@
+package com.example.laura.movingsound;
+
+import com.example.laura.voice.AsrException;
+import com.example.laura.voice.PromptScheduler;
+import com.example.laura.voice.VoiceDialogue;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Diálogo de MovingSound para pedir una canción por voz: pregunta el título, lo busca y, si lo
+ * encuentra, lo confirma y la canción empieza a sonar al terminar la confirmación. MainActivity le pasa
+ * los eventos de voz y hace lo que toca con el reproductor ({@link Host}); fuera del teléfono se
+ * ejecuta con DialogueSimulator (SongRequestBenchmark).
+ */
+public class SongRequestDialogue implements VoiceDialogue {
+
+    /**
+     * Lo que el diálogo necesita del reproductor
+     */
+    public interface Host {
+        /**
+         * Se va a pedir una canción: se pausa la música y se libera el micrófono
+         */
+        void prepararPeticion();
+
+        /**
+         * Busca la canción y la deja preparada, sin empezar
+         * @return false si no está en la lista
+         */
+        boolean prepararCancion(String nombre);
+
+        /**
+         * Empieza la canción preparada (al terminar la confirmación)
+         */
+        void soltarCancion();
+
+        /**
+         * No se ha encontrado la canción: se vuelve a la que se estaba escuchando
+         */
+        void volverAtras();
+
+        /**
+         * La petición ha terminado con un error del reconocedor
+         */
+        void terminarPeticion();
+
+        void mostrarError(String mensaje);
+    }
+
+    public static final int ID_PROMPT_QUERY = 0;
+    public static final int ID_PROMPT_INFO = 1;
+    //Confirmación de la canción pedida, que empieza a sonar justo cuando termina este mensaje
+    public static final int ID_PROMPT_CONFIRM = 2;
+    private static final String QUERY = Integer.toString(ID_PROMPT_QUERY);
+    private static final String CONFIRM = Integer.toString(ID_PROMPT_CONFIRM);
+    private static final Locale ESPAÑOL = new Locale("es", "ES");
+    //Hipótesis que pedimos al reconocedor (los títulos se comparan con todas)
+    static final int MAX_RESULTADOS = 5;
+
+    private final Voice voice;
+    private final Host host;
+    private final String mensaje_inicial;
+    private final String cancion;
+    //Si ya se está pidiendo una canción (el botón de micro no vuelve a preguntar)
+    private boolean pidiendo = false;
+
+    public SongRequestDialogue(Voice voice, Host host, String mensaje_inicial, String cancion) {
+        this.voice = voice;
+        this.host = host;
+        this.mensaje_inicial = mensaje_inicial;
+        this.cancion = cancion;
+    }
+
+    @Override
+    public void start() {
+        if (pidiendo)
+            return;
+        pidiendo = true;
+        host.prepararPeticion();
+        voice.speak(mensaje_inicial, "ES", ID_PROMPT_QUERY, PromptScheduler.PRIORITY_QUERY);
+    }
+
+    @Override
+    public void processAsrResults(ArrayList<String> nBestList, float[] nBestConfidences) {
+
+        if(nBestList != null){
+
+            //Cogemos el nombre de la canción que hemos dicho
+            String song_name = nBestList.get(0);
+
+            //Si la encontramos, la reproducimos en cuanto termine el mensaje (onTTSDone)
+            if(host.prepararCancion(song_name))
+                voice.speak(cancion+song_name, "ES", ID_PROMPT_CONFIRM, PromptScheduler.PRIORITY_QUERY);
+
+            //Si no, reproducimos lo que estábamos escuchando
+            else{
+                voice.speak("No he encontrado la canción "+song_name, "ES", ID_PROMPT_QUERY, PromptScheduler.PRIORITY_INFO);
+                host.volverAtras();
+            }
+
+            pidiendo = false;
+        }
+    }
+
+    @Override
+    public void processAsrError(int errorCode) {
+
+        //No habrá resultado final que confirme la canción preparada de antemano
+        host.terminarPeticion();
+        //El botón de micro vuelve a pedir una canción
+        pidiendo = false;
+
+        //Los NO_MATCH justo al empezar a escuchar ya los reintenta RecognizerRecovery
+        String errorMsg = AsrException.describe(errorCode);
+        if (!errorMsg.isEmpty()) {
+            host.mostrarError(errorMsg);
+            voice.speak(errorMsg, "EN", ID_PROMPT_INFO, PromptScheduler.PRIORITY_STATUS);
+        }
+    }
+
+    @Override
+    public void onTTSDone(String uttId) {
+        if(uttId.equals(CONFIRM))
+            host.soltarCancion();
+        else if(uttId.equals(QUERY))
+            voice.listen(ESPAÑOL, MAX_RESULTADOS);
+    }
+}
@@ -0,0 +1,177 @@
+package com.example.laura.sugaraid;
+
+import com.example.laura.voice.AsrException;
+import com.example.laura.voice.PromptScheduler;
+import com.example.laura.voice.VoiceDialogue;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Diálogo de SugarAid: pregunta el nivel de azúcar, lo escucha y dice el consejo y la dosis de insulina
+ * según el nivel y el peso del usuario, seguidos de un resumen de la última semana (GlucoseStats) si
+ * hay lecturas suficientes. MainActivity le pasa los eventos de voz y muestra el consejo en
+ * pantalla ({@link Host}); fuera del teléfono se ejecuta con DialogueSimulator
+ * (GlucoseDialogueBenchmark).
+ */
+public class GlucoseDialogue implements VoiceDialogue {
+
+    /**
+     * Lo que el diálogo necesita de la actividad
+     */
+    public interface Host {
+        /**
+         * Peso del usuario en kg, de los ajustes
+         */
+        int pesoUsuario();
+
+        /**
+         * Muestra el nivel, la acción recomendada y el icono (ROJO, AMARILLO o VERDE)
+         */
+        void mostrarConsejo(int nivel, String accion, int icono);
+
+        void mostrarError(String mensaje);
+
+        /**
+         * Momento actual en ms desde 1970
+         */
+        long ahora();
+
+        /**
+         * Guarda la lectura en el historial con las dosis que se han recomendado
+         * @return momento con el que se ha guardado, que no es anterior al de la lectura anterior
+         *         aunque el reloj haya ido hacia atrás (GlucoseStore.append)
+         */
+        long guardarLectura(long tiempo, int nivel, int dosisMañana, int dosisNoche);
+    }
+
+    //Iconos del consejo
+    public static final int ROJO = 0;
+    public static final int AMARILLO = 1;
+    public static final int VERDE = 2;
+
+    public static final int ID_PROMPT_QUERY = 0;
+    public static final int ID_PROMPT_INFO = 1;
+    private static final String QUERY = Integer.toString(ID_PROMPT_QUERY);
+    private static final Locale ESPAÑOL = new Locale("es", "ES");
+    //Confianza mínima en el nivel leído; por debajo se vuelve a preguntar
+    static final float UMBRAL_LECTURA = 0.5f;
+    //Veces que se vuelve a preguntar si no se entiende el nivel
+    static final int MAX_REPETICIONES = 2;
+    //Hipótesis que pedimos al reconocedor (el nivel se busca en todas)
+    static final int MAX_RESULTADOS = 5;
+
+    private final Voice voice;
+    private final Host host;
+    private final String mensaje_inicial;
+    private final String mensaje_azucar_alta;
+
+    private int dosis_mañana;
+    private int dosis_noche;
+    private int dosis_diaria;
+    private final GlucoseReadingParser lector = new GlucoseReadingParser();
+    private int repeticiones;
+    private final GlucoseStats estadisticas;
+
+    /**
+     * @param estadisticas estadísticas con las lecturas anteriores del historial
+     */
+    public GlucoseDialogue(Voice voice, Host host, GlucoseStats estadisticas, String mensaje_inicial, String mensaje_azucar_alta) {
+        this.voice = voice;
+        this.host = host;
+        this.estadisticas = estadisticas;
+        this.mensaje_inicial = mensaje_inicial;
+        this.mensaje_azucar_alta = mensaje_azucar_alta;
+    }
+
+    void dosisDiaria(){
+
+        int peso = host.pesoUsuario();
+
+        dosis_diaria = (int)(peso*0.4);
+        dosis_mañana = dosis_diaria*2/3;
+        dosis_noche = dosis_diaria/3;
+    }
+
+    @Override
+    public void start() {
+        repeticiones = 0;
+        //Ask the user to speak
+        voice.speak(mensaje_inicial, "ES", ID_PROMPT_QUERY, PromptScheduler.PRIORITY_QUERY);
+    }
+
+    @Override
+    public void processAsrResults(ArrayList<String> nBestList, float[] nBestConfidences) {
+
+        if(nBestList != null){
+
+            //Cifras o palabras ("ciento veinte"), en cualquiera de las hipótesis
+            if (!lector.parse(nBestList, nBestConfidences) || lector.confianza() < UMBRAL_LECTURA) {
+                if (repeticiones++ < MAX_REPETICIONES)
+                    voice.speak("No le he entendido. " + mensaje_inicial, "ES", ID_PROMPT_QUERY, PromptScheduler.PRIORITY_QUERY);
+                else
+                    voice.speak("No he podido entender su nivel de azúcar", "ES", ID_PROMPT_INFO, PromptScheduler.PRIORITY_INFO);
+                return;
+            }
+            int nivel = lector.nivel();
+            dosisDiaria();
+
+            voice.speak("Su nivel de azúcar es " + nivel, "ES", ID_PROMPT_INFO, PromptScheduler.PRIORITY_INFO);
+
+            if (nivel > 145) {
+
+                host.mostrarConsejo(nivel, "Póngase en contacto con su médico", ROJO);
+                voice.speak(mensaje_azucar_alta, "ES", ID_PROMPT_INFO, PromptScheduler.PRIORITY_INFO);
+                guardar(nivel, 0, 0);
+            }
+
+            else if (nivel >= 100 && nivel <= 145) {
+
+                host.mostrarConsejo(nivel, "Tomar "+dosis_mañana+" unidades por la mañana y "+dosis_noche+ " unidades por la noche, antes de desayunar y cenar", AMARILLO);
+                voice.speak("Su nivel de azúcar está un poco alto. Debe tomar "+dosis_mañana+" unidades de insulina por la mañana y "+dosis_noche+ " unidades por la noche, antes de desayunar y cenar","ES", ID_PROMPT_INFO, PromptScheduler.PRIORITY_INFO);
+                guardar(nivel, dosis_mañana, dosis_noche);
+            }
+
+            else if (nivel < 100 && nivel >= 70) {
+
+                host.mostrarConsejo(nivel, "Tomar "+dosis_mañana+" unidades por la mañana antes de desayunar", VERDE);
+                voice.speak("Su nivel de azúcar es normal. Debe tomar "+dosis_mañana+" unidades de insulina por la mañana antes de desayunar","ES", ID_PROMPT_INFO, PromptScheduler.PRIORITY_INFO);
+                guardar(nivel, dosis_mañana, 0);
+            }
+
+            else {
+
+                host.mostrarConsejo(nivel, "Tomar "+dosis_mañana+" unidades y un vaso de agua con azúcar antes de desayunar", AMARILLO);
+                voice.speak("Su nivel de azúcar está un poco bajo. Debe tomar "+dosis_mañana+" unidades de insulina y un vaso de agua con azúcar antes de desayunar","ES", ID_PROMPT_INFO, PromptScheduler.PRIORITY_INFO);
+                guardar(nivel, dosis_mañana, 0);
+            }
+        }
+    }
+
+    //Guarda la lectura, la suma a las estadísticas y, tras el consejo, dice cómo va la semana
+    private void guardar(int nivel, int dosisMañana, int dosisNoche) {
+        //Con el momento del historial, para que las ventanas de las estadísticas vayan con él
+        long tiempo = host.guardarLectura(host.ahora(), nivel, dosisMañana, dosisNoche);
+        estadisticas.add(tiempo, nivel);
+        String resumen = estadisticas.resumen(tiempo);
+        if (resumen != null)
+            voice.speak(resumen, "ES", ID_PROMPT_INFO, PromptScheduler.PRIORITY_INFO);
+    }
+
+    @Override
+    public void processAsrError(int errorCode) {
+
+        //Los NO_MATCH justo al empezar a escuchar ya los reintenta RecognizerRecovery
+        String errorMsg = AsrException.describe(errorCode);
+        if (!errorMsg.isEmpty()) {
+            host.mostrarError(errorMsg);
+            voice.speak(errorMsg, "EN", ID_PROMPT_INFO, PromptScheduler.PRIORITY_STATUS);
+        }
+    }
+
+    @Override
+    public void onTTSDone(String uttId) {
+        if(uttId.equals(QUERY))
+            voice.listen(ESPAÑOL, MAX_RESULTADOS);
+    }
+}
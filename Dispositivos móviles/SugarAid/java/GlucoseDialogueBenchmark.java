@@ -0,0 +1,86 @@
+package com.example.laura.sugaraid;
+
+import android.speech.SpeechRecognizer;
+
+import com.example.laura.voice.DialogueSimulator;
+import com.example.laura.voice.DialogueSimulator.Reply;
+
+/**
+ * Ejecuta el diálogo de SugarAid en el ordenador con DialogueSimulator: niveles en cada tramo de
+ * consejo, en cifras y en palabras, uno que no se entiende a la primera y otro ambiguo, errores que se reintentan (red, NO_MATCH justo al empezar) y errores que se dicen al
+ * usuario. Se ejecuta con
+ *
+ *   java com.example.laura.sugaraid.GlucoseDialogueBenchmark [turnos]
+ *   java com.example.laura.sugaraid.GlucoseDialogueBenchmark --transcript
+ *
+ * compilando GlucoseDialogue, GlucoseReadingParser, GlucoseStats y com.example.laura.voice con android.jar en el classpath (solo hacen
+ * falta las constantes de SpeechRecognizer, que se copian al compilar). La primera forma mide turnos
+ * por segundo, latencias y memoria reservada por turno; la segunda escribe una vuelta al guion para
+ * compararla con diff tras cambiar el diálogo.
+ */
+public final class GlucoseDialogueBenchmark {
+
+    private static final Reply[] SCRIPT = {
+            Reply.say("120"),
+            Reply.say("ochenta y cinco", "ochenta cinco", "85"),
+            Reply.say("ciento sesenta mg", "160 mg"),
+            Reply.say("tengo unos sesenta y cinco de azúcar"),
+            Reply.say("hola", "ola"), Reply.say("ciento veinte", "120"),
+            Reply.say("tengo 110 y 120"), Reply.say("uno veinte"),
+            Reply.say("tengo una lectura de 120"), Reply.say("un poco más de 100"),
+            Reply.error(SpeechRecognizer.ERROR_NO_MATCH),
+            Reply.error(SpeechRecognizer.ERROR_NO_MATCH, 100), Reply.say("145"),
+            Reply.error(SpeechRecognizer.ERROR_NETWORK), Reply.error(SpeechRecognizer.ERROR_SERVER), Reply.say("100"),
+            Reply.error(SpeechRecognizer.ERROR_SPEECH_TIMEOUT),
+            Reply.say("70"),
+    };
+
+    //Sin pantalla: el consejo solo se cuenta para que el JIT no elimine nada
+    private static int shown;
+    private static long reloj = 1500000000000L;
+
+    private static final GlucoseDialogue.Host HOST = new GlucoseDialogue.Host() {
+        public int pesoUsuario() {
+            return 70;
+        }
+
+        public void mostrarConsejo(int nivel, String accion, int icono) {
+            shown += nivel + accion.length() + icono;
+        }
+
+        public void mostrarError(String mensaje) {
+            shown += mensaje.length();
+        }
+
+        public long ahora() {
+            //Una lectura cada cuatro horas, para que las ventanas de GlucoseStats se llenen y avancen
+            reloj += 4 * 3600 * 1000L;
+            return reloj;
+        }
+
+        public long guardarLectura(long tiempo, int nivel, int dosisMañana, int dosisNoche) {
+            shown += dosisMañana + dosisNoche;
+            return tiempo;
+        }
+    };
+
+    public static void main(String[] args) {
+        DialogueSimulator simulator = new DialogueSimulator(SCRIPT);
+        simulator.setDialogue(new GlucoseDialogue(simulator, HOST, new GlucoseStats(), "Dígame su nivel de azúcar",
+                "Su nivel de azúcar es demasiado alto, debe ponerse en contacto con su médico"));
+
+        if (args.length > 0 && args[0].equals("--transcript")) {
+            simulator.setTranscript(System.out);
+            simulator.run(10);
+            return;
+        }
+
+        int turns = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        simulator.run(turns);   //Calentamiento del JIT
+        simulator.resetStats();
+        simulator.run(turns);
+        System.out.print(simulator.report());
+        if (shown == 42)
+            System.out.println();
+    }
+}
@@ -0,0 +1,365 @@
+package com.example.laura.sugaraid;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Saca el nivel de azúcar (mg/dl) de las hipótesis del reconocedor, tanto si vienen en cifras ("120",
+ * "120mg/dl") como en palabras ("ciento veinte", "doscientos treinta y cinco", "noventa y ocho"), con palabras
+ * de relleno alrededor ("tengo unos ciento veinte de azúcar") y con o sin tildes. Una unidad seguida de
+ * decenas es una centena, como se dice a menudo ("uno veinte" es 120, "dos cuarenta y cinco" es 245).
+ *
+ * Se lee toda la lista N-best: cada hipótesis con una lectura entre MIN_NIVEL y MAX_NIVEL vota por su
+ * valor con su confianza del reconocedor, multiplicada por lo bien que se ha entendido (palabras
+ * desconocidas, varios números sin unidades...). Con varios números y sin unidades no se sabe cuál es
+ * el nivel ("tengo 110 y 120"), así que esa hipótesis vota muy poco: si no hay otras que lo aclaren,
+ * la confianza queda por debajo de lo que acepta GlucoseDialogue y se vuelve a preguntar. Gana el valor con más votos, y su confianza es la
+ * parte del total de votos que se ha llevado; así "ciento veinte" y "120" en la misma lista se
+ * refuerzan en lugar de competir.
+ *
+ * No usa expresiones regulares ni crea objetos por palabra: las palabras se comparan directamente
+ * con el texto de la hipótesis, y los votos se guardan en arrays reservados al crear el objeto. No se
+ * debe usar desde varios hilos a la vez.
+ */
+public final class GlucoseReadingParser {
+
+    //Niveles que puede dar un glucómetro; fuera de ahí es un error de reconocimiento
+    static final int MIN_NIVEL = 20;
+    static final int MAX_NIVEL = 600;
+    //Hipótesis que se leen como mucho (el reconocedor suele dar 5)
+    private static final int MAX_HIPOTESIS = 16;
+    //Calidad de una hipótesis con varios números y sin unidades
+    static final float AMBIGUA = 0.3f;
+
+    //Clases de palabra
+    private static final int UNIDAD = 0;        //0 a 9
+    private static final int ESPECIAL = 1;      //10 a 29 (una sola palabra: "quince", "veintidós")
+    private static final int DECENA = 2;        //30 a 90
+    private static final int CENTENA = 3;       //100 a 900
+    private static final int MIL = 4;
+    private static final int Y = 5;             //"treinta y cinco"
+    private static final int MEDIDA = 6;        //"mg", "miligramos"...
+    private static final int RELLENO = 7;       //"tengo", "azúcar"...
+
+    //Diccionario sin tildes y en minúsculas, ordenado, con su clase y su valor
+    private static final String[] PALABRAS;
+    private static final int[] CLASE;
+    private static final int[] VALOR;
+
+    static {
+        final Object[][] d = {
+                {"cero", UNIDAD, 0}, {"un", UNIDAD, 1}, {"uno", UNIDAD, 1}, {"una", UNIDAD, 1},
+                {"dos", UNIDAD, 2}, {"tres", UNIDAD, 3}, {"cuatro", UNIDAD, 4}, {"cinco", UNIDAD, 5},
+                {"seis", UNIDAD, 6}, {"siete", UNIDAD, 7}, {"ocho", UNIDAD, 8}, {"nueve", UNIDAD, 9},
+                {"diez", ESPECIAL, 10}, {"once", ESPECIAL, 11}, {"doce", ESPECIAL, 12}, {"trece", ESPECIAL, 13},
+                {"catorce", ESPECIAL, 14}, {"quince", ESPECIAL, 15}, {"dieciseis", ESPECIAL, 16},
+                {"diecisiete", ESPECIAL, 17}, {"dieciocho", ESPECIAL, 18}, {"diecinueve", ESPECIAL, 19},
+                {"veinte", ESPECIAL, 20}, {"veintiun", ESPECIAL, 21}, {"veintiuno", ESPECIAL, 21},
+                {"veintiuna", ESPECIAL, 21}, {"veintidos", ESPECIAL, 22}, {"veintitres", ESPECIAL, 23},
+                {"veinticuatro", ESPECIAL, 24}, {"veinticinco", ESPECIAL, 25}, {"veintiseis", ESPECIAL, 26},
+                {"veintisiete", ESPECIAL, 27}, {"veintiocho", ESPECIAL, 28}, {"veintinueve", ESPECIAL, 29},
+                {"treinta", DECENA, 30}, {"cuarenta", DECENA, 40}, {"cincuenta", DECENA, 50},
+                {"sesenta", DECENA, 60}, {"setenta", DECENA, 70}, {"ochenta", DECENA, 80}, {"noventa", DECENA, 90},
+                {"cien", CENTENA, 100}, {"ciento", CENTENA, 100}, {"doscientos", CENTENA, 200},
+                {"trescientos", CENTENA, 300}, {"cuatrocientos", CENTENA, 400}, {"quinientos", CENTENA, 500},
+                {"seiscientos", CENTENA, 600}, {"setecientos", CENTENA, 700}, {"ochocientos", CENTENA, 800},
+                {"novecientos", CENTENA, 900}, {"mil", MIL, 1000},
+                {"y", Y, 0},
+                {"mg", MEDIDA, 0}, {"dl", MEDIDA, 0}, {"miligramos", MEDIDA, 0}, {"miligramo", MEDIDA, 0},
+                {"decilitro", MEDIDA, 0}, {"decilitros", MEDIDA, 0},
+                {"a", RELLENO, 0}, {"ahora", RELLENO, 0}, {"alrededor", RELLENO, 0}, {"aproximadamente", RELLENO, 0},
+                {"azucar", RELLENO, 0}, {"casi", RELLENO, 0}, {"creo", RELLENO, 0}, {"de", RELLENO, 0},
+                {"del", RELLENO, 0}, {"eh", RELLENO, 0}, {"el", RELLENO, 0}, {"em", RELLENO, 0},
+                {"en", RELLENO, 0}, {"es", RELLENO, 0}, {"esta", RELLENO, 0}, {"glucemia", RELLENO, 0},
+                {"glucosa", RELLENO, 0}, {"ha", RELLENO, 0}, {"he", RELLENO, 0}, {"hoy", RELLENO, 0},
+                {"la", RELLENO, 0}, {"las", RELLENO, 0}, {"marca", RELLENO, 0}, {"mas", RELLENO, 0},
+                {"me", RELLENO, 0}, {"medido", RELLENO, 0}, {"menos", RELLENO, 0}, {"mi", RELLENO, 0},
+                {"mide", RELLENO, 0}, {"nivel", RELLENO, 0}, {"o", RELLENO, 0}, {"pues", RELLENO, 0},
+                {"por", RELLENO, 0}, {"que", RELLENO, 0}, {"sale", RELLENO, 0}, {"sobre", RELLENO, 0},
+                {"son", RELLENO, 0}, {"su", RELLENO, 0}, {"tengo", RELLENO, 0}, {"tenia", RELLENO, 0},
+                {"unas", RELLENO, 0}, {"unos", RELLENO, 0}, {"vale", RELLENO, 0},
+        };
+        Arrays.sort(d, new Comparator<Object[]>() {
+            public int compare(Object[] a, Object[] b) {
+                return ((String) a[0]).compareTo((String) b[0]);
+            }
+        });
+        PALABRAS = new String[d.length];
+        CLASE = new int[d.length];
+        VALOR = new int[d.length];
+        for (int i = 0; i < d.length; ++i) {
+            PALABRAS[i] = (String) d[i][0];
+            CLASE[i] = (Integer) d[i][1];
+            VALOR[i] = (Integer) d[i][2];
+        }
+    }
+
+    //Votos por valor de la última lectura
+    private final int[] valores = new int[MAX_HIPOTESIS];
+    private final float[] votos = new float[MAX_HIPOTESIS];
+    private int distintos;
+
+    private int nivel;
+    private float confianza;
+
+    //Estado de la hipótesis que se está leyendo
+    private int grupo, miles, ultima;
+    private boolean enNumero;
+    private int candidato, anterior, numeros, desconocidas, palabras;
+    private boolean medido;
+
+    /**
+     * Lee las hipótesis del reconocedor
+     * @param confidences confianzas del reconocedor (puede ser null o más corto que la lista)
+     * @return true si alguna hipótesis tiene un nivel válido; entonces se consultan nivel() y confianza()
+     */
+    public boolean parse(List<String> nBestList, float[] confidences) {
+        distintos = 0;
+        nivel = -1;
+        confianza = 0;
+        if (nBestList == null)
+            return false;
+        float total = 0;
+        int n = Math.min(nBestList.size(), MAX_HIPOTESIS);
+        for (int i = 0; i < n; ++i) {
+            //Muchos reconocedores solo dan confianza a la primera: al resto se le da una según su puesto
+            float peso = confidences != null && i < confidences.length && confidences[i] > 0 ? confidences[i] : 1f / (i + 2);
+            total += peso;
+            float calidad = leer(nBestList.get(i));
+            if (calidad > 0)
+                votar(candidato, peso * calidad);
+        }
+        for (int k = 0; k < distintos; ++k) {
+            if (votos[k] > confianza) {
+                confianza = votos[k];
+                nivel = valores[k];
+            }
+        }
+        if (nivel < 0)
+            return false;
+        confianza = Math.min(1f, confianza / total);
+        return true;
+    }
+
+    /**
+     * Nivel en mg/dl de la última lectura, o -1 si no había ninguno
+     */
+    public int nivel() {
+        return nivel;
+    }
+
+    /**
+     * Confianza de 0 a 1 en el nivel de la última lectura
+     */
+    public float confianza() {
+        return confianza;
+    }
+
+    private void votar(int valor, float voto) {
+        for (int k = 0; k < distintos; ++k) {
+            if (valores[k] == valor) {
+                votos[k] += voto;
+                return;
+            }
+        }
+        valores[distintos] = valor;
+        votos[distintos] = voto;
+        distintos++;
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    ///                         UNA HIPÓTESIS                                         ///
+    /////////////////////////////////////////////////////////////////////////////////////
+
+    //Lee una hipótesis y deja su nivel en candidato
+    //@return calidad de 0 a 1 de la lectura, o 0 si no hay un nivel válido
+    private float leer(String s) {
+        candidato = -1;
+        anterior = -1;
+        numeros = desconocidas = palabras = 0;
+        medido = false;
+        enNumero = false;
+        grupo = miles = 0;
+        ultima = -1;
+
+        int i = 0, len = s.length();
+        while (i < len) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                int valor = 0, j = i;
+                while (j < len && s.charAt(j) >= '0' && s.charAt(j) <= '9') {
+                    if (valor <= MAX_NIVEL * 10)
+                        valor = valor * 10 + (s.charAt(j) - '0');
+                    j++;
+                }
+                //Decimales ("120,5"): se descartan
+                if (j + 1 < len && (s.charAt(j) == ',' || s.charAt(j) == '.') && s.charAt(j + 1) >= '0' && s.charAt(j + 1) <= '9') {
+                    j++;
+                    while (j < len && s.charAt(j) >= '0' && s.charAt(j) <= '9')
+                        j++;
+                }
+                cerrar();
+                numero(valor);
+                palabras++;
+                i = j;
+            } else if (Character.isLetter(c)) {
+                int j = i;
+                while (j < len && Character.isLetter(s.charAt(j)))
+                    j++;
+                palabra(s, i, j);
+                palabras++;
+                i = j;
+            } else
+                i++;
+        }
+        cerrar();
+
+        if (candidato < MIN_NIVEL || candidato > MAX_NIVEL)
+            return 0;
+        float calidad = 1f - 0.5f * desconocidas / palabras;
+        //Varios niveles posibles sin unidades: no está claro cuál es el bueno
+        if (numeros > 1 && !medido)
+            calidad *= AMBIGUA;
+        return calidad;
+    }
+
+    private void palabra(String s, int start, int end) {
+        int k = buscar(s, start, end);
+        if (k < 0) {
+            //Una palabra que no es un número corta el que se estaba diciendo
+            desconocidas++;
+            cerrar();
+            return;
+        }
+        int clase = CLASE[k], valor = VALOR[k];
+        switch (clase) {
+            case RELLENO:
+                return;
+            case MEDIDA:
+                cerrar();
+                //Las unidades van detrás del nivel: ese es el bueno aunque haya más números
+                if (!medido && anterior >= MIN_NIVEL && anterior <= MAX_NIVEL) {
+                    candidato = anterior;
+                    medido = true;
+                }
+                return;
+            case Y:
+                //Solo une decenas y unidades; si no, es de relleno
+                if (!(enNumero && ultima == DECENA))
+                    return;
+                ultima = Y;
+                return;
+            case MIL:
+                if (enNumero && miles != 0) {
+                    cerrar();
+                    empezar();
+                }
+                miles = (enNumero && grupo != 0 ? grupo : 1) * 1000;
+                grupo = 0;
+                enNumero = true;
+                ultima = MIL;
+                return;
+            case CENTENA:
+                if (enNumero && grupo != 0) {
+                    cerrar();
+                    empezar();
+                }
+                break;
+            case DECENA:
+            case ESPECIAL:
+                //Detrás de una unidad sola, la unidad son las centenas: "uno veinte" es 120
+                if (enNumero && ultima == UNIDAD && miles == 0 && grupo > 0 && grupo < 10) {
+                    grupo *= 100;
+                    break;
+                }
+                if (enNumero && grupo % 100 != 0) {
+                    cerrar();
+                    empezar();
+                }
+                break;
+            default:
+                //Unidad: detrás de "treinta y", de una centena o de mil, o sola
+                if (enNumero && !(ultima == Y || ultima == DECENA || (grupo % 100 == 0 && ultima != ESPECIAL))) {
+                    cerrar();
+                    empezar();
+                }
+                break;
+        }
+        if (!enNumero)
+            empezar();
+        grupo += valor;
+        ultima = clase;
+    }
+
+    private void empezar() {
+        enNumero = true;
+        grupo = miles = 0;
+        ultima = -1;
+    }
+
+    //Termina el número que se estaba diciendo en palabras
+    private void cerrar() {
+        if (!enNumero)
+            return;
+        enNumero = false;
+        numero(miles + grupo);
+    }
+
+    private void numero(int valor) {
+        //Solo compiten los que podrían ser un nivel: "una lectura de 120" o "un poco más de 100" no son dudosas
+        if (valor >= MIN_NIVEL && valor <= MAX_NIVEL)
+            numeros++;
+        anterior = valor;
+        if (medido)
+            return;
+        //Sin unidades, el primero que es un nivel posible
+        if (candidato < MIN_NIVEL || candidato > MAX_NIVEL)
+            candidato = valor;
+    }
+
+    //Posición de la palabra s[start, end) en el diccionario, sin tildes ni mayúsculas, o -1
+    private static int buscar(String s, int start, int end) {
+        int lo = 0, hi = PALABRAS.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = comparar(PALABRAS[mid], s, start, end);
+            if (cmp == 0)
+                return mid;
+            if (cmp < 0)
+                lo = mid + 1;
+            else
+                hi = mid - 1;
+        }
+        return -1;
+    }
+
+    private static int comparar(String palabra, String s, int start, int end) {
+        int n = Math.min(palabra.length(), end - start);
+        for (int i = 0; i < n; ++i) {
+            int d = palabra.charAt(i) - plegar(s.charAt(start + i));
+            if (d != 0)
+                return d;
+        }
+        return palabra.length() - (end - start);
+    }
+
+    //Minúscula y sin tilde
+    private static char plegar(char c) {
+        c = Character.toLowerCase(c);
+        switch (c) {
+            case 'á': case 'à': case 'ä': case 'â':
+                return 'a';
+            case 'é': case 'è': case 'ë': case 'ê':
+                return 'e';
+            case 'í': case 'ì': case 'ï': case 'î':
+                return 'i';
+            case 'ó': case 'ò': case 'ö': case 'ô':
+                return 'o';
+            case 'ú': case 'ù': case 'ü': case 'û':
+                return 'u';
+            default:
+                return c;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.example.laura.sugaraid;
+
+import java.util.Locale;
+
+/**
+ * Estadísticas de las lecturas del último día, la última semana y el último trimestre, actualizadas
+ * con cada lectura en lugar de recorrer el historial: media, desviación típica, porcentaje de lecturas
+ * en rango (RANGO_MIN a RANGO_MAX mg/dl, el objetivo habitual), y hemoglobina glicosilada estimada
+ * con la fórmula del estudio ADAG, HbA1c = (media + 46.7) / 28.7, sobre el trimestre.
+ *
+ * Las lecturas del trimestre se guardan en un buffer circular de momentos y niveles, y cada ventana
+ * sabe dónde empieza y lleva sus sumas (de niveles y de cuadrados, enteras, así que la varianza es
+ * exacta). Una lectura nueva se suma a las tres ventanas, y las que se quedan fuera se restan al
+ * avanzar: cada lectura entra y sale una vez de cada ventana, O(1) amortizado.
+ *
+ * Las lecturas deben llegar ordenadas por tiempo, como las da GlucoseStore. No es seguro usarlo desde
+ * varios hilos.
+ */
+public final class GlucoseStats {
+
+    public static final int DIA = 0;
+    public static final int SEMANA = 1;
+    public static final int TRIMESTRE = 2;
+
+    public static final long DIA_MS = 24L * 3600 * 1000;
+    public static final long SEMANA_MS = 7 * DIA_MS;
+    public static final long TRIMESTRE_MS = 90 * DIA_MS;
+    private static final long[] LONGITUD = {DIA_MS, SEMANA_MS, TRIMESTRE_MS};
+
+    public static final int RANGO_MIN = 70;
+    public static final int RANGO_MAX = 180;
+
+    //Lecturas mínimas para hablar de la semana, del día frente a la semana y de la HbA1c
+    static final int MIN_SEMANA = 3;
+    static final int MIN_DIA = 2;
+    static final int MIN_HBA1C = 30;
+    //Diferencia de la media del día con la de la semana a partir de la que se dice que sube o baja
+    static final double TENDENCIA = 10;
+    //Coeficiente de variación a partir del cual los niveles varían demasiado
+    static final double VARIACION_ALTA = 0.36;
+
+    //Lecturas del trimestre: la lectura i está en la posición i & mask
+    private long[] tiempos = new long[64];
+    private short[] niveles = new short[64];
+    private int mask = 63;
+    private long fin = 0;
+
+    //Por ventana: primera lectura, número de lecturas, sumas y lecturas en rango
+    private final long[] inicio = new long[3];
+    private final int[] n = new int[3];
+    private final long[] suma = new long[3];
+    private final long[] cuadrados = new long[3];
+    private final int[] enRango = new int[3];
+
+    private static final Locale ESPAÑOL = new Locale("es", "ES");
+
+    /**
+     * Añade una lectura (tiempo en ms, no anterior al de la última)
+     */
+    public void add(long tiempo, int nivel) {
+        advance(tiempo);
+        if (fin - inicio[TRIMESTRE] == tiempos.length)
+            grow();
+        int k = (int) (fin & mask);
+        tiempos[k] = tiempo;
+        niveles[k] = (short) nivel;
+        fin++;
+        boolean rango = nivel >= RANGO_MIN && nivel <= RANGO_MAX;
+        for (int w = 0; w < 3; ++w) {
+            n[w]++;
+            suma[w] += nivel;
+            cuadrados[w] += (long) nivel * nivel;
+            if (rango)
+                enRango[w]++;
+        }
+    }
+
+    /**
+     * Quita de cada ventana las lecturas de hace más de su longitud respecto a ahora
+     */
+    public void advance(long ahora) {
+        for (int w = 0; w < 3; ++w) {
+            long limite = ahora - LONGITUD[w];
+            while (inicio[w] < fin && tiempos[(int) (inicio[w] & mask)] <= limite) {
+                int nivel = niveles[(int) (inicio[w] & mask)];
+                n[w]--;
+                suma[w] -= nivel;
+                cuadrados[w] -= (long) nivel * nivel;
+                if (nivel >= RANGO_MIN && nivel <= RANGO_MAX)
+                    enRango[w]--;
+                inicio[w]++;
+            }
+        }
+    }
+
+    public int count(int ventana) {
+        return n[ventana];
+    }
+
+    /**
+     * Nivel medio en mg/dl (0 sin lecturas)
+     */
+    public double media(int ventana) {
+        return n[ventana] == 0 ? 0 : (double) suma[ventana] / n[ventana];
+    }
+
+    public double desviacion(int ventana) {
+        int k = n[ventana];
+        if (k == 0)
+            return 0;
+        //n * Σx² - (Σx)² es exacto con enteros
+        long d = k * cuadrados[ventana] - suma[ventana] * suma[ventana];
+        return Math.sqrt((double) d / ((double) k * k));
+    }
+
+    /**
+     * Parte de las lecturas entre RANGO_MIN y RANGO_MAX, de 0 a 1 (con lecturas de glucómetro, y no
+     * un sensor continuo, es la aproximación del tiempo en rango)
+     */
+    public double enRango(int ventana) {
+        return n[ventana] == 0 ? 0 : (double) enRango[ventana] / n[ventana];
+    }
+
+    /**
+     * HbA1c estimada en % a partir de la media del trimestre, o 0 con menos de MIN_HBA1C lecturas
+     */
+    public double hba1c() {
+        return n[TRIMESTRE] < MIN_HBA1C ? 0 : (media(TRIMESTRE) + 46.7) / 28.7;
+    }
+
+    /**
+     * 1 si la media del día está claramente por encima de la de la semana, -1 si está por debajo, 0 si
+     * no hay diferencia o no hay lecturas suficientes
+     */
+    public int tendencia() {
+        if (n[DIA] < MIN_DIA || n[SEMANA] < MIN_SEMANA || n[SEMANA] == n[DIA])
+            return 0;
+        double d = media(DIA) - media(SEMANA);
+        return d > TENDENCIA ? 1 : d < -TENDENCIA ? -1 : 0;
+    }
+
+    /**
+     * Resumen para decir al usuario, o null si todavía no hay lecturas suficientes de la semana
+     */
+    public String resumen(long ahora) {
+        advance(ahora);
+        if (n[SEMANA] < MIN_SEMANA)
+            return null;
+        StringBuilder sb = new StringBuilder();
+        sb.append("En los últimos siete días su nivel medio es ").append(Math.round(media(SEMANA)))
+                .append(", y el ").append(Math.round(100 * enRango(SEMANA)))
+                .append(" por ciento de las lecturas está entre ").append(RANGO_MIN).append(" y ").append(RANGO_MAX).append('.');
+        int t = tendencia();
+        if (t > 0)
+            sb.append(" Hoy está más alto que la media de la semana.");
+        else if (t < 0)
+            sb.append(" Hoy está más bajo que la media de la semana.");
+        if (desviacion(SEMANA) > VARIACION_ALTA * media(SEMANA))
+            sb.append(" Sus niveles están variando mucho esta semana.");
+        double a1c = hba1c();
+        if (a1c > 0)
+            sb.append(String.format(ESPAÑOL, " Su hemoglobina glicosilada estimada es %.1f por ciento.", a1c));
+        return sb.toString();
+    }
+
+    //Dobla el buffer, dejando cada lectura en la posición que le toca con la nueva máscara
+    private void grow() {
+        int capacidad = tiempos.length * 2;
+        long[] t = new long[capacidad];
+        short[] v = new short[capacidad];
+        int m = capacidad - 1;
+        for (long i = inicio[TRIMESTRE]; i < fin; ++i) {
+            t[(int) (i & m)] = tiempos[(int) (i & mask)];
+            v[(int) (i & m)] = niveles[(int) (i & mask)];
+        }
+        tiempos = t;
+        niveles = v;
+        mask = m;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "day n=%d mean=%.1f; week n=%d mean=%.1f sd=%.1f tir=%.2f; quarter n=%d hba1c=%.2f",
+                n[DIA], media(DIA), n[SEMANA], media(SEMANA), desviacion(SEMANA), enRango(SEMANA), n[TRIMESTRE], hba1c());
+    }
+}
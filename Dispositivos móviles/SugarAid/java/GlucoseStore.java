@@ -0,0 +1,234 @@
+package com.example.laura.sugaraid;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Historial de lecturas de azúcar en disco, solo para añadir al final. Cada lectura ocupa un registro
+ * de RECORD bytes (momento, nivel, dosis recomendadas y contexto) en ficheros de SEGMENT_RECORDS
+ * registros que se abren con memoria mapeada, así que añadir una lectura es escribir 16 bytes en su
+ * sitio, sin buscar ni copiar nada.
+ *
+ * Añadir es duradero: el registro se escribe y se lleva a disco, y solo después se marca como completo
+ * (último byte) y se vuelve a llevar a disco. Al abrir, los registros sin marca (la aplicación se cerró
+ * a medias) no cuentan y se sobrescriben con la siguiente lectura.
+ *
+ * Las lecturas están ordenadas por tiempo (si el reloj va hacia atrás, se guardan con el momento de la
+ * anterior), y en memoria se guarda el momento de uno de cada INDEX_STEP registros: una consulta por
+ * intervalo es una búsqueda binaria en ese índice y como mucho INDEX_STEP lecturas más, aunque el
+ * historial sea de años.
+ *
+ * Todos los métodos están sincronizados.
+ */
+public final class GlucoseStore implements Closeable {
+
+    /**
+     * Recibe las lecturas de una consulta, de la más antigua a la más reciente
+     */
+    public interface Visitor {
+        void lectura(long tiempo, int nivel, int dosisMañana, int dosisNoche, int contexto);
+    }
+
+    //Contexto de la lectura
+    public static final int SIN_CONTEXTO = 0;
+    public static final int AYUNAS = 1;
+    public static final int ANTES_DE_COMER = 2;
+    public static final int DESPUES_DE_COMER = 3;
+    public static final int ANTES_DE_DORMIR = 4;
+
+    //Registro: momento (ms desde 1970), nivel, dosis de mañana y de noche, contexto y marca de completo
+    static final int RECORD = 16;
+    private static final int TIEMPO = 0;
+    private static final int NIVEL = 8;
+    private static final int DOSIS_MAÑANA = 10;
+    private static final int DOSIS_NOCHE = 12;
+    private static final int CONTEXTO = 14;
+    private static final int MARCA = 15;
+    private static final byte COMPLETO = (byte) 0xA5;
+
+    //1 MB por fichero: unos 65000 registros, años de lecturas
+    static final int SEGMENT_RECORDS = 1 << 16;
+    //Cada cuántos registros se guarda el momento en el índice
+    static final int INDEX_STEP = 64;
+
+    private static final String PREFIX = "lecturas-";
+    private static final String SUFFIX = ".seg";
+
+    private final File dir;
+    private final ArrayList<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    //Momento del registro i * INDEX_STEP
+    private long[] index = new long[64];
+    private int indexSize = 0;
+    private long size = 0;
+    private long last = Long.MIN_VALUE;
+    private boolean closed = false;
+
+    /**
+     * Abre (o crea) el historial del directorio dir
+     */
+    public GlucoseStore(File dir) throws IOException {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create " + dir);
+
+        //Los ficheros se numeran desde 0 sin huecos
+        int n = 0;
+        while (new File(dir, segmentName(n)).exists())
+            n++;
+        for (int s = 0; s < n; ++s)
+            segments.add(map(s));
+
+        if (n > 0) {
+            //Los registros completos van seguidos desde el principio: se busca el primero sin marca
+            MappedByteBuffer b = segments.get(n - 1);
+            int lo = 0, hi = SEGMENT_RECORDS;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (b.get(mid * RECORD + MARCA) == COMPLETO)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            size = (long) (n - 1) * SEGMENT_RECORDS + lo;
+        }
+        for (long i = 0; i < size; i += INDEX_STEP)
+            addIndex(tiempo(i));
+        if (size > 0)
+            last = tiempo(size - 1);
+    }
+
+    /**
+     * Añade una lectura y la lleva a disco
+     * @param tiempo momento en ms desde 1970 (System.currentTimeMillis())
+     * @return momento con el que se ha guardado (no puede ser anterior al de la última lectura)
+     */
+    public synchronized long append(long tiempo, int nivel, int dosisMañana, int dosisNoche, int contexto) throws IOException {
+        if (closed)
+            throw new IOException("Store closed");
+        if (tiempo < last)
+            tiempo = last;
+        int s = (int) (size / SEGMENT_RECORDS);
+        int pos = (int) (size % SEGMENT_RECORDS) * RECORD;
+        if (s == segments.size())
+            segments.add(map(s));
+        MappedByteBuffer b = segments.get(s);
+
+        b.putLong(pos + TIEMPO, tiempo);
+        b.putShort(pos + NIVEL, corto(nivel));
+        b.putShort(pos + DOSIS_MAÑANA, corto(dosisMañana));
+        b.putShort(pos + DOSIS_NOCHE, corto(dosisNoche));
+        b.put(pos + CONTEXTO, (byte) contexto);
+        b.force();
+        //Solo cuenta cuando el resto del registro ya está en disco
+        b.put(pos + MARCA, COMPLETO);
+        b.force();
+
+        if (size % INDEX_STEP == 0)
+            addIndex(tiempo);
+        size++;
+        last = tiempo;
+        return tiempo;
+    }
+
+    /**
+     * Número de lecturas guardadas (0 si está cerrado)
+     */
+    public synchronized long size() {
+        return closed ? 0 : size;
+    }
+
+    /**
+     * Número de lecturas con desde <= tiempo < hasta (0 si está cerrado)
+     */
+    public synchronized long count(long desde, long hasta) {
+        if (closed || hasta <= desde)
+            return 0;
+        return primera(hasta) - primera(desde);
+    }
+
+    /**
+     * Pasa a visitor las lecturas con desde <= tiempo < hasta, de la más antigua a la más reciente
+     * @return número de lecturas (0 si está cerrado)
+     */
+    public synchronized int scan(long desde, long hasta, Visitor visitor) {
+        if (closed)
+            return 0;
+        int n = 0;
+        for (long i = primera(desde); i < size; ++i, ++n) {
+            MappedByteBuffer b = segments.get((int) (i / SEGMENT_RECORDS));
+            int pos = (int) (i % SEGMENT_RECORDS) * RECORD;
+            long t = b.getLong(pos + TIEMPO);
+            if (t >= hasta)
+                break;
+            visitor.lectura(t, b.getShort(pos + NIVEL), b.getShort(pos + DOSIS_MAÑANA),
+                    b.getShort(pos + DOSIS_NOCHE), b.get(pos + CONTEXTO));
+        }
+        return n;
+    }
+
+    /**
+     * Las lecturas ya están en disco; solo se sueltan los ficheros. Después no se puede añadir, y las
+     * consultas no devuelven nada
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        segments.clear();
+    }
+
+    //Posición de la primera lectura con tiempo >= t (size si no hay ninguna)
+    private long primera(long t) {
+        //Primera entrada del índice con tiempo >= t: la lectura está entre la entrada anterior y esta
+        int lo = 0, hi = indexSize;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (index[mid] < t)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        long i = lo == 0 ? 0 : (long) (lo - 1) * INDEX_STEP;
+        while (i < size && tiempo(i) < t)
+            i++;
+        return i;
+    }
+
+    private long tiempo(long i) {
+        return segments.get((int) (i / SEGMENT_RECORDS)).getLong((int) (i % SEGMENT_RECORDS) * RECORD + TIEMPO);
+    }
+
+    private void addIndex(long tiempo) {
+        if (indexSize == index.length)
+            index = Arrays.copyOf(index, index.length * 2);
+        index[indexSize++] = tiempo;
+    }
+
+    private static short corto(int v) {
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, v));
+    }
+
+    private static String segmentName(int s) {
+        return String.format(Locale.US, "%s%06d%s", PREFIX, s, SUFFIX);
+    }
+
+    //Abre el fichero s con su tamaño completo (los registros nuevos son ceros, sin marca); la
+    //proyección sigue siendo válida después de cerrar el fichero
+    private MappedByteBuffer map(int s) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(new File(dir, segmentName(s)), "rw");
+        try {
+            long length = (long) SEGMENT_RECORDS * RECORD;
+            if (file.length() != length)
+                file.setLength(length);
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -1,14 +1,10 @@
 package com.example.laura.sugaraid;
 
-import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.speech.RecognizerIntent;
-import android.speech.SpeechRecognizer;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -18,22 +14,27 @@ import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.example.laura.voice.TurnLatency;
+import com.example.laura.voice.VoiceActivity;
+import com.example.laura.voice.VoiceDialogue;
+
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Locale;
 
 public class MainActivity extends VoiceActivity {
 
     private static final String LOGTAG = "TALKBACK";
-    private static Integer ID_PROMPT_QUERY = 0;
-    private static Integer ID_PROMPT_INFO = 1;
-    private long startListeningTime = 0;
+    private static Integer ID_PROMPT_INFO = GlucoseDialogue.ID_PROMPT_INFO;
     TextView t_nivel, t_accion;
     ImageView icono;
     //Variables para los ajustes
     private static final int RESULT_SETTINGS = 1;
-    private int dosis_mañana;
-    private int dosis_noche;
-    private int dosis_diaria;
+    //Lógica del diálogo, sin Android; aquí solo se le pasan los eventos de voz
+    private GlucoseDialogue dialogue;
+    //Historial de lecturas (null si no se ha podido abrir)
+    private GlucoseStore lecturas;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -41,6 +42,25 @@ public class MainActivity extends VoiceActivity {
         setContentView(R.layout.activity_main);
 
         initSpeechInputOutput(this);
+        //Sintetizamos por adelantado los mensajes fijos para que suenen sin esperar al TTS
+        cachePrompt(getResources().getString(R.string.mensaje_inicial), "ES");
+        cachePrompt(getResources().getString(R.string.mensaje_azucar_alta), "ES");
+        try {
+            lecturas = new GlucoseStore(new File(getFilesDir(), "lecturas"));
+        } catch (IOException e) {
+            Log.e(LOGTAG, "Readings history not accessible: " + e.getMessage());
+        }
+        //Las estadísticas empiezan con las lecturas del último trimestre; después se actualizan con cada una
+        final GlucoseStats estadisticas = new GlucoseStats();
+        if (lecturas != null) {
+            lecturas.scan(System.currentTimeMillis() - GlucoseStats.TRIMESTRE_MS, Long.MAX_VALUE, new GlucoseStore.Visitor() {
+                public void lectura(long tiempo, int nivel, int dosisMañana, int dosisNoche, int contexto) {
+                    estadisticas.add(tiempo, nivel);
+                }
+            });
+        }
+        dialogue = new GlucoseDialogue(voice, host, estadisticas, getResources().getString(R.string.mensaje_inicial),
+                getResources().getString(R.string.mensaje_azucar_alta));
         setSpeakButton();
     }
 
@@ -52,6 +72,10 @@ public class MainActivity extends VoiceActivity {
                 Intent i = new Intent(this, UserSettingsActivity.class);
                 startActivity(i);
                 break;
+
+            case R.id.menu_latency:
+                showLatencies();
+                break;
         }
 
         return true;
@@ -61,6 +85,8 @@ public class MainActivity extends VoiceActivity {
     public void onDestroy() {
         super.onDestroy();
         shutdown();
+        if (lecturas != null)
+            lecturas.close();
     }
 
     @Override
@@ -69,16 +95,52 @@ public class MainActivity extends VoiceActivity {
         return true;
     }
 
-    void dosisDiaria(){
+    //Pantalla y ajustes para el diálogo
+    private final GlucoseDialogue.Host host = new GlucoseDialogue.Host() {
+        public int pesoUsuario() {
+            SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(MainActivity.this);
+            return Integer.parseInt(sharedPrefs.getString("pesoUsuario", "NULL"));
+        }
 
-        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(this);
+        public void mostrarConsejo(int nivel, String accion, int consejo) {
+            t_nivel = (TextView)findViewById(R.id.nivel);
+            t_accion = (TextView)findViewById(R.id.accion);
+            icono = (ImageView)findViewById(R.id.icono);
+
+            t_nivel.setText("Su nivel de azúcar es "+Integer.toString(nivel));
+            t_accion.setText(accion);
+            if (consejo == GlucoseDialogue.ROJO)
+                icono.setImageResource(R.drawable.erojo);
+            else if (consejo == GlucoseDialogue.VERDE)
+                icono.setImageResource(R.drawable.verde);
+            else
+                icono.setImageResource(R.drawable.amari);
+        }
 
-        int peso = Integer.parseInt(sharedPrefs.getString("pesoUsuario", "NULL"));
+        public void mostrarError(String mensaje) {
+            runOnUiThread(new Runnable() { //Toasts must be in the main thread
+                public void run() {
+                    Toast.makeText(getApplicationContext(), "Speech recognition error", Toast.LENGTH_LONG).show();
+                }
+            });
+            Log.e(LOGTAG, "Error when attempting to listen: " + mensaje);
+        }
 
-        dosis_diaria = (int)(peso*0.4);
-        dosis_mañana = dosis_diaria*2/3;
-        dosis_noche = dosis_diaria/3;
-    }
+        public long ahora() {
+            return System.currentTimeMillis();
+        }
+
+        public long guardarLectura(long tiempo, int nivel, int dosisMañana, int dosisNoche) {
+            if (lecturas == null)
+                return tiempo;
+            try {
+                return lecturas.append(tiempo, nivel, dosisMañana, dosisNoche, GlucoseStore.SIN_CONTEXTO);
+            } catch (IOException e) {
+                Log.e(LOGTAG, "Reading could not be saved: " + e.getMessage());
+                return tiempo;
+            }
+        }
+    };
 
     /////////////////////////////////////////////////////////////////////////////////////
     ///                                  VOZ                                          ///
@@ -94,43 +156,53 @@ public class MainActivity extends VoiceActivity {
         speak.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                //Ask the user to speak
-                try {
-                    speak(getResources().getString(R.string.mensaje_inicial), "ES", ID_PROMPT_QUERY);
-                } catch (Exception e) {
-                    Log.e(LOGTAG, "TTS not accessible");
-                }
+                dialogue.start();
             }
         });
     }
 
     /**
      * Checks whether the device is connected to Internet (returns true) or not (returns false)
-     * From: http://developer.android.com/training/monitoring-device-state/connectivity-monitoring.html
+     * The state is kept up to date by the voice service, so it can be checked before every turn
      */
     public boolean deviceConnectedToInternet() {
-        ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
-        NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
-        return (activeNetwork != null && activeNetwork.isConnectedOrConnecting());
+        return isOnline();
     }
 
+    /**
+     * TTS and ASR for the dialogue
+     */
+    private final VoiceDialogue.Voice voice = new VoiceDialogue.Voice() {
+        public void speak(String text, String languageCode, int id, int priority) {
+            try {
+                MainActivity.this.speak(text, languageCode, id, priority);
+            } catch (Exception e) {
+                Log.e(LOGTAG, "TTS not accessible");
+            }
+        }
+
+        public void listen(Locale language, int maxResults) {
+            startListening(language, maxResults);
+        }
+    };
+
     /**
      * Starts listening for any user input.
      * When it recognizes something, the <code>processAsrResult</code> method is invoked.
      * If there is any error, the <code>onAsrError</code> method is invoked.
      */
-    private void startListening(){
+    private void startListening(Locale language, int maxResults){
 
-        if(deviceConnectedToInternet()){
+        //Sin conexión se usa el reconocedor del dispositivo, si la versión de Android lo permite
+        if(deviceConnectedToInternet() || canListenOffline()){
             try {
 
-				/*Start listening, with the following default parameters:
-					* Language = English
+				/*Start listening, with the following parameters:
+					* Language = Spanish, the language of the prompts
 					* Recognition model = Free form,
-					* Number of results = 1 (we will use the best result to perform the search)
+					* Number of results = GlucoseDialogue.MAX_RESULTADOS (the reading is searched in all of them)
 					*/
-                startListeningTime = System.currentTimeMillis();
-                listen(Locale.ENGLISH, RecognizerIntent.LANGUAGE_MODEL_FREE_FORM, 1); //Start listening
+                listen(language, RecognizerIntent.LANGUAGE_MODEL_FREE_FORM, maxResults); //Start listening
             } catch (Exception e) {
                 this.runOnUiThread(new Runnable() {  //Toasts must be in the main thread
                     public void run() {
@@ -139,7 +211,7 @@ public class MainActivity extends VoiceActivity {
                 });
 
                 Log.e(LOGTAG,"ASR could not be started");
-                try { speak("Speech recognition could not be started", "EN", ID_PROMPT_INFO); } catch (Exception ex) { Log.e(LOGTAG, "TTS not accessible"); }
+                try { speak("Speech recognition could not be started", "EN", ID_PROMPT_INFO, PRIORITY_STATUS); } catch (Exception ex) { Log.e(LOGTAG, "TTS not accessible"); }
 
             }
         } else {
@@ -149,7 +221,7 @@ public class MainActivity extends VoiceActivity {
                     Toast.makeText(getApplicationContext(),"Please check your Internet connection", Toast.LENGTH_SHORT).show();
                 }
             });
-            try { speak("Please check your Internet connection", "EN", ID_PROMPT_INFO); } catch (Exception ex) { Log.e(LOGTAG, "TTS not accessible"); }
+            try { speak("Please check your Internet connection", "EN", ID_PROMPT_INFO, PRIORITY_STATUS); } catch (Exception ex) { Log.e(LOGTAG, "TTS not accessible"); }
             Log.e(LOGTAG, "Device not connected to Internet");
 
         }
@@ -167,75 +239,7 @@ public class MainActivity extends VoiceActivity {
 
     @Override
     public void processAsrResults(ArrayList<String> nBestList, float[] nBestConfidences) {
-
-        if(nBestList != null){
-
-                t_nivel = (TextView)findViewById(R.id.nivel);
-                t_accion = (TextView)findViewById(R.id.accion);
-                icono = (ImageView)findViewById(R.id.icono);
-                int nivel = Integer.parseInt(nBestList.get(0));
-                dosisDiaria();
-
-                t_nivel.setText("Su nivel de azúcar es "+Integer.toString(nivel));
-
-                try {
-                    speak("Su nivel de azúcar es " + nBestList.get(0), "ES", ID_PROMPT_INFO);
-                } catch (Exception e) {
-                    Log.e(LOGTAG, "TTS not accessible");
-                }
-
-                if (nivel > 145) {
-
-                    t_accion.setText("Póngase en contacto con su médico");
-                    icono.setImageResource(R.drawable.erojo);
-
-                    try {
-                        speak(getResources().getString(R.string.mensaje_azucar_alta), "ES", ID_PROMPT_INFO);
-                    } catch (Exception e) {
-                        Log.e(LOGTAG, "TTS not accessible");
-                    }
-
-                }
-
-                else if (nivel >= 100 && nivel <= 145) {
-
-                    t_accion.setText("Tomar "+dosis_mañana+" unidades por la mañana y "+dosis_noche+ " unidades por la noche, antes de desayunar y cenar");
-                    icono.setImageResource(R.drawable.amari);
-
-                    try {
-                        speak("Su nivel de azúcar está un poco alto. Debe tomar "+dosis_mañana+" unidades de insulina por la mañana y "+dosis_noche+ " unidades por la noche, antes de desayunar y cenar","ES", ID_PROMPT_INFO);
-                    } catch (Exception e) {
-                        Log.e(LOGTAG, "TTS not accessible");
-                    }
-
-                }
-
-                else if (nivel < 100 && nivel >= 70) {
-
-                    t_accion.setText("Tomar "+dosis_mañana+" unidades por la mañana antes de desayunar");
-                    icono.setImageResource(R.drawable.verde);
-
-                    try {
-                        speak("Su nivel de azúcar es normal. Debe tomar "+dosis_mañana+" unidades de insulina por la mañana antes de desayunar","ES", ID_PROMPT_INFO);
-                    } catch (Exception e) {
-                        Log.e(LOGTAG, "TTS not accessible");
-                    }
-
-                }
-
-                else {
-
-                    t_accion.setText("Tomar "+dosis_mañana+" unidades y un vaso de agua con azúcar antes de desayunar");
-                    icono.setImageResource(R.drawable.amari);
-
-                    try {
-                        speak("Su nivel de azúcar está un poco bajo. Debe tomar "+dosis_mañana+" unidades de insulina y un vaso de agua con azúcar antes de desayunar","ES", ID_PROMPT_INFO);
-                    } catch (Exception e) {
-                        Log.e(LOGTAG, "TTS not accessible");
-                    }
-
-                }
-        }
+        dialogue.processAsrResults(nBestList, nBestConfidences);
     }
 
     @Override
@@ -245,64 +249,16 @@ public class MainActivity extends VoiceActivity {
 
     @Override
     public void processAsrError(int errorCode) {
-
-        //Possible bug in Android SpeechRecognizer: NO_MATCH errors even before the the ASR
-        // has even tried to recognized. We have adopted the solution proposed in:
-        // http://stackoverflow.com/questions/31071650/speechrecognizer-throws-onerror-on-the-first-listening
-        long duration = System.currentTimeMillis() - startListeningTime;
-        if (duration < 500 && errorCode == SpeechRecognizer.ERROR_NO_MATCH) {
-            Log.e(LOGTAG, "Doesn't seem like the system tried to listen at all. duration = " + duration + "ms. Going to ignore the error");
-            stopListening();
-        } else {
-            String errorMsg = "";
-            switch (errorCode) {
-                case SpeechRecognizer.ERROR_AUDIO:
-                    errorMsg = "Audio recording error";
-                case SpeechRecognizer.ERROR_CLIENT:
-                    errorMsg = "Unknown client side error";
-                case SpeechRecognizer.ERROR_INSUFFICIENT_PERMISSIONS:
-                    errorMsg = "Insufficient permissions";
-                case SpeechRecognizer.ERROR_NETWORK:
-                    errorMsg = "Network related error";
-                case SpeechRecognizer.ERROR_NETWORK_TIMEOUT:
-                    errorMsg = "Network operation timed out";
-                case SpeechRecognizer.ERROR_NO_MATCH:
-                    errorMsg = "No recognition result matched";
-                case SpeechRecognizer.ERROR_RECOGNIZER_BUSY:
-                    errorMsg = "RecognitionService busy";
-                case SpeechRecognizer.ERROR_SERVER:
-                    errorMsg = "Server sends error status";
-                case SpeechRecognizer.ERROR_SPEECH_TIMEOUT:
-                    errorMsg = "No speech input";
-                default:
-                    errorMsg = ""; //Another frequent error that is not really due to the ASR, we will ignore it
-            }
-            if (errorMsg != "") {
-                this.runOnUiThread(new Runnable() { //Toasts must be in the main thread
-                    public void run() {
-                        Toast.makeText(getApplicationContext(), "Speech recognition error", Toast.LENGTH_LONG).show();
-                    }
-                });
-
-                Log.e(LOGTAG, "Error when attempting to listen: " + errorMsg);
-                try {
-                    speak(errorMsg, "EN", ID_PROMPT_INFO);
-                } catch (Exception e) {
-                    Log.e(LOGTAG, "TTS not accessible");
-                }
-            }
-        }
+        dialogue.processAsrError(errorCode);
     }
 
     @Override
-    public void onTTSDone(String uttId) {
-        if(uttId.equals(ID_PROMPT_QUERY.toString())) {
-            runOnUiThread(new Runnable() {
-                public void run() {
-                    startListening();
-                }
-            });
-        }
+    public void onTTSDone(final String uttId) {
+        runOnUiThread(new Runnable() {
+            public void run() {
+                dialogue.onTTSDone(uttId);
+            }
+        });
     }
 
     @Override
@@ -313,5 +269,8 @@ public class MainActivity extends VoiceActivity {
     @Override
     public void onTTSStart(String uttId) {
         Log.e(LOGTAG, "TTS starts speaking");
+        //El primer mensaje tras un reconocimiento es la respuesta al usuario (su nivel y el consejo)
+        if(uttId.equals(ID_PROMPT_INFO.toString()))
+            TurnLatency.get().mark(TurnLatency.RESPONSE);
     }
 }
@@ -0,0 +1,52 @@
+package com.example.laura.voice;
+
+import android.speech.SpeechRecognizer;
+
+/**
+ * Fallo de una escucha pedida con VoiceActivity.listenAsync: el código de error de SpeechRecognizer
+ * (ERROR_NO_MATCH, ERROR_SPEECH_TIMEOUT...) después de los reintentos de {@link RecognizerRecovery}
+ */
+public class AsrException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int errorCode;
+
+    public AsrException(int errorCode) {
+        super("Speech recognition error " + errorCode);
+        this.errorCode = errorCode;
+    }
+
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    /**
+     * Mensaje para el usuario de un código de error de SpeechRecognizer, o "" si no hace falta decir
+     * nada (errores que no son realmente del reconocedor)
+     */
+    public static String describe(int errorCode) {
+        switch (errorCode) {
+            case SpeechRecognizer.ERROR_AUDIO:
+                return "Audio recording error";
+            case SpeechRecognizer.ERROR_CLIENT:
+                return "Unknown client side error";
+            case SpeechRecognizer.ERROR_INSUFFICIENT_PERMISSIONS:
+                return "Insufficient permissions";
+            case SpeechRecognizer.ERROR_NETWORK:
+                return "Network related error";
+            case SpeechRecognizer.ERROR_NETWORK_TIMEOUT:
+                return "Network operation timed out";
+            case SpeechRecognizer.ERROR_NO_MATCH:
+                return "No recognition result matched";
+            case SpeechRecognizer.ERROR_RECOGNIZER_BUSY:
+                return "RecognitionService busy";
+            case SpeechRecognizer.ERROR_SERVER:
+                return "Server sends error status";
+            case SpeechRecognizer.ERROR_SPEECH_TIMEOUT:
+                return "No speech input";
+            default:
+                return ""; //Another frequent error that is not really due to the ASR, we will ignore it
+        }
+    }
+}
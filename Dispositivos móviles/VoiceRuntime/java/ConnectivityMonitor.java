@@ -0,0 +1,120 @@
+package com.example.laura.voice;
+
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Estado de la conexión a Internet, guardado en memoria y actualizado por el sistema cada vez que
+ * cambia, para que preguntar antes de cada turno de voz no cueste una consulta al ConnectivityManager.
+ *
+ * Desde Android 5 se usa un NetworkCallback que avisa de las redes con acceso a Internet que
+ * aparecen y desaparecen (puede haber varias a la vez, p.ej. Wi-Fi y datos mientras se cambia de una
+ * a otra: se está conectado mientras quede alguna). En versiones anteriores se escucha
+ * CONNECTIVITY_ACTION. Los avisos llegan en otro hilo; {@link #isOnline()} solo lee un volatile.
+ */
+public final class ConnectivityMonitor {
+
+    private static final String LOGTAG = "CONNECTIVITY";
+
+    private final Context context;
+    private final ConnectivityManager cm;
+    private volatile boolean online = true;
+    //Redes con Internet de las que ha avisado el NetworkCallback
+    private final Set<Network> networks = new HashSet<Network>();
+    private ConnectivityManager.NetworkCallback callback;
+    private BroadcastReceiver receiver;
+
+    public ConnectivityMonitor(Context context) {
+        this.context = context.getApplicationContext();
+        cm = (ConnectivityManager) this.context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    /**
+     * Empieza a seguir los cambios de red, partiendo del estado actual
+     */
+    public synchronized void start() {
+        if (callback != null || receiver != null)
+            return;
+        online = query();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+            registerCallback();
+        else {
+            receiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context ctx, Intent intent) {
+                    setOnline(query());
+                }
+            };
+            context.registerReceiver(receiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        }
+    }
+
+    public synchronized void stop() {
+        if (callback != null) {
+            cm.unregisterNetworkCallback(callback);
+            callback = null;
+            networks.clear();
+        }
+        if (receiver != null) {
+            context.unregisterReceiver(receiver);
+            receiver = null;
+        }
+    }
+
+    /**
+     * Si hay alguna red con acceso a Internet (o conectándose), según el último aviso del sistema
+     */
+    public boolean isOnline() {
+        return online;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void registerCallback() {
+        callback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                synchronized (networks) {
+                    networks.add(network);
+                    setOnline(true);
+                }
+            }
+
+            @Override
+            public void onLost(Network network) {
+                synchronized (networks) {
+                    networks.remove(network);
+                    setOnline(!networks.isEmpty());
+                }
+            }
+        };
+        NetworkRequest request = new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .build();
+        cm.registerNetworkCallback(request, callback);
+    }
+
+    private void setOnline(boolean value) {
+        if (online != value)
+            Log.i(LOGTAG, value ? "Online" : "Offline");
+        online = value;
+    }
+
+    //Consulta directa, solo al empezar y en versiones sin NetworkCallback
+    private boolean query() {
+        NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
+        return activeNetwork != null && activeNetwork.isConnectedOrConnecting();
+    }
+}
@@ -0,0 +1,278 @@
+package com.example.laura.voice;
+
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Ejecuta un {@link VoiceDialogue} en el ordenador, sin teléfono: hace de TTS (los mensajes terminan
+ * en cuanto se piden, pasando por el mismo PromptScheduler que VoiceActivity) y de reconocedor (cada
+ * escucha recibe la siguiente respuesta de un guion, que puede ser una lista N-best o un código de
+ * error). Los errores pasan por RecognizerRecovery como en la aplicación: los que se reintentan
+ * consumen la siguiente respuesta del guion sin llegar al diálogo, y no se espera el tiempo de
+ * reintento.
+ *
+ * Un turno empieza con {@link VoiceDialogue#start()} y termina cuando ni suena nada ni se está
+ * escuchando. Se mide cuántos turnos por segundo se ejecutan, cuánto tarda cada llamada a
+ * processAsrResults, processAsrError y onTTSDone, y cuántos bytes se reservan por turno (con
+ * com.sun.management.ThreadMXBean, si la máquina virtual lo tiene; se busca por reflexión porque esta
+ * librería se compila contra android.jar, que no tiene java.lang.management).
+ *
+ * Con {@link #setTranscript} se escribe lo que se dice y se reconoce, para comparar una ejecución
+ * corta con la anterior con diff. Solo se debe usar desde un hilo.
+ */
+public final class DialogueSimulator implements VoiceDialogue.Voice {
+
+    /**
+     * Respuesta del reconocedor a una escucha
+     */
+    public static final class Reply {
+        final ArrayList<String> nBest;
+        final float[] confidences;
+        final int errorCode;
+        //Tiempo que "ha escuchado" el reconocedor antes del error
+        final long listeningMs;
+
+        private Reply(ArrayList<String> nBest, float[] confidences, int errorCode, long listeningMs) {
+            this.nBest = nBest;
+            this.confidences = confidences;
+            this.errorCode = errorCode;
+            this.listeningMs = listeningMs;
+        }
+
+        /**
+         * Resultados, de más a menos probable; las confianzas bajan de 0.9 en 0.1
+         */
+        public static Reply say(String... hypotheses) {
+            float[] confidences = new float[hypotheses.length];
+            for (int i = 0; i < confidences.length; ++i)
+                confidences[i] = Math.max(0.1f, 0.9f - 0.1f * i);
+            return new Reply(new ArrayList<String>(Arrays.asList(hypotheses)), confidences, 0, 0);
+        }
+
+        /**
+         * Error tras varios segundos escuchando
+         */
+        public static Reply error(int errorCode) {
+            return error(errorCode, 5000);
+        }
+
+        /**
+         * Error tras listeningMs escuchando (un NO_MATCH con menos de medio segundo se reintenta)
+         */
+        public static Reply error(int errorCode, long listeningMs) {
+            return new Reply(null, null, errorCode, listeningMs);
+        }
+    }
+
+    //Un turno que no termina tras tantos eventos es un bucle del diálogo (p.ej. vuelve a preguntar
+    //siempre): se corta para que la medida siga
+    private static final int MAX_EVENTS_PER_TURN = 64;
+    //Identificadores de mensaje ya convertidos a String, para no reservarlos en cada speak (como
+    //TtsFrontEnd.utteranceId, que no se puede cargar fuera de Android)
+    private static final String[] IDS = new String[16];
+
+    static {
+        for (int i = 0; i < IDS.length; ++i)
+            IDS[i] = Integer.toString(i);
+    }
+
+    private final Reply[] script;
+    private int next = 0;
+    private VoiceDialogue dialogue;
+    private PrintStream transcript;
+
+    private final PromptScheduler scheduler;
+    //Mensaje que está "sonando" (el TTS falso solo tiene uno a la vez, como el de verdad)
+    private String playing;
+    private boolean listening;
+    private final RecognizerRecovery recovery = new RecognizerRecovery();
+
+    private final LatencyHistogram results = new LatencyHistogram();
+    private final LatencyHistogram errors = new LatencyHistogram();
+    private final LatencyHistogram ttsDone = new LatencyHistogram();
+    private long turns, truncated, retries, elapsedNanos, allocatedBytes;
+
+    //ThreadMXBean y su getThreadAllocatedBytes(long), o null si no se puede medir la memoria
+    private static Object threads;
+    private static Method allocated;
+
+    static {
+        try {
+            Object bean = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+            Class<?> sun = Class.forName("com.sun.management.ThreadMXBean");
+            if (sun.isInstance(bean)) {
+                sun.getMethod("setThreadAllocatedMemoryEnabled", boolean.class).invoke(bean, true);
+                allocated = sun.getMethod("getThreadAllocatedBytes", long.class);
+                threads = bean;
+            }
+        } catch (Exception e) {
+            //Android y otras máquinas virtuales: no se mide la memoria
+            allocated = null;
+        }
+    }
+
+    public DialogueSimulator(Reply... script) {
+        if (script.length == 0)
+            throw new IllegalArgumentException("Empty script");
+        this.script = script;
+        this.scheduler = new PromptScheduler(new PromptScheduler.Output() {
+            public boolean start(String text, Locale locale, String utteranceId) {
+                playing = utteranceId;
+                return true;
+            }
+
+            public void interrupt() {
+                playing = null;
+            }
+        }, Long.MAX_VALUE / 1000000L);
+    }
+
+    public void setDialogue(VoiceDialogue dialogue) {
+        this.dialogue = dialogue;
+    }
+
+    /**
+     * Escribe en out lo que se dice ("> ") y se reconoce ("< ", "! " para los errores); null para no
+     * escribir nada, que es como se mide
+     */
+    public void setTranscript(PrintStream out) {
+        this.transcript = out;
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    ///                         VOZ FALSA                                             ///
+    /////////////////////////////////////////////////////////////////////////////////////
+
+    public void speak(String text, String languageCode, int id, int priority) {
+        if (transcript != null)
+            transcript.println("> " + text);
+        scheduler.submit(text, Locale.ROOT, id >= 0 && id < IDS.length ? IDS[id] : Integer.toString(id), priority);
+    }
+
+    public void listen(Locale language, int maxResults) {
+        listening = true;
+        recovery.reset();
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    ///                         EJECUCIÓN                                             ///
+    /////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Ejecuta turns turnos seguidos, volviendo al principio del guion cuando se acaba
+     */
+    public void run(int turns) {
+        if (dialogue == null)
+            throw new IllegalStateException("No dialogue");
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < turns; ++i)
+            turn();
+        elapsedNanos += System.nanoTime() - start;
+        allocatedBytes += allocatedBytes() - bytes;
+        this.turns += turns;
+    }
+
+    private void turn() {
+        dialogue.start();
+        int events = 0;
+        while (playing != null || listening) {
+            if (++events > MAX_EVENTS_PER_TURN) {
+                truncated++;
+                scheduler.clear();
+                playing = null;
+                listening = false;
+                return;
+            }
+            if (playing != null) {
+                String id = playing;
+                playing = null;
+                scheduler.onStart(id);
+                scheduler.onDone(id);
+                long t = System.nanoTime();
+                dialogue.onTTSDone(id);
+                ttsDone.record(System.nanoTime() - t);
+            } else
+                recognize();
+        }
+    }
+
+    private void recognize() {
+        Reply r = script[next];
+        next = (next + 1) % script.length;
+        if (r.nBest == null) {
+            if (transcript != null)
+                transcript.println("! " + r.errorCode);
+            int action = recovery.onError(r.errorCode, r.listeningMs);
+            if (action == RecognizerRecovery.RETRY || action == RecognizerRecovery.RESET) {
+                retries++;
+                return;
+            }
+            listening = false;
+            long t = System.nanoTime();
+            dialogue.processAsrError(r.errorCode);
+            errors.record(System.nanoTime() - t);
+        } else {
+            if (transcript != null)
+                transcript.println("< " + r.nBest);
+            recovery.onReady();
+            listening = false;
+            long t = System.nanoTime();
+            dialogue.processAsrResults(r.nBest, r.confidences);
+            results.record(System.nanoTime() - t);
+        }
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    ///                         MEDIDAS                                               ///
+    /////////////////////////////////////////////////////////////////////////////////////
+
+    public void resetStats() {
+        results.reset();
+        errors.reset();
+        ttsDone.reset();
+        turns = truncated = retries = elapsedNanos = allocatedBytes = 0;
+    }
+
+    public long turns() {
+        return turns;
+    }
+
+    /**
+     * Turnos por segundo, latencias de cada método del diálogo y bytes reservados por turno (-1 si no
+     * se pueden medir). Los histogramas guardan nanosegundos, así que los percentiles están en ns.
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        double seconds = elapsedNanos / 1e9;
+        sb.append(String.format(Locale.US, "%d turns in %.2f s: %.0f turns/s, %s bytes/turn%n", turns, seconds,
+                seconds > 0 ? turns / seconds : 0,
+                allocated != null && turns > 0 ? Long.toString(allocatedBytes / turns) : "-1"));
+        sb.append(String.format(Locale.US, "recognizer retries %d, truncated turns %d, dropped prompts %d%n",
+                retries, truncated, scheduler.droppedCount()));
+        sb.append(String.format(Locale.US, "%-20s %9s %9s %9s %9s %9s%n", "handler (ns)", "n", "p50", "p90", "p99", "max"));
+        row(sb, "processAsrResults", results);
+        row(sb, "processAsrError", errors);
+        row(sb, "onTTSDone", ttsDone);
+        return sb.toString();
+    }
+
+    private static void row(StringBuilder sb, String name, LatencyHistogram h) {
+        sb.append(String.format(Locale.US, "%-20s %9d %9d %9d %9d %9d%n", name, h.count(),
+                h.percentileMicros(0.50), h.percentileMicros(0.90), h.percentileMicros(0.99), h.maxMicros()));
+    }
+
+    //Se llama solo al principio y al final de run, así que lo que reserva la reflexión no cuenta
+    private static long allocatedBytes() {
+        if (allocated == null)
+            return 0;
+        try {
+            return (Long) allocated.invoke(threads, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.example.laura.voice;
+
+/**
+ * Detector de actividad de voz a partir de la energía (los rmsdB de onRmsChanged). El reconocedor
+ * espera bastante silencio antes de dar el turno por terminado, y si el usuario no dice nada tarda
+ * varios segundos en dar ERROR_SPEECH_TIMEOUT. Con esto se puede llamar a stopListening en cuanto
+ * termina la frase y cortar antes los turnos sin voz.
+ *
+ * - El umbral va referido al ruido de fondo, que se estima sobre la marcha: baja enseguida con los
+ *   valores más bajos y sube despacio mientras no se habla.
+ * - Se considera que empieza la voz cuando la energía supera el ruido en onsetDb durante al menos
+ *   MIN_SPEECH_MS, y que termina cuando queda por debajo de ruido + offsetDb (histéresis) durante
+ *   hangoverMs. Antes de MIN_UTTERANCE_MS desde el comienzo no se da por terminada, para no cortar
+ *   palabras sueltas.
+ * - Si pasan noSpeechMs sin voz, se avisa de que no hay voz.
+ *
+ * Cada evento se devuelve una sola vez por turno. No depende de Android: los tiempos los da quien
+ * llama, en milisegundos de un reloj monótono.
+ */
+public class EnergyEndpointer {
+
+    public static final int NONE = 0;
+    public static final int SPEECH_START = 1;
+    public static final int SPEECH_END = 2;
+    public static final int NO_SPEECH = 3;
+
+    private static final long MIN_SPEECH_MS = 100;
+    private static final long MIN_UTTERANCE_MS = 300;
+    //Velocidad con la que el ruido de fondo sigue a la energía cuando baja y cuando sube
+    private static final float FLOOR_DOWN = 0.5f;
+    private static final float FLOOR_UP = 0.05f;
+
+    private static final int WAITING = 0;
+    private static final int SPEECH = 1;
+    private static final int DONE = 2;
+
+    private final float onsetDb;
+    private final float offsetDb;
+    private final long hangoverMs;
+    private final long noSpeechMs;
+
+    private int state = DONE;
+    private long startTime;
+    private long speechStart;
+    private boolean calibrated;
+    private float floor;
+    //Desde cuándo la energía está por encima del umbral de comienzo o por debajo del de final (-1 si no)
+    private long aboveSince;
+    private long belowSince;
+
+    /**
+     * Valores para los rmsdB que da el reconocedor de Google (unos -2 dB en silencio, hasta 10 hablando)
+     */
+    public EnergyEndpointer() {
+        this(4.0f, 2.5f, 700, 4000);
+    }
+
+    /**
+     * @param onsetDb dB por encima del ruido para considerar que empieza la voz
+     * @param offsetDb dB por encima del ruido por debajo de los cuales se considera silencio
+     * @param hangoverMs silencio tras la voz para dar la frase por terminada
+     * @param noSpeechMs tiempo sin voz tras el que se avisa de que no hay voz
+     */
+    public EnergyEndpointer(float onsetDb, float offsetDb, long hangoverMs, long noSpeechMs) {
+        this.onsetDb = onsetDb;
+        this.offsetDb = offsetDb;
+        this.hangoverMs = hangoverMs;
+        this.noSpeechMs = noSpeechMs;
+    }
+
+    /**
+     * Empieza un turno (cuando el reconocedor está listo para escuchar)
+     */
+    public synchronized void reset(long nowMs) {
+        state = WAITING;
+        startTime = nowMs;
+        calibrated = false;
+        aboveSince = -1;
+        belowSince = -1;
+    }
+
+    /**
+     * Nuevo valor de energía
+     * @return SPEECH_START, SPEECH_END o NO_SPEECH si ha pasado algo en este valor; NONE si no
+     */
+    public synchronized int onRms(float rmsDb, long nowMs) {
+        if (state == DONE)
+            return NONE;
+        if (!calibrated) {
+            floor = rmsDb;
+            calibrated = true;
+        }
+
+        if (state == WAITING) {
+            if (rmsDb > floor + onsetDb) {
+                if (aboveSince < 0)
+                    aboveSince = nowMs;
+                if (nowMs - aboveSince >= MIN_SPEECH_MS) {
+                    startSpeech(aboveSince);
+                    return SPEECH_START;
+                }
+            } else {
+                aboveSince = -1;
+                updateFloor(rmsDb);
+                if (nowMs - startTime >= noSpeechMs) {
+                    state = DONE;
+                    return NO_SPEECH;
+                }
+            }
+            return NONE;
+        }
+
+        //Hablando: el ruido de fondo solo se corrige hacia abajo
+        if (rmsDb < floor)
+            updateFloor(rmsDb);
+        if (rmsDb < floor + offsetDb) {
+            if (belowSince < 0)
+                belowSince = nowMs;
+            if (nowMs - belowSince >= hangoverMs && belowSince - speechStart >= MIN_UTTERANCE_MS) {
+                state = DONE;
+                return SPEECH_END;
+            }
+        } else
+            belowSince = -1;
+        return NONE;
+    }
+
+    /**
+     * El reconocedor ha detectado voz por su cuenta (onBeginningOfSpeech): ya no se avisará de que no
+     * hay voz aunque la energía no haya llegado al umbral
+     */
+    public synchronized void onSpeechBegin(long nowMs) {
+        if (state == WAITING)
+            startSpeech(nowMs);
+    }
+
+    /**
+     * Termina el turno sin más eventos (resultados, error o stopListening)
+     */
+    public synchronized void stop() {
+        state = DONE;
+    }
+
+    public synchronized boolean inSpeech() {
+        return state == SPEECH;
+    }
+
+    public synchronized float noiseFloor() {
+        return floor;
+    }
+
+    private void startSpeech(long nowMs) {
+        state = SPEECH;
+        speechStart = nowMs;
+        belowSince = -1;
+    }
+
+    private void updateFloor(float rmsDb) {
+        floor += (rmsDb < floor ? FLOOR_DOWN : FLOOR_UP) * (rmsDb - floor);
+    }
+}
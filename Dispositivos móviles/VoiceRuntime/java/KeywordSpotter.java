@@ -0,0 +1,375 @@
+package com.example.laura.voice;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.example.laura.audio.EnergyFeatures;
+import com.example.laura.audio.Mfcc;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Detector de palabras clave siempre activo ("siguiente", "pausa", "música"...), para manejar la
+ * aplicación sin tocar la pantalla mientras suena la música. No usa el reconocedor de Android (que
+ * necesita red y ocupa el micrófono para un solo turno): lee el micrófono con AudioRecord en un hilo
+ * propio, calcula los MFCC de cada trama, separa los segmentos de voz por su energía y compara cada
+ * segmento con los ejemplos grabados de cada palabra por DTW (ver {@link KeywordTemplates}).
+ *
+ * Los ejemplos se graban con {@link #enroll(String)}: el siguiente segmento de voz se guarda como
+ * ejemplo de esa palabra en lugar de reconocerse.
+ *
+ * Todo lo que hace el hilo de audio está reservado de antemano, y se mide el tiempo que tarda en
+ * procesar cada segundo de audio ({@link #cpuLoad()}). Si pasa de CPU_BUDGET, los segmentos se
+ * descartan sin compararlos hasta que vuelve a bajar.
+ *
+ * El micrófono solo lo puede tener uno: hay que parar el detector ({@link #stop()}) antes de escuchar
+ * con el SpeechRecognizer y mientras suenan los mensajes, para que no se detecten a sí mismos.
+ */
+public class KeywordSpotter {
+
+    private static final String LOGTAG = "KEYWORDS";
+
+    /**
+     * Avisos del detector, en el hilo principal
+     */
+    public interface Listener {
+        void onKeyword(String keyword, float distance);
+
+        void onEnrolled(String keyword, int examples);
+    }
+
+    //Audio a 16 kHz en tramas de 25 ms que avanzan de 10 en 10 ms
+    private static final int SAMPLE_RATE = 16000;
+    private static final int FRAME = 400;
+    private static final int HOP = 160;
+    private static final int CEPS = KeywordTemplates.CEPS;
+    private static final int MAX_FRAMES = KeywordTemplates.MAX_FRAMES;
+    //Segmentos de voz: umbrales sobre el ruido de fondo (dB) y duraciones en tramas de 10 ms
+    private static final float ONSET_DB = 12f;
+    private static final float OFFSET_DB = 6f;
+    private static final int ONSET_FRAMES = 3;
+    private static final int HANGOVER_FRAMES = 25;
+    private static final int PREROLL_FRAMES = 5;
+    private static final int MIN_FRAMES = 20;
+    private static final int RING = MAX_FRAMES + PREROLL_FRAMES + ONSET_FRAMES + 1;
+    private static final float FLOOR_DOWN = 0.3f;
+    private static final float FLOOR_UP = 0.01f;
+    //Fracción del tiempo real que puede usar el hilo de audio
+    private static final float CPU_BUDGET = 0.05f;
+    private static final int LOAD_WINDOW_FRAMES = 100;
+    private static final float DEFAULT_THRESHOLD = 3.0f;
+
+    private static final int WAITING = 0;
+    private static final int SPEECH = 1;
+    private static final int SKIPPING = 2;
+
+    private final File templatesFile;
+    private final Listener listener;
+    private final Handler main = new Handler(Looper.getMainLooper());
+    private final KeywordTemplates templates = new KeywordTemplates();
+    private final Mfcc mfcc = Mfcc.speech16k();
+
+    //Hilo de audio que debe escuchar (null si está parado); el que ve que ya no es él suelta el micrófono
+    private volatile Thread thread;
+    //Último hilo arrancado, que puede seguir soltando el micrófono después de stop()
+    private Thread last;
+    private volatile String enrolling;
+    private volatile float threshold = DEFAULT_THRESHOLD;
+    private volatile float cpuLoad = 0;
+
+    //Estado del hilo de audio
+    private final short[] frame = new short[FRAME];
+    private final float[] ring = new float[RING * CEPS];
+    private final float[] segment = new float[MAX_FRAMES * CEPS];
+    private long frameCount;
+    private int state;
+    private int run;
+    private long segmentStart;
+    private float floor;
+    private boolean calibrated;
+
+    /**
+     * @param templatesFile fichero con los ejemplos de las palabras (se carga ahora si existe)
+     */
+    public KeywordSpotter(File templatesFile, Listener listener) {
+        this.templatesFile = templatesFile;
+        this.listener = listener;
+        if (templatesFile.exists()) {
+            try {
+                templates.load(templatesFile);
+            } catch (IOException e) {
+                Log.e(LOGTAG, "Keyword templates could not be read: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Empieza a escuchar (si ya estaba escuchando no hace nada)
+     */
+    public synchronized void start() {
+        if (thread != null)
+            return;
+        final Thread previous = last;
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                //Si el hilo anterior aún no ha soltado el micrófono, se le espera aquí y no en el hilo principal
+                if (previous != null) {
+                    try {
+                        previous.join();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (listening())
+                    listen();
+            }
+        }, "KeywordSpotter");
+        thread = last = t;
+        t.start();
+    }
+
+    /**
+     * Deja de escuchar. No espera al hilo de audio, que suelta el micrófono al terminar la trama que
+     * está leyendo (10 ms); si antes se vuelve a llamar a start, el hilo nuevo espera a que lo suelte
+     */
+    public synchronized void stop() {
+        thread = null;
+    }
+
+    public boolean isRunning() {
+        return thread != null;
+    }
+
+    /**
+     * El siguiente segmento de voz se guarda como ejemplo de la palabra (hay que llamar a start)
+     */
+    public void enroll(String keyword) {
+        enrolling = keyword;
+    }
+
+    /**
+     * Número de ejemplos grabados de la palabra
+     */
+    public int examples(String keyword) {
+        return templates.count(keyword);
+    }
+
+    public boolean hasExamples() {
+        return templates.size() > 0;
+    }
+
+    /**
+     * Borra todos los ejemplos, también del fichero
+     */
+    public void clearExamples() {
+        templates.clear();
+        if (templatesFile.exists() && !templatesFile.delete())
+            Log.e(LOGTAG, "Keyword templates could not be deleted");
+    }
+
+    /**
+     * Distancia DTW máxima para aceptar una palabra: más baja, menos falsas detecciones y más palabras
+     * perdidas
+     */
+    public void setThreshold(float threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Fracción del tiempo real que ha usado el hilo de audio en el último segundo de audio
+     */
+    public float cpuLoad() {
+        return cpuLoad;
+    }
+
+    private void listen() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+        int minBuffer = AudioRecord.getMinBufferSize(SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO,
+                AudioFormat.ENCODING_PCM_16BIT);
+        AudioRecord recorder = new AudioRecord(MediaRecorder.AudioSource.VOICE_RECOGNITION, SAMPLE_RATE,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT,
+                Math.max(minBuffer, 4 * FRAME * 2));
+        if (recorder.getState() != AudioRecord.STATE_INITIALIZED) {
+            Log.e(LOGTAG, "Microphone not available");
+            recorder.release();
+            finished();
+            return;
+        }
+
+        frameCount = 0;
+        state = WAITING;
+        run = 0;
+        calibrated = false;
+        long busy = 0;
+        int loadFrames = 0;
+        boolean overBudget = false;
+
+        recorder.startRecording();
+        try {
+            //Llenamos la primera trama menos el último salto
+            int filled = 0;
+            int toFill = FRAME - HOP;
+            while (listening() && filled < toFill) {
+                int n = recorder.read(frame, filled, toFill - filled);
+                if (n <= 0) {
+                    readError(n);
+                    return;
+                }
+                filled += n;
+            }
+            while (listening()) {
+                //Cada trama avanza un salto de 10 ms sobre la anterior
+                int filledHop = 0;
+                while (listening() && filledHop < HOP) {
+                    int n = recorder.read(frame, toFill + filledHop, HOP - filledHop);
+                    if (n <= 0) {
+                        readError(n);
+                        return;
+                    }
+                    filledHop += n;
+                }
+                long t0 = System.nanoTime();
+                processFrame(overBudget);
+                System.arraycopy(frame, HOP, frame, 0, toFill);
+                busy += System.nanoTime() - t0;
+
+                if (++loadFrames == LOAD_WINDOW_FRAMES) {
+                    cpuLoad = busy / (LOAD_WINDOW_FRAMES * HOP * 1e9f / SAMPLE_RATE);
+                    if (cpuLoad > CPU_BUDGET != overBudget) {
+                        overBudget = !overBudget;
+                        Log.w(LOGTAG, "CPU load " + cpuLoad + (overBudget ? ": over budget, matching paused" : ": back within budget"));
+                    }
+                    busy = 0;
+                    loadFrames = 0;
+                }
+            }
+        } finally {
+            recorder.stop();
+            recorder.release();
+        }
+    }
+
+    private void readError(int code) {
+        Log.e(LOGTAG, "Microphone read error " + code);
+        finished();
+    }
+
+    //Si el hilo de audio sigue siendo el actual
+    private boolean listening() {
+        return thread == Thread.currentThread();
+    }
+
+    //El hilo de audio termina por su cuenta: el detector queda parado, salvo que ya se haya arrancado otro
+    private synchronized void finished() {
+        if (listening())
+            thread = null;
+    }
+
+    private void processFrame(boolean overBudget) {
+        int slot = (int) (frameCount % RING);
+        mfcc.compute(frame, 0, ring, slot * CEPS);
+        float energy = EnergyFeatures.energyDb(frame, 0, FRAME);
+        if (!calibrated) {
+            floor = energy;
+            calibrated = true;
+        }
+
+        switch (state) {
+            case WAITING:
+                if (energy > floor + ONSET_DB) {
+                    if (++run == ONSET_FRAMES) {
+                        state = SPEECH;
+                        segmentStart = Math.max(0, frameCount - ONSET_FRAMES + 1 - PREROLL_FRAMES);
+                        run = 0;
+                    }
+                } else {
+                    run = 0;
+                    floor += (energy < floor ? FLOOR_DOWN : FLOOR_UP) * (energy - floor);
+                }
+                break;
+
+            case SPEECH:
+                if (energy < floor + OFFSET_DB) {
+                    if (++run == HANGOVER_FRAMES) {
+                        endSegment(frameCount - HANGOVER_FRAMES + 1, overBudget);
+                        state = WAITING;
+                        run = 0;
+                    }
+                } else
+                    run = 0;
+                //Demasiado largo para ser una orden (música, conversación): se descarta
+                if (state == SPEECH && frameCount - segmentStart + 1 >= MAX_FRAMES) {
+                    state = SKIPPING;
+                    run = 0;
+                }
+                break;
+
+            case SKIPPING:
+                //Esperamos a que haya silencio para volver a buscar segmentos
+                if (energy < floor + OFFSET_DB) {
+                    if (++run == HANGOVER_FRAMES) {
+                        state = WAITING;
+                        run = 0;
+                    }
+                } else
+                    run = 0;
+                break;
+        }
+        frameCount++;
+    }
+
+    //Segmento de segmentStart a end (sin incluir): se normaliza y se compara o se guarda como ejemplo
+    private void endSegment(long end, boolean overBudget) {
+        int frames = (int) (end - segmentStart);
+        if (frames < MIN_FRAMES)
+            return;
+        //Copiamos las tramas del anillo y les restamos la media de cada coeficiente
+        for (int f = 0; f < frames; ++f)
+            System.arraycopy(ring, (int) ((segmentStart + f) % RING) * CEPS, segment, f * CEPS, CEPS);
+        for (int c = 0; c < CEPS; ++c) {
+            float mean = 0;
+            for (int f = 0; f < frames; ++f)
+                mean += segment[f * CEPS + c];
+            mean /= frames;
+            for (int f = 0; f < frames; ++f)
+                segment[f * CEPS + c] -= mean;
+        }
+
+        final String keyword = enrolling;
+        if (keyword != null) {
+            enrolling = null;
+            templates.add(keyword, segment, frames);
+            try {
+                templates.save(templatesFile);
+            } catch (IOException e) {
+                Log.e(LOGTAG, "Keyword templates could not be written: " + e.getMessage());
+            }
+            final int examples = templates.count(keyword);
+            main.post(new Runnable() {
+                public void run() {
+                    listener.onEnrolled(keyword, examples);
+                }
+            });
+            return;
+        }
+
+        if (overBudget)
+            return;
+        final String detected = templates.match(segment, frames, threshold);
+        final float distance = templates.lastDistance();
+        if (detected != null) {
+            main.post(new Runnable() {
+                public void run() {
+                    listener.onKeyword(detected, distance);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.example.laura.voice;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Ejemplos grabados de cada palabra clave (secuencias de MFCC con la media restada) y comparación
+ * de un segmento de voz con ellos por alineamiento temporal dinámico (DTW) con banda de Sakoe-Chiba.
+ *
+ * La lista de ejemplos se sustituye entera al cambiar (se cambia al entrenar, no al reconocer), así
+ * que {@link #match} la recorre sin bloquear. match usa filas de la DTW reservadas de antemano y solo
+ * se debe llamar desde un hilo, el de audio.
+ */
+class KeywordTemplates {
+
+    static final int MAX_FRAMES = 150;
+    //Coeficientes por trama (los de Mfcc.speech16k)
+    static final int CEPS = 13;
+
+    private static final int VERSION = 1;
+    private static final float INF = Float.MAX_VALUE;
+    //Anchura mínima de la banda de la DTW, en tramas
+    private static final int BAND = 8;
+    //La mejor palabra tiene que estar claramente por delante de la segunda
+    private static final float MARGIN = 0.9f;
+
+    private static final class Template {
+        final String keyword;
+        final float[] features;
+        final int frames;
+
+        Template(String keyword, float[] features, int frames) {
+            this.keyword = keyword;
+            this.features = features;
+            this.frames = frames;
+        }
+    }
+
+    private volatile Template[] templates = new Template[0];
+    private final float[] previousRow = new float[MAX_FRAMES + 1];
+    private final float[] currentRow = new float[MAX_FRAMES + 1];
+    private float lastDistance = INF;
+
+    /**
+     * Añade un ejemplo (se copian las primeras frames tramas de features)
+     */
+    synchronized void add(String keyword, float[] features, int frames) {
+        Template[] t = Arrays.copyOf(templates, templates.length + 1);
+        t[t.length - 1] = new Template(keyword, Arrays.copyOf(features, frames * CEPS), frames);
+        templates = t;
+    }
+
+    synchronized void clear() {
+        templates = new Template[0];
+    }
+
+    int size() {
+        return templates.length;
+    }
+
+    int count(String keyword) {
+        int n = 0;
+        for (Template t : templates)
+            if (t.keyword.equals(keyword))
+                n++;
+        return n;
+    }
+
+    /**
+     * Palabra cuyo ejemplo más parecido está a menos de threshold del segmento y claramente más cerca
+     * que el de cualquier otra palabra
+     * @return la palabra, o null si no hay ninguna; la distancia queda en lastDistance()
+     */
+    String match(float[] features, int frames, float threshold) {
+        Template[] all = templates;
+        String best = null;
+        float bestDistance = INF, secondDistance = INF;
+        for (Template t : all) {
+            if (t.frames > 2 * frames || frames > 2 * t.frames)
+                continue;
+            float d = dtw(features, frames, t.features, t.frames);
+            if (d < bestDistance) {
+                if (best != null && !best.equals(t.keyword))
+                    secondDistance = bestDistance;
+                best = t.keyword;
+                bestDistance = d;
+            } else if (d < secondDistance && !t.keyword.equals(best))
+                secondDistance = d;
+        }
+        lastDistance = bestDistance;
+        if (best == null || bestDistance > threshold || bestDistance > MARGIN * secondDistance)
+            return null;
+        return best;
+    }
+
+    float lastDistance() {
+        return lastDistance;
+    }
+
+    /**
+     * Distancia DTW entre dos secuencias de MFCC, normalizada por la longitud del camino (n + m)
+     */
+    float dtw(float[] a, int n, float[] b, int m) {
+        float[] prev = previousRow, cur = currentRow;
+        int band = Math.max(BAND, Math.max(n, m) / 5);
+        Arrays.fill(prev, 0, m + 1, INF);
+        prev[0] = 0;
+        for (int i = 1; i <= n; ++i) {
+            int center = i * m / n;
+            int lo = Math.max(1, center - band), hi = Math.min(m, center + band);
+            Arrays.fill(cur, 0, m + 1, INF);
+            for (int j = lo; j <= hi; ++j) {
+                float best = Math.min(prev[j - 1], Math.min(prev[j], cur[j - 1]));
+                if (best < INF)
+                    cur[j] = best + distance(a, (i - 1) * CEPS, b, (j - 1) * CEPS);
+            }
+            float[] t = prev;
+            prev = cur;
+            cur = t;
+        }
+        return prev[m] == INF ? INF : prev[m] / (n + m);
+    }
+
+    //Distancia euclídea sin el coeficiente 0, que depende sobre todo del volumen
+    private static float distance(float[] a, int i, float[] b, int j) {
+        float s = 0;
+        for (int c = 1; c < CEPS; ++c) {
+            float d = a[i + c] - b[j + c];
+            s += d * d;
+        }
+        return (float) Math.sqrt(s);
+    }
+
+    synchronized void save(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(VERSION);
+            out.writeInt(templates.length);
+            for (Template t : templates) {
+                out.writeUTF(t.keyword);
+                out.writeInt(t.frames);
+                for (int i = 0; i < t.frames * CEPS; ++i)
+                    out.writeFloat(t.features[i]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    synchronized void load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != VERSION)
+                throw new IOException("Unknown keyword templates version");
+            Template[] t = new Template[in.readInt()];
+            for (int k = 0; k < t.length; ++k) {
+                String keyword = in.readUTF();
+                int frames = in.readInt();
+                if (frames <= 0 || frames > MAX_FRAMES)
+                    throw new IOException("Invalid keyword template");
+                float[] features = new float[frames * CEPS];
+                for (int i = 0; i < features.length; ++i)
+                    features[i] = in.readFloat();
+                t[k] = new Template(keyword, features, frames);
+            }
+            templates = t;
+        } finally {
+            in.close();
+        }
+    }
+}
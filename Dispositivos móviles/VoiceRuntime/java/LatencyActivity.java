@@ -0,0 +1,124 @@
+package com.example.laura.voice;
+
+import android.app.Activity;
+import android.graphics.Typeface;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.View;
+import android.widget.Button;
+import android.widget.LinearLayout;
+import android.widget.ScrollView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Pantalla de depuración con los percentiles de latencia de cada fase del turno de voz
+ * (ver {@link TurnLatency}) y con los errores del reconocedor y lo que se tarda en recuperarse de ellos
+ * (ver {@link RecognizerRecovery}). Permite guardarlos en un fichero y ponerlos a cero.
+ */
+public class LatencyActivity extends Activity {
+
+    private static final String LOGTAG = "LATENCY";
+    private static final String DUMP_FILE = "latency.txt";
+
+    private TextView report;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setTitle("Latencias del turno de voz");
+
+        //Sin fichero de layout, para que la pantalla vaya entera en la biblioteca
+        LinearLayout root = new LinearLayout(this);
+        root.setOrientation(LinearLayout.VERTICAL);
+
+        LinearLayout buttons = new LinearLayout(this);
+        buttons.setOrientation(LinearLayout.HORIZONTAL);
+        Button save = new Button(this);
+        save.setText("Guardar");
+        save.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                File file = dump(LatencyActivity.this);
+                Toast.makeText(LatencyActivity.this, file != null ? file.getPath() : "No se ha podido guardar",
+                        Toast.LENGTH_LONG).show();
+            }
+        });
+        Button reset = new Button(this);
+        reset.setText("Reiniciar");
+        reset.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                TurnLatency.get().reset();
+                RecognizerRecovery.resetStats();
+                refresh();
+            }
+        });
+        Button update = new Button(this);
+        update.setText("Actualizar");
+        update.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                refresh();
+            }
+        });
+        buttons.addView(update);
+        buttons.addView(save);
+        buttons.addView(reset);
+        root.addView(buttons);
+
+        ScrollView scroll = new ScrollView(this);
+        report = new TextView(this);
+        report.setTypeface(Typeface.MONOSPACE);
+        report.setTextSize(11);
+        report.setHorizontallyScrolling(true);
+        scroll.addView(report);
+        root.addView(scroll);
+
+        setContentView(root);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        refresh();
+    }
+
+    private void refresh() {
+        report.setText(report());
+    }
+
+    private static String report() {
+        return TurnLatency.get().report() + "\n" + RecognizerRecovery.report();
+    }
+
+    /**
+     * Vuelca el informe a latency.txt en el almacenamiento de la aplicación (el externo si lo hay,
+     * para poder sacarlo con adb pull)
+     * @return el fichero, o null si no se ha podido escribir
+     */
+    public static File dump(Activity ctx) {
+        File dir = ctx.getExternalFilesDir(null);
+        File file = new File(dir != null ? dir : ctx.getFilesDir(), DUMP_FILE);
+        try {
+            String text = report();
+            Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            try {
+                out.write(text);
+            } finally {
+                out.close();
+            }
+            Log.i(LOGTAG, "Latency report written to " + file.getPath() + "\n" + text);
+            return file;
+        } catch (IOException e) {
+            Log.e(LOGTAG, "Latency report could not be written: " + e.getMessage());
+            return null;
+        }
+    }
+}
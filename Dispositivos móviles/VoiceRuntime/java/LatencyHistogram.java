@@ -0,0 +1,102 @@
+package com.example.laura.voice;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma de latencias en microsegundos con todos los contadores reservados al crearlo, así que
+ * registrar un valor no crea objetos ni bloquea (se puede llamar desde el hilo del TTS y desde el
+ * principal a la vez).
+ *
+ * Los valores por debajo de 64 µs tienen un contador cada uno; a partir de ahí cada potencia de dos se
+ * divide en 32 contadores, de modo que los percentiles tienen un error relativo de como mucho el 3 %.
+ */
+public final class LatencyHistogram {
+
+    private static final int LINEAR = 64;
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    //Los valores de más de 2^40 µs (unos 12 días) se cuentan en el último contador
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = LINEAR + (MAX_EXPONENT - 6 + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void recordNanos(long nanos) {
+        record(nanos / 1000);
+    }
+
+    /**
+     * Registra una latencia en microsegundos (las negativas se cuentan como 0)
+     */
+    public void record(long micros) {
+        if (micros < 0)
+            micros = 0;
+        counts.incrementAndGet(bucket(micros));
+        total.incrementAndGet();
+        sum.addAndGet(micros);
+        long m;
+        while (micros > (m = max.get()) && !max.compareAndSet(m, micros)) { }
+    }
+
+    public long count() {
+        return total.get();
+    }
+
+    public long maxMicros() {
+        return max.get();
+    }
+
+    public long meanMicros() {
+        long n = total.get();
+        return n == 0 ? 0 : sum.get() / n;
+    }
+
+    /**
+     * Valor por debajo del cual está la fracción p de las latencias registradas (0 si no hay ninguna)
+     * @param p entre 0 y 1, p.ej. 0.99
+     */
+    public long percentileMicros(double p) {
+        long n = total.get();
+        if (n == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(p * n));
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; ++b) {
+            seen += counts.get(b);
+            if (seen >= rank)
+                return Math.min(upperBound(b), max.get());
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int b = 0; b < BUCKETS; ++b)
+            counts.set(b, 0);
+        total.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    static int bucket(long micros) {
+        if (micros < LINEAR)
+            return (int) micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT)
+            return BUCKETS - 1;
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exponent - 6) * SUB_BUCKETS + sub;
+    }
+
+    //Mayor valor que cae en el contador b
+    static long upperBound(int b) {
+        if (b < LINEAR)
+            return b;
+        int exponent = (b - LINEAR) / SUB_BUCKETS + 6;
+        long sub = (b - LINEAR) % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+}
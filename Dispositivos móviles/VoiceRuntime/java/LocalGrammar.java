@@ -0,0 +1,161 @@
+package com.example.laura.voice;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * Gramática local con las frases que se esperan en un turno (órdenes, títulos de canciones...) y
+ * comparación de las hipótesis del reconocedor con ellas, sin red. Las frases y las hipótesis se
+ * normalizan (minúsculas, sin tildes ni signos de puntuación) y se comparan por distancia de edición,
+ * de modo que "Cancion de cuna" o "canción de cuna." encajan con "Canción de cuna".
+ *
+ * La puntuación de una frase es 1 - distancia / longitud de la más larga (1 si son iguales). Además
+ * se indica si la hipótesis podría ser el principio de otra frase: con los resultados parciales no
+ * hay que quedarse con "Hello" si el usuario puede estar diciendo "Hello World".
+ *
+ * Es inmutable; match reserva sus filas de la distancia de edición en cada llamada, que son pocas por
+ * turno, así que se puede llamar desde cualquier hilo.
+ */
+public final class LocalGrammar {
+
+    /**
+     * Frase de la gramática que mejor encaja con una hipótesis
+     */
+    public static final class Match {
+        public final String phrase;
+        public final float score;
+        //false si la hipótesis puede ser también el principio de otra frase de la gramática
+        public final boolean complete;
+
+        Match(String phrase, float score, boolean complete) {
+            this.phrase = phrase;
+            this.score = score;
+            this.complete = complete;
+        }
+    }
+
+    //Frases originales y normalizadas, ordenadas por la forma normalizada
+    private final String[] phrases;
+    private final String[] normalized;
+
+    public LocalGrammar(Collection<String> phrases) {
+        final String[] original = new String[phrases.size()];
+        final String[] norm = new String[original.length];
+        Integer[] order = new Integer[original.length];
+        int n = 0;
+        for (String p : phrases) {
+            original[n] = p;
+            norm[n] = normalize(p);
+            order[n] = n;
+            n++;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return norm[a].compareTo(norm[b]);
+            }
+        });
+        this.phrases = new String[n];
+        this.normalized = new String[n];
+        for (int i = 0; i < n; ++i) {
+            this.phrases[i] = original[order[i]];
+            this.normalized[i] = norm[order[i]];
+        }
+    }
+
+    public int size() {
+        return phrases.length;
+    }
+
+    /**
+     * Minúsculas, sin tildes, y solo letras y dígitos separados por un espacio
+     */
+    public static String normalize(String text) {
+        String s = Normalizer.normalize(text.toLowerCase(Locale.ROOT), Normalizer.Form.NFD);
+        StringBuilder sb = new StringBuilder(s.length());
+        boolean space = false;
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK)
+                continue;
+            if (Character.isLetterOrDigit(c)) {
+                if (space && sb.length() > 0)
+                    sb.append(' ');
+                sb.append(c);
+                space = false;
+            } else
+                space = true;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Frase que mejor encaja con la hipótesis, o null si la gramática está vacía o la hipótesis no
+     * tiene letras ni dígitos
+     */
+    public Match match(String hypothesis) {
+        String h = normalize(hypothesis);
+        if (h.length() == 0 || phrases.length == 0)
+            return null;
+
+        //Coincidencia exacta por búsqueda binaria: es lo habitual con órdenes y títulos cortos
+        int i = Arrays.binarySearch(normalized, h);
+        if (i >= 0)
+            return new Match(phrases[i], 1f, !ambiguous(i, h));
+
+        int best = -1;
+        float bestScore = 0;
+        int[] previous = new int[h.length() + 1], current = new int[h.length() + 1];
+        for (int k = 0; k < normalized.length; ++k) {
+            String p = normalized[k];
+            int longest = Math.max(p.length(), h.length());
+            //Si solo por la diferencia de longitud ya no puede mejorar a la mejor, no se calcula
+            if (1f - (float) Math.abs(p.length() - h.length()) / longest <= bestScore)
+                continue;
+            float score = 1f - (float) distance(h, p, previous, current) / longest;
+            if (score > bestScore) {
+                best = k;
+                bestScore = score;
+            }
+        }
+        if (best < 0)
+            return null;
+        return new Match(phrases[best], bestScore, !ambiguous(best, h));
+    }
+
+    //Si la hipótesis h, que encaja con la frase k, puede ser también el principio de otra frase: otra
+    //empieza por h, o empieza por la frase k seguida de más palabras
+    private boolean ambiguous(int k, String h) {
+        return startsWith(h, k) || startsWith(normalized[k] + " ", k);
+    }
+
+    //Si alguna frase distinta de la k empieza por prefix (las que empiezan por prefix están seguidas
+    //a partir de la posición en la que iría prefix)
+    private boolean startsWith(String prefix, int k) {
+        int i = Arrays.binarySearch(normalized, prefix);
+        for (int j = i >= 0 ? i : -(i + 1); j < normalized.length && normalized[j].startsWith(prefix); ++j)
+            if (j != k)
+                return true;
+        return false;
+    }
+
+    //Distancia de edición de Levenshtein entre a y b, con dos filas de a.length() + 1
+    private static int distance(String a, String b, int[] previous, int[] current) {
+        for (int i = 0; i <= a.length(); ++i)
+            previous[i] = i;
+        for (int j = 1; j <= b.length(); ++j) {
+            current[0] = j;
+            char cb = b.charAt(j - 1);
+            for (int i = 1; i <= a.length(); ++i) {
+                int cost = a.charAt(i - 1) == cb ? 0 : 1;
+                current[i] = Math.min(Math.min(current[i - 1] + 1, previous[i] + 1), previous[i - 1] + cost);
+            }
+            int[] t = previous;
+            previous = current;
+            current = t;
+        }
+        return previous[a.length()];
+    }
+}
@@ -0,0 +1,461 @@
+package com.example.laura.voice;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.speech.tts.TextToSpeech;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Caché de locuciones ya sintetizadas. Los mensajes fijos ("Dígame su nivel de azúcar", "Please check
+ * your Internet connection", los mensajes de error...) se sintetizaban desde cero cada vez; aquí se
+ * generan una sola vez con synthesizeToFile, en segundo plano y de uno en uno, y después se reproducen
+ * directamente con un AudioTrack estático, que empieza a sonar en unos milisegundos.
+ *
+ * Se guardan en cacheDir/prompts con la clave (texto, idioma, voz), y el directorio se limita a
+ * maxBytes quitando primero los que hace más tiempo que no se usan (LRU). Un mensaje entra en la caché
+ * si se pide con {@link #prefetch} o la segunda vez que se dice, así que los mensajes con datos
+ * variables (el nivel de azúcar) casi nunca llegan a sintetizarse a fichero.
+ *
+ * Lo que suena sale de memoria: el audio de los mensajes usados más recientemente se guarda ya sin
+ * la cabecera WAV, hasta maxMemoryBytes (LRU), y se carga en un hilo propio al terminar la síntesis.
+ * Un mensaje que está en disco pero no en memoria (p.ej. al arrancar la aplicación) se dice esa vez
+ * con el TTS mientras se carga, así que play() nunca lee del disco en el hilo que lo llama.
+ *
+ * La reproducción desde la caché genera los mismos eventos onUtteranceStart/onUtteranceDone que el TTS.
+ */
+public class PromptCache {
+
+    private static final String LOGTAG = "PROMPTCACHE";
+    //Prefijo de los identificadores de locución de las síntesis a fichero, para no pasárselas al cliente
+    static final String UTTERANCE_PREFIX = "prompt-cache:";
+    //Número de mensajes no cacheados que se recuerdan para detectar los que se repiten
+    private static final int MAX_CANDIDATES = 64;
+    //Número de nombres de fichero ya calculados que se recuerdan
+    private static final int MAX_NAMES = 128;
+
+    private final VoiceService service;
+    private final File dir;
+    private final long maxBytes;
+    private long totalBytes = 0;
+    private final long maxMemoryBytes;
+    private long memoryBytes = 0;
+
+    //Ficheros de la caché (nombre -> tamaño) en orden de uso, del más antiguo al más reciente
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    //Mensajes dichos una vez y todavía no cacheados
+    private final LinkedHashMap<String, Boolean> candidates = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_CANDIDATES;
+        }
+    };
+
+    //Nombres de fichero por texto, para no calcular el SHA-1 cada vez que se dice un mensaje frecuente
+    private final LinkedHashMap<String, Name> names = new LinkedHashMap<String, Name>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Name> eldest) {
+            return size() > MAX_NAMES;
+        }
+    };
+
+    private static final class Name {
+        final Locale locale;
+        final String voice;
+        final String file;
+
+        Name(Locale locale, String voice, String file) {
+            this.locale = locale;
+            this.voice = voice;
+            this.file = file;
+        }
+    }
+
+    //Audio ya leído de los ficheros (nombre -> PCM) en orden de uso, y ficheros que se están leyendo
+    private final LinkedHashMap<String, Pcm> loaded = new LinkedHashMap<String, Pcm>(16, 0.75f, true);
+    private final HashSet<String> loading = new HashSet<String>();
+    //Hilo para leer y tocar los ficheros, fuera del hilo principal
+    private final HandlerThread worker;
+    private final Handler io;
+
+    private static final class Pcm {
+        final int rate;
+        final int channels;
+        final byte[] data;
+
+        Pcm(int rate, int channels, byte[] data) {
+            this.rate = rate;
+            this.channels = channels;
+            this.data = data;
+        }
+    }
+
+    //Síntesis pendientes; solo hay una en curso para no retrasar lo que se diga mientras tanto
+    private final ArrayDeque<Render> renders = new ArrayDeque<Render>();
+    private final Map<String, Render> rendering = new HashMap<String, Render>();
+
+    private AudioTrack track;
+    private String trackUtteranceId;
+
+    private static final class Render {
+        final String name;
+        final String text;
+        final Locale locale;
+        final File tmp;
+
+        Render(String name, String text, Locale locale, File tmp) {
+            this.name = name;
+            this.text = text;
+            this.locale = locale;
+            this.tmp = tmp;
+        }
+    }
+
+    PromptCache(VoiceService service, File dir, long maxBytes, long maxMemoryBytes) {
+        this.service = service;
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.maxMemoryBytes = maxMemoryBytes;
+        worker = new HandlerThread("prompt-cache");
+        worker.start();
+        io = new Handler(worker.getLooper());
+        dir.mkdirs();
+
+        //Reconstruimos el orden LRU con la fecha de último uso de cada fichero
+        File[] files = dir.listFiles();
+        if (files == null)
+            files = new File[0];
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return a.lastModified() < b.lastModified() ? -1 : a.lastModified() > b.lastModified() ? 1 : 0;
+            }
+        });
+        for (File f : files) {
+            if (f.getName().endsWith(".tmp"))
+                f.delete();
+            else {
+                entries.put(f.getName(), f.length());
+                totalBytes += f.length();
+            }
+        }
+        evict();
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    ///                         SÍNTESIS A FICHERO                                    ///
+    /////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Sintetiza el mensaje en segundo plano para que la próxima vez suene desde la caché
+     */
+    public synchronized void prefetch(String text, Locale locale) {
+        String name = fileName(text, locale);
+        if (entries.containsKey(name) || rendering.containsKey(name))
+            return;
+        Render r = new Render(name, text, locale, new File(dir, name + ".tmp"));
+        rendering.put(name, r);
+        renders.add(r);
+        if (renders.size() == 1)  //No había ninguna en curso
+            renderNext();
+    }
+
+    /**
+     * Lanza las síntesis pedidas antes de que el TTS estuviera listo
+     */
+    synchronized void start() {
+        renderNext();
+    }
+
+    /*
+     * Lanza la siguiente síntesis con el idioma del mensaje. No hace falta devolver el TTS al idioma
+     * que tenía: TtsFrontEnd sabe cuál está puesto y lo cambia en el siguiente speak si hace falta.
+     */
+    private void renderNext() {
+        Render r = renders.peek();
+        TtsFrontEnd tts = service.getTtsFrontEnd();
+        if (r == null || tts == null || !service.isTextToSpeechReady())
+            return;
+        if (tts.synthesizeToFile(r.text, r.locale, r.tmp, UTTERANCE_PREFIX + r.name) == TextToSpeech.ERROR)
+            onRendered(UTTERANCE_PREFIX + r.name, false);
+    }
+
+    /**
+     * Fin de una síntesis a fichero (lo llama VoiceService desde el hilo del TTS)
+     */
+    synchronized void onRendered(String utteranceId, boolean ok) {
+        String name = utteranceId.substring(UTTERANCE_PREFIX.length());
+        Render r = rendering.remove(name);
+        if (r == null)
+            return;
+        renders.remove(r);
+        File file = new File(dir, name);
+        if (ok && r.tmp.length() > 0 && r.tmp.renameTo(file)) {
+            entries.put(name, file.length());
+            totalBytes += file.length();
+            evict();
+            load(name);
+        }
+        else {
+            r.tmp.delete();
+            Log.e(LOGTAG, "Prompt could not be synthesized: " + r.text);
+        }
+        renderNext();
+    }
+
+    //Quitamos los menos usados hasta que la caché cabe en maxBytes
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            totalBytes -= eldest.getValue();
+            forget(eldest.getKey());
+            new File(dir, eldest.getKey()).delete();
+            it.remove();
+        }
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    ///                         AUDIO EN MEMORIA                                      ///
+    /////////////////////////////////////////////////////////////////////////////////////
+
+    //Lee el fichero en el hilo de la caché, si no está ya en memoria o leyéndose
+    private void load(final String name) {
+        if (loaded.containsKey(name) || !loading.add(name))
+            return;
+        io.post(new Runnable() {
+            public void run() {
+                File file = new File(dir, name);
+                Pcm pcm = null;
+                try {
+                    pcm = decode(readFile(file));
+                } catch (IOException e) {
+                    Log.e(LOGTAG, "Cached prompt could not be read: " + e.getMessage());
+                }
+                loaded(name, pcm);
+            }
+        });
+    }
+
+    private synchronized void loaded(String name, Pcm pcm) {
+        loading.remove(name);
+        Long size = entries.get(name);
+        if (size == null)  //Se ha quitado de la caché mientras se leía
+            return;
+        if (pcm == null) {
+            totalBytes -= size;
+            entries.remove(name);
+            new File(dir, name).delete();
+            return;
+        }
+        loaded.put(name, pcm);
+        memoryBytes += pcm.data.length;
+        //Quitamos los menos usados hasta que cabe en maxMemoryBytes (siempre se queda el último)
+        Iterator<Map.Entry<String, Pcm>> it = loaded.entrySet().iterator();
+        while (memoryBytes > maxMemoryBytes && loaded.size() > 1) {
+            memoryBytes -= it.next().getValue().data.length;
+            it.remove();
+        }
+    }
+
+    private void forget(String name) {
+        Pcm pcm = loaded.remove(name);
+        if (pcm != null)
+            memoryBytes -= pcm.data.length;
+    }
+
+    //Marca el fichero como usado para el orden LRU del disco al volver a arrancar
+    private void touch(final String name) {
+        io.post(new Runnable() {
+            public void run() {
+                new File(dir, name).setLastModified(System.currentTimeMillis());
+            }
+        });
+    }
+
+    /**
+     * Para el hilo de la caché (al destruir el servicio)
+     */
+    void release() {
+        stop();
+        worker.quit();
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    ///                         REPRODUCCIÓN                                          ///
+    /////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Reproduce el mensaje desde la caché si está en memoria y no está sonando otra cosa. Si no está y
+     * es la segunda vez que se pide, se sintetiza a fichero para la próxima; si está en disco pero no
+     * en memoria, se carga para la próxima.
+     * @return false si hay que decirlo con el TTS
+     */
+    public synchronized boolean play(String text, Locale locale, String utteranceId) {
+        String name = fileName(text, locale);
+        if (entries.get(name) == null) {  //get() también lo marca como usado
+            if (candidates.remove(name) != null)
+                prefetch(text, locale);
+            else if (!rendering.containsKey(name))
+                candidates.put(name, Boolean.TRUE);
+            return false;
+        }
+        if (track != null)
+            return false;
+        Pcm pcm = loaded.get(name);
+        if (pcm == null) {
+            load(name);
+            return false;
+        }
+        startTrack(pcm, utteranceId);
+        touch(name);
+        return true;
+    }
+
+    public synchronized boolean isPlaying() {
+        return track != null;
+    }
+
+    /**
+     * Corta el mensaje que esté sonando; no se notifica su final
+     */
+    public synchronized void stop() {
+        if (track != null) {
+            track.stop();
+            track.release();
+            track = null;
+        }
+    }
+
+    //Audio PCM de 16 bits de un fichero WAV
+    private static Pcm decode(byte[] wav) throws IOException {
+        int channels = 0, rate = 0, bits = 0, dataStart = -1, dataLength = 0;
+        int pos = 12;
+        if (wav.length < 12 || wav[0] != 'R' || wav[8] != 'W')
+            throw new IOException("not a WAV file");
+        while (pos + 8 <= wav.length) {
+            int length = le32(wav, pos + 4);
+            if (wav[pos] == 'f' && wav[pos + 1] == 'm' && wav[pos + 2] == 't') {
+                channels = le16(wav, pos + 10);
+                rate = le32(wav, pos + 12);
+                bits = le16(wav, pos + 22);
+            }
+            else if (wav[pos] == 'd' && wav[pos + 1] == 'a' && wav[pos + 2] == 't' && wav[pos + 3] == 'a') {
+                dataStart = pos + 8;
+                dataLength = Math.min(length, wav.length - dataStart);
+                break;
+            }
+            pos += 8 + length + (length & 1);
+        }
+        if (dataStart < 0 || dataLength < 0 || bits != 16 || channels < 1 || channels > 2 || rate <= 0)
+            throw new IOException("unsupported WAV format");
+        return new Pcm(rate, channels, Arrays.copyOfRange(wav, dataStart, dataStart + dataLength));
+    }
+
+    /*
+     * Los mensajes se reproducen con un AudioTrack estático: el audio completo se copia antes de
+     * empezar, y un marcador en la última muestra avisa de que ha terminado.
+     */
+    private void startTrack(Pcm pcm, final String utteranceId) {
+        int frames = pcm.data.length / (2 * pcm.channels);
+        AudioTrack t = new AudioTrack(AudioManager.STREAM_MUSIC, pcm.rate,
+                pcm.channels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO,
+                AudioFormat.ENCODING_PCM_16BIT, Math.max(pcm.data.length, 2 * pcm.channels), AudioTrack.MODE_STATIC);
+        t.write(pcm.data, 0, pcm.data.length);
+        t.setNotificationMarkerPosition(Math.max(frames, 1));
+        t.setPlaybackPositionUpdateListener(new AudioTrack.OnPlaybackPositionUpdateListener() {
+            @Override
+            public void onMarkerReached(AudioTrack finished) {
+                onPlaybackDone(finished, utteranceId);
+            }
+
+            @Override
+            public void onPeriodicNotification(AudioTrack t) { }
+        });
+        track = t;
+        trackUtteranceId = utteranceId;
+        service.dispatchUtteranceStart(utteranceId);
+        t.play();
+    }
+
+    private void onPlaybackDone(AudioTrack finished, String utteranceId) {
+        synchronized (this) {
+            if (finished != track || !utteranceId.equals(trackUtteranceId))
+                return;
+            track.release();
+            track = null;
+        }
+        service.dispatchUtteranceDone(utteranceId);
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    ///                         AUXILIARES                                            ///
+    /////////////////////////////////////////////////////////////////////////////////////
+
+    //Nombre de fichero a partir de la clave (texto, idioma, voz)
+    private String fileName(String text, Locale locale) {
+        String voice = service.getVoiceName();
+        Name n = names.get(text);
+        if (n != null && n.locale.equals(locale) && (n.voice == null ? voice == null : n.voice.equals(voice)))
+            return n.file;
+        String file = hash(locale + "|" + voice + "|" + text);
+        names.put(text, new Name(locale, voice, file));
+        return file;
+    }
+
+    private static String hash(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(44);
+            for (byte b : hash)
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return sb.append(".wav").toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int off = 0;
+            while (off < data.length) {
+                int n = in.read(data, off, data.length - off);
+                if (n < 0)
+                    throw new IOException("truncated file");
+                off += n;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static int le16(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8;
+    }
+
+    private static int le32(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+    }
+}
@@ -0,0 +1,198 @@
+package com.example.laura.voice;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Cola de mensajes con prioridades. Antes todos los speak iban con QUEUE_ADD a la cola del TTS, así que
+ * un "Speech recognition error" que ya no venía a cuento retrasaba varios segundos la siguiente pregunta
+ * y, con ella, el onTTSDone que pone a escuchar. Ahora la cola es nuestra y al motor solo se le pasa un
+ * mensaje cada vez, de modo que se puede decidir qué suena después:
+ *
+ * - PRIORITY_STATUS: avisos de estado y de error. Un aviso nuevo sustituye a los que estaban esperando,
+ *   se descartan si han esperado más de maxStatusWaitMs y los corta cualquier mensaje más prioritario.
+ * - PRIORITY_INFO: contenido (p.ej. los consejos de SugarAid). Nunca se descartan y suenan en orden.
+ * - PRIORITY_QUERY: preguntas tras las que se escucha al usuario. Pasan por delante de todo, y al
+ *   llegar descartan los avisos que estaban esperando y cortan el que está sonando.
+ *
+ * Con esto, lo que tarda en sonar una pregunta está acotado por el mensaje INFO que esté sonando.
+ * Además, si el usuario empieza a hablar ({@link #bargeIn()}) se corta el mensaje y se vacía la cola.
+ *
+ * No depende de Android: la salida se hace a través de {@link Output}.
+ */
+public class PromptScheduler {
+
+    public static final int PRIORITY_STATUS = 0;
+    public static final int PRIORITY_INFO = 1;
+    public static final int PRIORITY_QUERY = 2;
+
+    /**
+     * Quien dice los mensajes (el TTS o la caché de mensajes)
+     */
+    public interface Output {
+        /**
+         * Empieza a decir el mensaje; al terminar hay que llamar a onDone con utteranceId
+         * @return false si no se ha podido empezar (se pasa al siguiente)
+         */
+        boolean start(String text, Locale locale, String utteranceId);
+
+        /**
+         * Corta el mensaje que está sonando; no se espera su onDone
+         */
+        void interrupt();
+    }
+
+    private static final class Prompt {
+        final String text;
+        final Locale locale;
+        final String utteranceId;
+        final int priority;
+        final long enqueued;
+
+        Prompt(String text, Locale locale, String utteranceId, int priority, long enqueued) {
+            this.text = text;
+            this.locale = locale;
+            this.utteranceId = utteranceId;
+            this.priority = priority;
+            this.enqueued = enqueued;
+        }
+    }
+
+    private final Output output;
+    private final long maxStatusWaitNanos;
+    //Mensajes en espera, de mayor a menor prioridad y, dentro de cada prioridad, por orden de llegada
+    private final ArrayList<Prompt> queue = new ArrayList<Prompt>();
+    private Prompt current;
+    //Si ya ha empezado a sonar el mensaje actual; hasta entonces se ignoran los onDone, que pueden ser
+    //del mensaje cortado (los ids se repiten: todos los avisos de MainActivity son ID_PROMPT_INFO)
+    private boolean started;
+    private int dropped = 0;
+
+    /**
+     * @param maxStatusWaitMs tiempo máximo que un aviso puede esperar en la cola antes de descartarse
+     */
+    public PromptScheduler(Output output, long maxStatusWaitMs) {
+        this.output = output;
+        this.maxStatusWaitNanos = maxStatusWaitMs * 1000000L;
+    }
+
+    /**
+     * Añade un mensaje a la cola y lo dice enseguida si no está sonando nada
+     */
+    public synchronized void submit(String text, Locale locale, String utteranceId, int priority) {
+        long now = System.nanoTime();
+        if (priority == PRIORITY_STATUS || priority == PRIORITY_QUERY)
+            dropQueuedStatus();
+        Prompt p = new Prompt(text, locale, utteranceId, priority, now);
+        int i = 0;
+        while (i < queue.size() && queue.get(i).priority >= priority)
+            i++;
+        queue.add(i, p);
+
+        if (current == null)
+            startNext();
+        else if (current.priority == PRIORITY_STATUS && priority > PRIORITY_STATUS) {
+            //El aviso que está sonando deja paso al mensaje nuevo
+            output.interrupt();
+            dropped++;
+            current = null;
+            startNext();
+        }
+    }
+
+    /**
+     * El mensaje utteranceId ha empezado a sonar
+     */
+    public synchronized void onStart(String utteranceId) {
+        if (current != null && current.utteranceId.equals(utteranceId))
+            started = true;
+    }
+
+    /**
+     * El mensaje utteranceId ha terminado
+     * @return true si era el mensaje actual; false si es el final de un mensaje cortado, que se ignora
+     */
+    public synchronized boolean onDone(String utteranceId) {
+        if (current == null || !started || !current.utteranceId.equals(utteranceId))
+            return false;
+        current = null;
+        startNext();
+        return true;
+    }
+
+    /**
+     * No se ha podido decir el mensaje utteranceId. A diferencia de onDone no se espera al onStart: el
+     * motor puede fallar antes de empezar a sonar, y si se ignorase el error la cola se quedaría parada
+     * @return true si era el mensaje actual
+     */
+    public synchronized boolean onError(String utteranceId) {
+        if (current == null || !current.utteranceId.equals(utteranceId))
+            return false;
+        current = null;
+        startNext();
+        return true;
+    }
+
+    /**
+     * El usuario ha empezado a hablar: se corta el mensaje y se descartan los que estaban esperando
+     * @return true si había algo sonando o esperando
+     */
+    public synchronized boolean bargeIn() {
+        boolean busy = current != null || !queue.isEmpty();
+        dropped += queue.size();
+        queue.clear();
+        if (current != null) {
+            output.interrupt();
+            dropped++;
+            current = null;
+        }
+        return busy;
+    }
+
+    /**
+     * Vacía la cola sin contar los mensajes como descartados (p.ej. al cerrar la actividad)
+     */
+    public synchronized void clear() {
+        queue.clear();
+        if (current != null) {
+            output.interrupt();
+            current = null;
+        }
+    }
+
+    public synchronized boolean isIdle() {
+        return current == null && queue.isEmpty();
+    }
+
+    /**
+     * Número de mensajes descartados o cortados desde que se creó la cola
+     */
+    public synchronized int droppedCount() {
+        return dropped;
+    }
+
+    private void startNext() {
+        long now = System.nanoTime();
+        while (!queue.isEmpty()) {
+            Prompt p = queue.remove(0);
+            if (p.priority == PRIORITY_STATUS && now - p.enqueued > maxStatusWaitNanos) {
+                dropped++;
+                continue;
+            }
+            current = p;
+            started = false;
+            if (output.start(p.text, p.locale, p.utteranceId))
+                return;
+            current = null;
+        }
+    }
+
+    private void dropQueuedStatus() {
+        for (int i = queue.size() - 1; i >= 0; --i) {
+            if (queue.get(i).priority == PRIORITY_STATUS) {
+                queue.remove(i);
+                dropped++;
+            }
+        }
+    }
+}
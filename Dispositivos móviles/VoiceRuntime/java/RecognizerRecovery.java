@@ -0,0 +1,193 @@
+package com.example.laura.voice;
+
+import android.speech.SpeechRecognizer;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decide qué hacer con cada error del reconocedor durante un turno de voz: pasarlo a la actividad
+ * (no se ha entendido o nadie ha hablado), repetir la escucha tras una espera (fallos pasajeros de
+ * red, servidor o audio) o, además, recrear el SpeechRecognizer (ocupado o en mal estado).
+ *
+ * Las esperas crecen exponencialmente desde BASE_DELAY_MS hasta MAX_DELAY_MS, y se elige al azar un
+ * valor entre la mitad y el total, para que varios intentos (o varias aplicaciones contra el mismo
+ * servicio) no se repitan a la vez. Tras MAX_ATTEMPTS intentos el error se pasa a la actividad.
+ *
+ * El tiempo de recuperación (del primer error del turno a onReadyForSpeech) se registra en un
+ * histograma común a todo el proceso, que se ve en LatencyActivity con {@link #report()}.
+ * Una instancia solo se debe usar desde un hilo, el principal, que es donde llegan los eventos del
+ * reconocedor.
+ */
+public final class RecognizerRecovery {
+
+    //Qué hacer con el error
+    public static final int DELIVER = 0;    //Es el resultado del turno: se pasa a la actividad
+    public static final int RETRY = 1;      //Pasajero: se cancela y se vuelve a escuchar
+    public static final int RESET = 2;      //El reconocedor está en mal estado: se recrea y se vuelve a escuchar
+    public static final int FATAL = 3;      //No se arregla reintentando (p.ej. sin permiso): se pasa a la actividad
+
+    static final int MAX_ATTEMPTS = 3;
+    static final long BASE_DELAY_MS = 250;
+    static final long MAX_DELAY_MS = 2000;
+    //Un NO_MATCH antes de este tiempo es un fallo conocido del reconocedor, que no ha llegado a escuchar:
+    //http://stackoverflow.com/questions/31071650/speechrecognizer-throws-onerror-on-the-first-listening
+    static final long EARLY_NO_MATCH_MS = 500;
+
+    //Códigos de error conocidos (los de SpeechRecognizer van de 1 a 13 según la versión)
+    private static final int CODES = 16;
+
+    private static final LatencyHistogram RECOVERY = new LatencyHistogram();
+    private static final AtomicLong RECOVERED = new AtomicLong();
+    private static final AtomicLong FAILED = new AtomicLong();
+    private static final AtomicLongArray ERRORS = new AtomicLongArray(CODES);
+
+    private final Random random = new Random();
+    private int attempts = 0;
+    //Momento del primer error del turno, o 0 si no se está recuperando
+    private long firstErrorNanos = 0;
+
+    /**
+     * Qué hacer con un código de error de SpeechRecognizer, sin contar los intentos
+     */
+    public static int classify(int errorCode) {
+        switch (errorCode) {
+            case SpeechRecognizer.ERROR_NETWORK:
+            case SpeechRecognizer.ERROR_NETWORK_TIMEOUT:
+            case SpeechRecognizer.ERROR_SERVER:
+            case SpeechRecognizer.ERROR_AUDIO:
+                return RETRY;
+            case SpeechRecognizer.ERROR_RECOGNIZER_BUSY:
+            case SpeechRecognizer.ERROR_CLIENT:
+                return RESET;
+            case SpeechRecognizer.ERROR_INSUFFICIENT_PERMISSIONS:
+                return FATAL;
+            default:
+                //NO_MATCH, SPEECH_TIMEOUT y los que no conocemos son la respuesta del turno
+                return DELIVER;
+        }
+    }
+
+    /**
+     * Empieza un turno nuevo (se llama al pedir la escucha): los intentos vuelven a cero
+     */
+    public void reset() {
+        if (firstErrorNanos != 0)
+            FAILED.incrementAndGet();
+        attempts = 0;
+        firstErrorNanos = 0;
+    }
+
+    /**
+     * Registra un error del reconocedor
+     * @return RETRY o RESET si hay que intentarlo otra vez tras {@link #nextDelayMs()}; DELIVER o
+     * FATAL si hay que pasárselo a la actividad (también cuando ya se han agotado los intentos)
+     */
+    public int onError(int errorCode) {
+        return onError(errorCode, Long.MAX_VALUE);
+    }
+
+    /**
+     * Como {@link #onError(int)}, pero un ERROR_NO_MATCH que llega menos de EARLY_NO_MATCH_MS después
+     * de empezar a escuchar se reintenta como un fallo pasajero
+     * @param listeningMs tiempo desde que se pidió la escucha
+     */
+    public int onError(int errorCode, long listeningMs) {
+        ERRORS.incrementAndGet(errorCode > 0 && errorCode < CODES ? errorCode : 0);
+        int action = errorCode == SpeechRecognizer.ERROR_NO_MATCH && listeningMs < EARLY_NO_MATCH_MS
+                ? RETRY : classify(errorCode);
+        if (action == RETRY || action == RESET) {
+            if (attempts < MAX_ATTEMPTS) {
+                attempts++;
+                if (firstErrorNanos == 0)
+                    firstErrorNanos = System.nanoTime();
+                return action;
+            }
+            action = DELIVER;
+        }
+        giveUp();
+        return action;
+    }
+
+    /**
+     * Espera antes del intento actual: entre la mitad y el total de BASE_DELAY_MS * 2^(intento - 1),
+     * sin pasar de MAX_DELAY_MS
+     */
+    public long nextDelayMs() {
+        long delay = Math.min(MAX_DELAY_MS, BASE_DELAY_MS << Math.max(0, attempts - 1));
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2 + 1));
+    }
+
+    public int attempts() {
+        return attempts;
+    }
+
+    public boolean recovering() {
+        return firstErrorNanos != 0;
+    }
+
+    /**
+     * El reconocedor vuelve a escuchar (onReadyForSpeech): si se estaba recuperando de un error, se
+     * registra cuánto ha tardado
+     */
+    public void onReady() {
+        if (firstErrorNanos != 0) {
+            RECOVERY.recordNanos(System.nanoTime() - firstErrorNanos);
+            RECOVERED.incrementAndGet();
+        }
+        attempts = 0;
+        firstErrorNanos = 0;
+    }
+
+    /**
+     * No se va a intentar más (el error se pasa a la actividad o no se puede recrear el reconocedor)
+     */
+    public void giveUp() {
+        if (firstErrorNanos != 0)
+            FAILED.incrementAndGet();
+        attempts = 0;
+        firstErrorNanos = 0;
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    ///                         MEDIDAS                                               ///
+    /////////////////////////////////////////////////////////////////////////////////////
+
+    public static LatencyHistogram histogram() {
+        return RECOVERY;
+    }
+
+    public static void resetStats() {
+        RECOVERY.reset();
+        RECOVERED.set(0);
+        FAILED.set(0);
+        for (int i = 0; i < CODES; ++i)
+            ERRORS.set(i, 0);
+    }
+
+    /**
+     * Errores recibidos por código, recuperaciones y percentiles del tiempo de recuperación, en ms
+     */
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("recognizer errors:");
+        boolean any = false;
+        for (int i = 0; i < CODES; ++i) {
+            long n = ERRORS.get(i);
+            if (n > 0) {
+                sb.append(String.format(Locale.US, " %s=%d", i == 0 ? "other" : Integer.toString(i), n));
+                any = true;
+            }
+        }
+        if (!any)
+            sb.append(" none");
+        sb.append(String.format(Locale.US, "%nrecovered %d, failed %d%n", RECOVERED.get(), FAILED.get()));
+        sb.append(String.format(Locale.US, "%-36s %6s %9s %9s %9s %9s%n", "time to recover", "n", "p50", "p90", "p99", "max"));
+        sb.append(String.format(Locale.US, "%-36s %6d %9.1f %9.1f %9.1f %9.1f%n", "error -> ready", RECOVERY.count(),
+                RECOVERY.percentileMicros(0.50) / 1000.0, RECOVERY.percentileMicros(0.90) / 1000.0,
+                RECOVERY.percentileMicros(0.99) / 1000.0, RECOVERY.maxMicros() / 1000.0));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,158 @@
+package com.example.laura.voice;
+
+import android.annotation.SuppressLint;
+import android.os.Build;
+import android.os.Bundle;
+import android.speech.tts.TextToSpeech;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Capa delante del TextToSpeech para que los mensajes frecuentes (los de estado de MovingSound y
+ * SugarAid) no cuesten más que la llamada al motor. Antes cada speak llamaba a setLocale, que hacía
+ * dos isLanguageAvailable y un setLanguage (todas por IPC con el motor), creaba un HashMap de parámetros
+ * y convertía el id en un String. Aquí:
+ * - los Locale y su disponibilidad se calculan una sola vez por código de idioma y país,
+ * - el idioma del motor solo se cambia cuando es distinto del último que se puso,
+ * - los parámetros se reutilizan (un Bundle vacío desde la API 21, un único HashMap antes), y
+ * - los ids de locución pequeños se convierten a String una sola vez.
+ *
+ * Además lleva la lista de las locuciones pendientes, así que isSpeaking() no pregunta al motor.
+ *
+ * Los métodos están sincronizados porque el idioma y la síntesis tienen que ir juntos: la caché de
+ * mensajes sintetiza a fichero desde el hilo del TTS mientras la actividad habla desde el principal.
+ */
+public class TtsFrontEnd {
+
+    //Ids de locución precalculados
+    private static final String[] UTTERANCE_IDS = new String[256];
+    static {
+        for (int i = 0; i < UTTERANCE_IDS.length; ++i)
+            UTTERANCE_IDS[i] = Integer.toString(i);
+    }
+
+    private final TextToSpeech tts;
+    //Último idioma puesto en el motor (null si no se sabe)
+    private Locale current;
+    private final HashMap<Locale, Integer> availability = new HashMap<Locale, Integer>();
+    //Locale por código de idioma y, dentro de cada uno, por código de país ("" si no hay país)
+    private final HashMap<String, HashMap<String, Locale>> locales = new HashMap<String, HashMap<String, Locale>>();
+    private final Bundle params = new Bundle();
+    //Antes de la API 21: el motor copia los parámetros al llamarlo, así que basta un mapa al que se le cambia el id
+    private final HashMap<String, String> legacyParams = new HashMap<String, String>();
+    //Ids de las locuciones de speak que quedan por terminar (puede haber repetidos). No basta un contador:
+    //tras stop() puede llegar el fin de una locución cortada, que se descontaría de la siguiente
+    private final ArrayList<String> pending = new ArrayList<String>();
+
+    TtsFrontEnd(TextToSpeech tts) {
+        this.tts = tts;
+    }
+
+    /**
+     * Id de locución como String, sin crear objetos para los ids habituales (0 a 255)
+     */
+    public static String utteranceId(Integer id) {
+        int i = id;
+        return i >= 0 && i < UTTERANCE_IDS.length ? UTTERANCE_IDS[i] : id.toString();
+    }
+
+    /**
+     * Locale para los códigos de idioma y país (countryCode puede ser null), siempre la misma instancia
+     */
+    public synchronized Locale locale(String languageCode, String countryCode) {
+        HashMap<String, Locale> byCountry = locales.get(languageCode);
+        if (byCountry == null) {
+            byCountry = new HashMap<String, Locale>();
+            locales.put(languageCode, byCountry);
+        }
+        String country = countryCode == null ? "" : countryCode;
+        Locale locale = byCountry.get(country);
+        if (locale == null) {
+            locale = countryCode == null ? new Locale(languageCode) : new Locale(languageCode, countryCode);
+            byCountry.put(country, locale);
+        }
+        return locale;
+    }
+
+    /**
+     * Resultado de isLanguageAvailable, que solo se pregunta al motor la primera vez
+     */
+    public synchronized int availability(Locale locale) {
+        Integer result = availability.get(locale);
+        if (result == null) {
+            result = tts.isLanguageAvailable(locale);
+            availability.put(locale, result);
+        }
+        return result;
+    }
+
+    /**
+     * Pone el idioma en el motor si no es el que ya tenía
+     */
+    public synchronized void setLanguage(Locale locale) {
+        if (!locale.equals(current)) {
+            tts.setLanguage(locale);
+            current = locale;
+        }
+    }
+
+    public synchronized Locale getLanguage() {
+        return current;
+    }
+
+    /**
+     * Añade el texto a la cola del motor en el idioma indicado
+     * @return TextToSpeech.SUCCESS o TextToSpeech.ERROR
+     */
+    @SuppressLint("NewApi")
+    @SuppressWarnings("deprecation")
+    public synchronized int speak(CharSequence text, Locale locale, String utteranceId) {
+        setLanguage(locale);
+        int result;
+        if (Build.VERSION.SDK_INT >= 21)
+            result = tts.speak(text, TextToSpeech.QUEUE_ADD, params, utteranceId);
+        else
+            result = tts.speak(text.toString(), TextToSpeech.QUEUE_ADD, legacyParams(utteranceId));
+        if (result == TextToSpeech.SUCCESS)
+            pending.add(utteranceId);
+        return result;
+    }
+
+    /**
+     * Sintetiza el texto a un fichero WAV en el idioma indicado
+     */
+    @SuppressLint("NewApi")
+    @SuppressWarnings("deprecation")
+    public synchronized int synthesizeToFile(CharSequence text, Locale locale, File file, String utteranceId) {
+        setLanguage(locale);
+        if (Build.VERSION.SDK_INT >= 21)
+            return tts.synthesizeToFile(text, params, file, utteranceId);
+        return tts.synthesizeToFile(text.toString(), legacyParams(utteranceId), file.getPath());
+    }
+
+    /**
+     * True si queda alguna locución de speak por terminar
+     */
+    public synchronized boolean isSpeaking() {
+        return !pending.isEmpty();
+    }
+
+    public synchronized void stop() {
+        if (!pending.isEmpty())
+            tts.stop();
+        pending.clear();
+    }
+
+    //Fin (correcto o no) de una locución de speak; lo llama VoiceService. Se ignora si no estaba pendiente
+    synchronized void onUtteranceFinished(String utteranceId) {
+        pending.remove(utteranceId);
+    }
+
+    private HashMap<String, String> legacyParams(String utteranceId) {
+        legacyParams.put(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID, utteranceId);
+        return legacyParams;
+    }
+}
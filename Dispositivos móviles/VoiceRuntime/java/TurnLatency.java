@@ -0,0 +1,148 @@
+package com.example.laura.voice;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Medida de dónde se va el tiempo en cada turno de voz. Cada fase del turno se marca con
+ * {@link #mark(int)} (reloj monótono, System.nanoTime) y, para cada intervalo de la tabla INTERVALS,
+ * se registra en su histograma el tiempo desde la última marca de la fase de origen, siempre que esa
+ * marca sea de este turno (posterior a la marca anterior de la fase de destino).
+ *
+ * Todo está reservado de antemano: marcar una fase no crea objetos. Los percentiles se ven en
+ * LatencyActivity y se pueden volcar a un fichero con {@link #dump(File)}.
+ */
+public final class TurnLatency {
+
+    //Fases del turno
+    public static final int PROMPT = 0;          //Se pide decir un mensaje
+    public static final int TTS_START = 1;       //Empieza a sonar (onTTSStart)
+    public static final int TTS_DONE = 2;        //Termina (onTTSDone)
+    public static final int LISTEN = 3;          //startListening
+    public static final int READY = 4;           //onReadyForSpeech
+    public static final int SPEECH_BEGIN = 5;    //onBeginningOfSpeech
+    public static final int SPEECH_END = 6;      //onEndOfSpeech
+    public static final int RESULTS = 7;         //onResults
+    public static final int RESPONSE = 8;        //Empieza la respuesta: la canción o el consejo de SugarAid
+    private static final int STAGES = 9;
+
+    //Intervalos medidos: fase de origen, fase de destino y nombre
+    private static final int[][] INTERVALS = {
+            {PROMPT, TTS_START},
+            {TTS_START, TTS_DONE},
+            {TTS_DONE, LISTEN},
+            {LISTEN, READY},
+            {READY, SPEECH_BEGIN},
+            {SPEECH_BEGIN, SPEECH_END},
+            {SPEECH_END, RESULTS},
+            {RESULTS, RESPONSE},
+            {TTS_DONE, READY},
+            {SPEECH_END, RESPONSE},
+    };
+    private static final String[] NAMES = {
+            "prompt -> tts start",
+            "tts start -> tts done",
+            "tts done -> listen",
+            "listen -> ready",
+            "ready -> speech begin",
+            "speech begin -> speech end",
+            "speech end -> results",
+            "results -> response",
+            "tts done -> ready (mic gap)",
+            "speech end -> response (user wait)",
+    };
+
+    private static final TurnLatency INSTANCE = new TurnLatency();
+
+    private final AtomicLongArray last = new AtomicLongArray(STAGES);
+    private final LatencyHistogram[] histograms = new LatencyHistogram[INTERVALS.length];
+    //Intervalos que terminan en cada fase
+    private final int[][] byTarget = new int[STAGES][];
+
+    private TurnLatency() {
+        for (int i = 0; i < histograms.length; ++i)
+            histograms[i] = new LatencyHistogram();
+        for (int stage = 0; stage < STAGES; ++stage) {
+            int n = 0;
+            for (int[] interval : INTERVALS)
+                if (interval[1] == stage)
+                    n++;
+            byTarget[stage] = new int[n];
+            n = 0;
+            for (int i = 0; i < INTERVALS.length; ++i)
+                if (INTERVALS[i][1] == stage)
+                    byTarget[stage][n++] = i;
+        }
+    }
+
+    /**
+     * Medidas de todo el proceso (la comparten VoiceActivity, MusicService y LatencyActivity)
+     */
+    public static TurnLatency get() {
+        return INSTANCE;
+    }
+
+    public void mark(int stage) {
+        mark(stage, System.nanoTime());
+    }
+
+    public void mark(int stage, long nanos) {
+        long previous = last.getAndSet(stage, nanos);
+        for (int i : byTarget[stage]) {
+            long from = last.get(INTERVALS[i][0]);
+            if (from != 0 && from > previous && from <= nanos)
+                histograms[i].recordNanos(nanos - from);
+        }
+    }
+
+    public int intervals() {
+        return INTERVALS.length;
+    }
+
+    public String intervalName(int i) {
+        return NAMES[i];
+    }
+
+    public LatencyHistogram histogram(int i) {
+        return histograms[i];
+    }
+
+    public void reset() {
+        for (LatencyHistogram h : histograms)
+            h.reset();
+        for (int stage = 0; stage < STAGES; ++stage)
+            last.set(stage, 0);
+    }
+
+    /**
+     * Tabla con el número de medidas y los percentiles 50, 90 y 99 y el máximo de cada intervalo, en ms
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%-36s %6s %9s %9s %9s %9s%n", "interval", "n", "p50", "p90", "p99", "max"));
+        for (int i = 0; i < histograms.length; ++i) {
+            LatencyHistogram h = histograms[i];
+            sb.append(String.format(Locale.US, "%-36s %6d %9.1f %9.1f %9.1f %9.1f%n", NAMES[i], h.count(),
+                    h.percentileMicros(0.50) / 1000.0, h.percentileMicros(0.90) / 1000.0,
+                    h.percentileMicros(0.99) / 1000.0, h.maxMicros() / 1000.0));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Escribe el informe en el fichero (lo sobrescribe)
+     */
+    public void dump(File file) throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write(report());
+        } finally {
+            out.close();
+        }
+    }
+}
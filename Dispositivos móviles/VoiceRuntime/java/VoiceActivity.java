@@ -0,0 +1,1348 @@
+/*
+ *  Copyright 2016 Zoraida Callejas, Michael McTear and David Griol
+ *
+ *  This file is part of the Conversandroid Toolkit, from the book:
+ *  The Conversational Interface, Michael McTear, Zoraida Callejas and David Griol
+ *  Springer 2016 <https://github.com/zoraidacallejas/ConversationalInterface/>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.example.laura.voice;
+
+
+import android.Manifest;
+import android.annotation.SuppressLint;
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.pm.PackageManager;
+import android.media.AudioManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.speech.RecognitionListener;
+import android.speech.RecognizerIntent;
+import android.speech.SpeechRecognizer;
+import android.speech.tts.TextToSpeech;
+import android.support.v4.app.ActivityCompat;
+import android.support.v4.content.ContextCompat;
+import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
+
+import com.example.laura.dialogo.SlotFillingDialogue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Abstract class for voice interaction that encapsulates the management of the ASR and TTS engines.
+ * It contains abstract methods for processing the ASR and TTS events that may occur, which may be implemented
+ * in a non-abstract subclass to carry out a detailed management.
+ *
+ * The engines themselves live in the shared {@link VoiceService}, so they stay initialized when the
+ * activity is recreated (e.g. on rotation) or when another activity takes over the voice interaction.
+ * Both applications (MovingSound and SugarAid) extend this same class from the voice runtime.
+ *
+ * @author Zoraida Callejas, Michael McTear, David Griol
+ * @version 3.0, 02/14/16
+ *
+ * @see http://developer.android.com/reference/android/speech/tts/TextToSpeech.html
+ * @see http://developer.android.com/reference/android/speech/tts/UtteranceProgressListener.html
+ */
+
+
+public abstract class VoiceActivity extends AppCompatActivity implements VoiceService.Client{
+
+    private final int MY_PERMISSIONS_REQUEST_RECORD_AUDIO = 22;
+    private SpeechRecognizer myASR;
+    private TtsFrontEnd myTTS;
+    //Language for the next prompts, selected with setLocale
+    private Locale ttsLanguage = Locale.getDefault();
+    Activity ctx;
+
+    //Shared engines, and the prompts requested before they were available
+    private VoiceService voice;
+    private boolean voiceBound = false;
+    private boolean voiceReady = false;
+    //The TTS of the service could not be initialized: prompts fail instead of waiting
+    private boolean voiceFailed = false;
+    private final ArrayList<Runnable> pendingVoiceActions = new ArrayList<Runnable>();
+
+    private static final String LOGTAG = "VOICEACTIVITY";
+
+    //Prompt priorities (see PromptScheduler)
+    public static final int PRIORITY_STATUS = PromptScheduler.PRIORITY_STATUS;
+    public static final int PRIORITY_INFO = PromptScheduler.PRIORITY_INFO;
+    public static final int PRIORITY_QUERY = PromptScheduler.PRIORITY_QUERY;
+    //Maximum time that a status prompt may wait before being discarded
+    private static final long MAX_STATUS_WAIT_MS = 3000;
+    private boolean bargeIn = true;
+    //Whether the ASR is asked for partial results while the user is talking
+    private boolean partialResults = false;
+    //Voice activity detector on the RMS values, to end the turn without waiting for the ASR timeouts
+    private final EnergyEndpointer endpointer = new EnergyEndpointer();
+    private boolean endpointing = true;
+    //Timestamps of the stages of each voice turn
+    private final TurnLatency latency = TurnLatency.get();
+    //Retries of the last listen call after transient ASR errors
+    private final RecognizerRecovery recovery = new RecognizerRecovery();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private Intent lastListenIntent;
+    private long listenStartMs;
+    //Local grammar raced against the ASR (see setGrammar), and whether it has already given the result of this turn
+    private LocalGrammar grammar;
+    private float grammarThreshold;
+    private boolean grammarCommitted = false;
+    //Prompts and recognition started with speakAsync/listenAsync, completed in the main thread
+    private static final String ID_FUTURE = "FUTURE_";
+    private int futureIds = 0;
+    private final HashMap<String, VoiceFuture<Void>> pendingPrompts = new HashMap<String, VoiceFuture<Void>>();
+    private VoiceFuture<ArrayList<String>> pendingListen;
+    private final Runnable retryListening = new Runnable() {
+        @Override
+        public void run() {
+            if (myASR == null || lastListenIntent == null)
+                return;
+            latency.mark(TurnLatency.LISTEN);
+            listenStartMs = SystemClock.elapsedRealtime();
+            myASR.startListening(lastListenIntent);
+        }
+    };
+
+    /*
+     * Prompts are sent to the engine one at a time: from the prompt cache if they have already been
+     * synthesized, or through the TTS otherwise
+     */
+    private final PromptScheduler promptScheduler = new PromptScheduler(new PromptScheduler.Output() {
+        @Override
+        public boolean start(String text, Locale language, String utteranceId) {
+            boolean started = false;
+            if (voice != null) {
+                requestPromptFocus();
+                started = voice.getPromptCache().play(text, language, utteranceId)
+                        || myTTS.speak(text, language, utteranceId) == TextToSpeech.SUCCESS;
+            }
+            if (!started)
+                promptNotStarted(utteranceId);
+            return started;
+        }
+
+        @Override
+        public void interrupt() {
+            if (voice != null) {
+                voice.getPromptCache().stop();
+                myTTS.stop();
+            }
+        }
+    }, MAX_STATUS_WAIT_MS);
+
+    /*
+     * Transient audio focus held while prompts are being played: other audio (e.g. the music in
+     * MovingSound) is ducked instead of paused, and gets its volume back when the queue is empty
+     */
+    private AudioManager audioManager;
+    private boolean promptFocus = false;
+    private final AudioManager.OnAudioFocusChangeListener promptFocusListener = new AudioManager.OnAudioFocusChangeListener() {
+        @Override
+        public void onAudioFocusChange(int focusChange) { }
+    };
+
+    //Slot-filling dialogue in progress (null if none)
+    private SlotFillingDialogue slotFilling;
+    private Locale slotFillingLanguage;
+    private int slotFillingFailures;
+    private static final String ID_SLOT_FILLING = "SLOT_FILLING";
+    private static final int SLOT_FILLING_MAX_RESULTS = 5;
+    private static final int SLOT_FILLING_MAX_FAILURES = 3;
+
+
+/**********************************************************************************************************************************************************************
+ **********************************************************************************************************************************************************************
+ *
+ * 					AUTOMATIC SPEECH RECOGNITION
+ *
+ **********************************************************************************************************************************************************************
+ **********************************************************************************************************************************************************************/
+
+    /**
+     * Connects to the shared speech recognizer and text-to-speech synthesizer. The first time, the
+     * {@link VoiceService} creates them; afterwards (e.g. when the activity is recreated) the warm
+     * instances are reused. Prompts spoken before the TTS is ready are queued and synthesized as soon
+     * as it is.
+     * @see RecognitionListener.java
+     * @param ctx context of the interaction
+     * */
+    public void initSpeechInputOutput(Activity ctx) {
+        this.ctx = ctx;
+        audioManager = (AudioManager) ctx.getSystemService(Context.AUDIO_SERVICE);
+        VoiceService.bind(ctx, voiceConnection);
+        voiceBound = true;
+    }
+
+    private final ServiceConnection voiceConnection = new ServiceConnection() {
+
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            voice = ((VoiceService.VoiceBinder) service).getService();
+            voice.attach(VoiceActivity.this);
+            myASR = voice.getRecognizer();  //null if speech recognition is not supported
+            myTTS = voice.getTtsFrontEnd();
+            voice.whenReady(new Runnable() {
+                public void run() {
+                    voiceReady = true;
+                    voiceFailed = voice.isTextToSpeechFailed();
+                    for (Runnable action : pendingVoiceActions)
+                        action.run();
+                    pendingVoiceActions.clear();
+                }
+            });
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            voice = null;
+            voiceReady = false;
+            voiceFailed = false;
+            myASR = null;
+            myTTS = null;
+        }
+    };
+
+    /**
+     * Checks whether the user has granted permission to the microphone. If the permission has not been provided,
+     * it is requested. The result of the request (whether the user finally grants the permission or not)
+     * is processed in the onRequestPermissionsResult method.
+     *
+     * This is necessary from Android 6 (API level 23), in which users grant permissions to apps
+     * while the app is running. In previous versions, the permissions were granted when installing the app
+     * See: http://developer.android.com/intl/es/training/permissions/requesting.html
+     */
+    public void checkASRPermission() {
+        if (ContextCompat.checkSelfPermission(ctx, Manifest.permission.RECORD_AUDIO)
+                != PackageManager.PERMISSION_GRANTED) {
+
+            // If  an explanation is required, show it
+            if (ActivityCompat.shouldShowRequestPermissionRationale((Activity) ctx, Manifest.permission.RECORD_AUDIO))
+                showRecordPermissionExplanation();
+
+            // Request the permission.
+            ActivityCompat.requestPermissions((Activity) ctx, new String[]{Manifest.permission.RECORD_AUDIO},
+                        MY_PERMISSIONS_REQUEST_RECORD_AUDIO); //Callback in "onRequestPermissionResult"
+            }
+    }
+
+    /**
+     * Processes the result of the record audio permission request. If it is not granted, the
+     * abstract method "onRecordAudioPermissionDenied" method is invoked. Such method must be implemented
+     * by the subclasses of VoiceActivity.
+     * More info: http://developer.android.com/intl/es/training/permissions/requesting.html
+     * */
+    @Override
+    public void onRequestPermissionsResult(int requestCode, String permissions[], int[] grantResults) {
+        if(requestCode == MY_PERMISSIONS_REQUEST_RECORD_AUDIO) {
+                // If request is cancelled, the result arrays are empty.
+                if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+                    Log.i(LOGTAG, "Record audio permission granted");
+                } else {
+                    Log.i(LOGTAG, "Record audio permission denied");
+                    onRecordAudioPermissionDenied();
+                }
+            }
+    }
+
+    /**
+     * Invoked when it is necessary to explain to the user why we need permission to record audio on the device
+     */
+    public abstract void showRecordPermissionExplanation();
+
+    /**
+     * Invoked when the permission to record audio on the device is denied
+     */
+    public abstract void onRecordAudioPermissionDenied();
+
+
+    /**
+     * Starts speech recognition after checking the ASR parameters
+     *
+     * @param language Language used for speech recognition (e.g. Locale.ENGLISH)
+     * @param languageModel Type of language model used (free form or web search)
+     * @param maxResults Maximum number of recognition results
+     * @exception An exception is raised if the language specified is not available or the other parameters are not valid
+     */
+    public void listen(final Locale language, final String languageModel, final int maxResults) throws Exception
+    {
+        checkASRPermission();
+        //The results of this turn go to processAsrResults, not to a previous listenAsync
+        cancelListenFuture();
+        startListening(listenIntent(language, languageModel, maxResults));
+    }
+
+    /*
+     * Builds the intent for a recognition turn, so that it can be prepared while a prompt is still
+     * playing (see ask)
+     */
+    private Intent listenIntent(final Locale language, final String languageModel, final int maxResults) throws Exception
+    {
+        if((languageModel.equals(RecognizerIntent.LANGUAGE_MODEL_FREE_FORM) || languageModel.equals(RecognizerIntent.LANGUAGE_MODEL_WEB_SEARCH)) && (maxResults>=0))
+        {
+            Intent intent = new Intent(RecognizerIntent.ACTION_RECOGNIZE_SPEECH);
+
+            // Specify the calling package to identify the application
+            intent.putExtra(RecognizerIntent.EXTRA_CALLING_PACKAGE, ctx.getPackageName());
+            //Caution: be careful not to use: getClass().getPackage().getName());
+
+            // Specify language model
+            intent.putExtra(RecognizerIntent.EXTRA_LANGUAGE_MODEL, languageModel);
+
+            // Specify how many results to receive. Results listed in order of confidence
+            intent.putExtra(RecognizerIntent.EXTRA_MAX_RESULTS, maxResults);
+
+            // Specify recognition language
+            intent.putExtra(RecognizerIntent.EXTRA_LANGUAGE, language);
+
+            // Ask for partial results if the subclass wants to work on them before the final ones,
+            // or to match them against the local grammar
+            intent.putExtra(RecognizerIntent.EXTRA_PARTIAL_RESULTS, partialResults || grammar != null);
+
+            return intent;
+        }
+        else {
+            Log.e(LOGTAG, "Invalid params to listen method");
+            throw new Exception("Invalid params to listen method"); //If the input parameters are not valid, it throws an exception
+        }
+
+    }
+
+    private void startListening(Intent intent)
+    {
+        // Without connection, ask for the on-device recognizer (the state is cached, see isOnline)
+        if (canListenOffline() && !isOnline())
+            intent.putExtra(RecognizerIntent.EXTRA_PREFER_OFFLINE, true);
+        else
+            intent.removeExtra(RecognizerIntent.EXTRA_PREFER_OFFLINE);
+
+        //A new turn: a retry of the previous one is no longer wanted
+        handler.removeCallbacks(retryListening);
+        recovery.reset();
+        lastListenIntent = intent;
+        grammarCommitted = false;
+
+        latency.mark(TurnLatency.LISTEN);
+        listenStartMs = SystemClock.elapsedRealtime();
+        myASR.startListening(intent);
+    }
+
+
+
+
+    /**
+     * Whether the device has Internet access. The state is kept by the {@link VoiceService} with the
+     * events of the system, so this does not query the ConnectivityManager and can be called before
+     * every turn. Until the service is connected the device is assumed to be online
+     */
+    public boolean isOnline() {
+        return voice == null || voice.getConnectivity().isOnline();
+    }
+
+    /**
+     * Whether the recognizer can be asked to work without connection (Android 6 or later). It only
+     * recognizes if the offline language pack is installed; otherwise it ends with a network error
+     */
+    public boolean canListenOffline() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    /**
+     * Stops listening to the user
+     */
+    public void stopListening(){
+        endpointer.stop();
+        handler.removeCallbacks(retryListening);
+        myASR.stopListening();
+    }
+
+    /********************************************************************************************************
+     * This class implements the {@link RecognitionListener} interface,
+     * thus it implement its methods. However not all of them were interesting to us:
+     * ******************************************************************************************************
+     */
+
+    @SuppressLint("InlinedApi")
+	/*
+	 * (non-Javadoc)
+	 *
+	 * Invoked when the ASR provides recognition results
+	 *
+	 * @see android.speech.RecognitionListener#onResults(android.os.Bundle)
+	 */
+    @Override
+    public void onResults(Bundle results) {
+        if(grammarCommitted)
+            return;     //The local grammar has already given the result of this turn
+        latency.mark(TurnLatency.RESULTS);
+        endpointer.stop();
+        if(slotFilling!=null){
+            processSlotFillingResults(results);
+            return;
+        }
+        if(results!=null){
+            ArrayList<String> nBestList = results.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION);
+            float[] nBestConfidences = null;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {  //Checks the API level because the confidence scores are supported only from API level 14:
+                //http://developer.android.com/reference/android/speech/SpeechRecognizer.html#CONFIDENCE_SCORES
+                nBestConfidences = results.getFloatArray(SpeechRecognizer.CONFIDENCE_SCORES);
+                //											Attention: It is not RecognizerIntent.EXTRA_RESULTS, that is for intents (see the ASRWithIntent app)
+            }
+            if (grammar != null && nBestList != null && rankWithGrammar(nBestList, nBestConfidences))
+                return;
+            //Processes the recognition results and their confidences
+            deliverResults(nBestList, nBestConfidences);
+        }
+        else
+            //Processes recognition errors
+            deliverError(SpeechRecognizer.ERROR_NO_MATCH);
+    }
+
+    //The results of a turn go to the listenAsync that started it, if any, or to processAsrResults
+    private void deliverResults(ArrayList<String> nBestList, float[] nBestConfidences) {
+        VoiceFuture<ArrayList<String>> future = pendingListen;
+        pendingListen = null;
+        if (future == null)
+            processAsrResults(nBestList, nBestConfidences);
+        else if (nBestList == null || nBestList.isEmpty())
+            future.fail(new AsrException(SpeechRecognizer.ERROR_NO_MATCH));
+        else
+            future.complete(nBestList);
+    }
+
+    private void deliverError(int errorCode) {
+        VoiceFuture<ArrayList<String>> future = pendingListen;
+        pendingListen = null;
+        if (future == null)
+            processAsrError(errorCode);
+        else
+            future.fail(new AsrException(errorCode));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * Invoked when the ASR is ready to start listening
+     *
+     * @see android.speech.RecognitionListener#onReadyForSpeech(android.os.Bundle)
+     */
+    @Override
+    public void onReadyForSpeech(Bundle arg0) {
+        latency.mark(TurnLatency.READY);
+        endpointer.reset(SystemClock.elapsedRealtime());
+        recovery.onReady();
+        processAsrReadyForSpeech();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * Invoked when the ASR encounters an error
+     *
+     * @see android.speech.RecognitionListener#onError(int)
+     */
+    @Override
+    public void onError(int errorCode) {
+        endpointer.stop();
+        if(grammarCommitted)
+            return;     //Errors after cancelling a turn already answered by the local grammar
+        if(recover(errorCode))
+            return;
+        if(slotFilling!=null)
+            processSlotFillingResults(null);
+        else
+            deliverError(errorCode);
+    }
+
+    /*
+     * Transient errors (network, server, audio) are retried after a jittered backoff, and a busy or
+     * broken recognizer is recreated first, so the turn goes on without the subclass noticing.
+     * Returns false if the error has to be processed as usual: it is the answer to the turn
+     * (no match, no speech), it cannot be fixed by retrying, or the attempts are exhausted
+     */
+    private boolean recover(int errorCode) {
+        if (myASR == null || lastListenIntent == null)
+            return false;
+        //A NO_MATCH right after startListening means that the recognizer did not even try: retried too
+        int action = recovery.onError(errorCode, SystemClock.elapsedRealtime() - listenStartMs);
+        //Network errors are not retried while there is no network: the next turn will go offline
+        if (action == RecognizerRecovery.RETRY && !isOnline()
+                && (errorCode == SpeechRecognizer.ERROR_NETWORK || errorCode == SpeechRecognizer.ERROR_NETWORK_TIMEOUT)) {
+            recovery.giveUp();
+            return false;
+        }
+        if (action == RecognizerRecovery.RESET) {
+            SpeechRecognizer recreated = voice != null ? voice.resetRecognizer() : null;
+            if (recreated == null) {
+                recovery.giveUp();
+                return false;
+            }
+            myASR = recreated;
+        }
+        else if (action == RecognizerRecovery.RETRY)
+            myASR.cancel();
+        else
+            return false;
+        long delay = recovery.nextDelayMs();
+        Log.i(LOGTAG, "ASR error " + errorCode + ": " + (action == RecognizerRecovery.RESET ? "recognizer recreated, " : "")
+                + "retry " + recovery.attempts() + " in " + delay + " ms");
+        handler.removeCallbacks(retryListening);
+        handler.postDelayed(retryListening, delay);
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see android.speech.RecognitionListener#onBeginningOfSpeech()
+     */
+    @Override
+    public void onBeginningOfSpeech() {
+        latency.mark(TurnLatency.SPEECH_BEGIN);
+        endpointer.onSpeechBegin(SystemClock.elapsedRealtime());
+        //Barge-in: the user has started talking, so the prompt being played is no longer needed
+        if (bargeIn && promptScheduler.bargeIn()) {
+            Log.i(LOGTAG, "Barge-in: prompt interrupted");
+            abandonPromptFocusIfIdle();
+            cancelPromptFutures();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see android.speech.RecognitionListener#onBufferReceived(byte[])
+     */
+    @Override
+    public void onBufferReceived(byte[] buffer) { }
+
+    /*
+     * (non-Javadoc)
+     * @see android.speech.RecognitionListener#onBeginningOfSpeech()
+     */
+    @Override
+    public void onEndOfSpeech() {
+        latency.mark(TurnLatency.SPEECH_END);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see android.speech.RecognitionListener#onEvent(int, android.os.Bundle)
+     */
+    @Override
+    public void onEvent(int arg0, Bundle arg1) {}
+
+    /*
+     * (non-Javadoc)
+     * @see android.speech.RecognitionListener#onPartialResults(android.os.Bundle)
+     */
+    @Override
+    public void onPartialResults(Bundle partial) {
+        if(slotFilling!=null || partial==null)
+            return;
+        ArrayList<String> hypotheses = partial.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION);
+        if(hypotheses==null || hypotheses.isEmpty() || hypotheses.get(0).length()==0 || grammarCommitted)
+            return;
+        if(grammar!=null && commitPartial(hypotheses))
+            return;
+        if(partialResults)
+            processAsrPartialResults(hypotheses);
+    }
+
+    /*
+     * The local grammar races the ASR: if a partial hypothesis already matches a phrase of the grammar
+     * with enough confidence, and it cannot be the beginning of a longer phrase, the turn ends here
+     * with that phrase, without waiting for the end of speech and the final result of the ASR
+     */
+    private boolean commitPartial(ArrayList<String> hypotheses) {
+        for (String hypothesis : hypotheses) {
+            LocalGrammar.Match match = grammar.match(hypothesis);
+            if (match != null && match.complete && match.score >= grammarThreshold) {
+                Log.i(LOGTAG, "Local grammar: \"" + match.phrase + "\" from partial \"" + hypothesis + "\" (" + match.score + ")");
+                grammarCommitted = true;
+                endpointer.stop();
+                handler.removeCallbacks(retryListening);
+                if (myASR != null)
+                    myASR.cancel();
+                latency.mark(TurnLatency.RESULTS);
+                deliverResults(new ArrayList<String>(Collections.singletonList(match.phrase)), new float[]{match.score});
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Final results with a local grammar: the first hypothesis of the N-best list that matches a phrase
+     * of the grammar with enough confidence is replaced by that phrase and moved to the top of the list.
+     * Returns false if none does, and then the list is processed as it came from the ASR
+     */
+    private boolean rankWithGrammar(ArrayList<String> nBestList, float[] nBestConfidences) {
+        for (int i = 0; i < nBestList.size(); ++i) {
+            LocalGrammar.Match match = grammar.match(nBestList.get(i));
+            if (match != null && match.score >= grammarThreshold) {
+                ArrayList<String> ranked = new ArrayList<String>(nBestList.size() + 1);
+                ranked.add(match.phrase);
+                ranked.addAll(nBestList);
+                float[] confidences = new float[ranked.size()];
+                confidences[0] = match.score;
+                if (nBestConfidences != null)
+                    System.arraycopy(nBestConfidences, 0, confidences, 1, Math.min(nBestConfidences.length, nBestList.size()));
+                deliverResults(ranked, confidences);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+ * (non-Javadoc)
+ * @see android.speech.RecognitionListener#onRmsChanged(float)
+ */
+    @Override
+    public void onRmsChanged(float rmsdB) {
+        if(!endpointing || myASR==null)
+            return;
+        switch (endpointer.onRms(rmsdB, SystemClock.elapsedRealtime())) {
+            case EnergyEndpointer.SPEECH_END:
+                //The utterance is over: ask for the results without waiting for the ASR silence timeout
+                Log.i(LOGTAG, "Endpointer: end of speech");
+                myASR.stopListening();
+                break;
+            case EnergyEndpointer.NO_SPEECH:
+                //Nobody is talking: end the turn as the ASR would do after its own timeout
+                Log.i(LOGTAG, "Endpointer: no speech");
+                myASR.cancel();
+                onError(SpeechRecognizer.ERROR_SPEECH_TIMEOUT);
+                break;
+        }
+    }
+
+    /**
+     * Processes the ASR recognition results
+     * @param nBestList	List of the N recognition results
+     * @param nBestConfidences List of the N corresponding confidences
+     */
+    public abstract void processAsrResults(ArrayList<String> nBestList, float [] nBestConfidences);
+
+    /**
+     * Processes the partial hypotheses received while the user is still talking (only if they have
+     * been requested with <code>setPartialResults</code>). Any work started here is speculative: the
+     * final result is still delivered to <code>processAsrResults</code> or <code>processAsrError</code>,
+     * which must confirm or cancel it. Does nothing by default.
+     * @param partialResults Partial hypotheses, the most likely first
+     */
+    public void processAsrPartialResults(ArrayList<String> partialResults) { }
+
+    /**
+     * Processes the situation in which the ASR engine is ready to listen
+     */
+    public abstract void processAsrReadyForSpeech();
+
+    /**
+     * Processes ASR error situations
+     * @param errorCode code of the error (constant of the {@link SpeechRecognizer} class
+     */
+    public abstract void processAsrError(int errorCode);
+
+
+
+
+/**********************************************************************************************************************************************************************
+ **********************************************************************************************************************************************************************
+ *
+ * 					TEXT TO SPEECH
+ *
+ **********************************************************************************************************************************************************************
+ **********************************************************************************************************************************************************************/
+
+    /*
+     * (non-Javadoc)
+     * Invoked by the VoiceService (from the TTS thread) when an utterance has been synthesized
+     * @see com.example.laura.voice.VoiceService.Client#onUtteranceDone(String)
+     */
+    @Override
+    public void onUtteranceDone(String utteranceId) {
+        boolean finished = promptScheduler.onDone(utteranceId);
+        if(finished)
+            latency.mark(TurnLatency.TTS_DONE);
+        //An interrupted prompt also ends its future: what comes next can go on
+        if(utteranceId.startsWith(ID_FUTURE))
+            completePromptFuture(utteranceId, null);
+        if(!finished)
+            return;     //End of a prompt that was interrupted
+        abandonPromptFocusIfIdle();
+        if(ID_SLOT_FILLING.equals(utteranceId))
+            onSlotFillingPromptDone();
+        else if(!utteranceId.startsWith(ID_FUTURE))
+            onTTSDone(utteranceId);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.example.laura.voice.VoiceService.Client#onUtteranceError(String)
+     */
+    @Override
+    public void onUtteranceError(String utteranceId) {
+        //The synthesis may fail before onUtteranceStart, so the scheduler must not wait for it here
+        promptScheduler.onError(utteranceId);
+        abandonPromptFocusIfIdle();
+        if(utteranceId.startsWith(ID_FUTURE))
+            completePromptFuture(utteranceId, new Exception("TTS error"));
+        else
+            onTTSError(utteranceId);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.example.laura.voice.VoiceService.Client#onUtteranceStart(String)
+     */
+    @Override
+    public void onUtteranceStart(String utteranceId) {
+        promptScheduler.onStart(utteranceId);
+        latency.mark(TurnLatency.TTS_START);
+        if(!utteranceId.startsWith(ID_FUTURE))
+            onTTSStart(utteranceId);
+    }
+
+    /**
+     * Invoked when the utterance uttId has successfully completed processing
+     */
+    public abstract void onTTSDone(String uttId);
+
+
+    /**
+     * Invoked when an error has occurred while processing the utterance uttId
+     */
+    public abstract void onTTSError(String uttId);
+
+    /**
+     * Invoked when the utterance uttId "starts" as perceived by the user
+     */
+    public abstract void onTTSStart(String uttId);
+
+    /**
+     * Sets the locale for speech synthesis taking into account the language and country codes
+     * If the <code>countryCode</code> is null, it just sets the language, if the
+     * <code>languageCode</code> is null, it uses the default language of the device
+     * If any of the codes are not valid, it uses the default language
+     *
+     * The availability of each locale is asked to the engine only once, and the engine language is
+     * only switched when a prompt is synthesized in a language different from the previous one.
+     *
+     * @param languageCode a String representing the language code, e.g. EN
+     * @param countryCode a String representing the country code for the language used, e.g. US.
+     * @throws Exception when the codes supplied cannot be used and the default locale is selected
+     */
+    public void setLocale(String languageCode, String countryCode) throws Exception{
+        if(languageCode==null)
+        {
+            setLocale();
+            throw new Exception("Language code was not provided, using default locale");
+        }
+        else{
+            if(countryCode==null)
+                setLocale(languageCode);
+            else {
+                Locale lang = myTTS.locale(languageCode, countryCode);
+                if (myTTS.availability(lang) == TextToSpeech.LANG_COUNTRY_VAR_AVAILABLE )
+                    ttsLanguage = lang;
+                else
+                {
+                    setLocale();
+                    throw new Exception("Language or country code not supported, using default locale");
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the locale for speech synthesis taking into account the language code
+     * If the code is null or not valid, it uses the default language of the device
+     *
+     * @param languageCode a String representing the language code, e.g. EN
+     * @throws Exception when the code supplied cannot be used and the default locale is selected
+     */
+    public void setLocale(String languageCode) throws Exception{
+        if(languageCode==null)
+        {
+            setLocale();
+            throw new Exception("Language code was not provided, using default locale");
+        }
+        else {
+            Locale lang = myTTS.locale(languageCode, null);
+            int available = myTTS.availability(lang);
+            if (available != TextToSpeech.LANG_MISSING_DATA && available != TextToSpeech.LANG_NOT_SUPPORTED)
+                ttsLanguage = lang;
+            else
+            {
+                setLocale();
+                throw new Exception("Language code not supported, using default locale");
+            }
+        }
+    }
+
+    /**
+     * Sets the default language of the device as locale for speech synthesis
+     */
+    public void setLocale(){
+        ttsLanguage = Locale.getDefault();
+    }
+
+    /**
+     * Synthesizes a text in the language indicated (or in the default language of the device
+     * it it is not available)
+     *
+     * @param languageCode language for the TTS, e.g. EN
+     * @param countryCode country for the TTS, e.g. US
+     * @param text string to be synthesized
+     * @param id integer that identifies the prompt uniquely
+     * @throws Exception when the codes supplied cannot be used and the default locale is selected, or the TTS could not be initialized
+     */
+    public void speak(final String text, final String languageCode, final String countryCode, final Integer id) throws Exception{
+        if(!voiceReady){
+            pendingVoiceActions.add(new Runnable() {
+                public void run() {
+                    try { speak(text, languageCode, countryCode, id); } catch (Exception e) { Log.e(LOGTAG, e.getMessage()); }
+                }
+            });
+            return;
+        }
+        checkTextToSpeech();
+        setLocale(languageCode, countryCode);
+        latency.mark(TurnLatency.PROMPT);
+        promptScheduler.submit(text, ttsLanguage, TtsFrontEnd.utteranceId(id), PRIORITY_INFO);
+    }
+
+    /**
+     * Synthesizes a text in the language indicated (or in the default language of the device
+     * if it is not available)
+     *
+     * @param languageCode language for the TTS, e.g. EN
+     * @param text string to be synthesized
+     * @param id integer that identifies the prompt uniquely
+     * @throws Exception when the code supplied cannot be used and the default locale is selected
+     */
+    public void speak(String text, String languageCode, Integer id) throws Exception{
+        speak(text, languageCode, id, PRIORITY_INFO);
+    }
+
+    /**
+     * Synthesizes a text in the language indicated with the priority given. Prompts are played one
+     * at a time: questions (PRIORITY_QUERY) go before anything else and cut the status prompt being
+     * played, status and error prompts (PRIORITY_STATUS) replace the ones still waiting and are
+     * discarded if they wait too long, and the rest (PRIORITY_INFO) are played in order.
+     *
+     * @param languageCode language for the TTS, e.g. EN
+     * @param text string to be synthesized
+     * @param id integer that identifies the prompt uniquely
+     * @param priority PRIORITY_STATUS, PRIORITY_INFO or PRIORITY_QUERY
+     * @throws Exception when the code supplied cannot be used and the default locale is selected, or the TTS could not be initialized
+     */
+    public void speak(final String text, final String languageCode, final Integer id, final int priority) throws Exception{
+        if(!voiceReady){
+            pendingVoiceActions.add(new Runnable() {
+                public void run() {
+                    try { speak(text, languageCode, id, priority); } catch (Exception e) { Log.e(LOGTAG, e.getMessage()); }
+                }
+            });
+            return;
+        }
+        checkTextToSpeech();
+        setLocale(languageCode);
+        latency.mark(TurnLatency.PROMPT);
+        promptScheduler.submit(text, ttsLanguage, TtsFrontEnd.utteranceId(id), priority);
+    }
+
+    /**
+     * Synthesizes a text using the default language of the device
+     *
+     * @param text string to be synthesized
+     * @param id integer that identifies the prompt uniquely
+     * @throws IllegalStateException when the TTS could not be initialized
+     */
+    public void speak(final String text, final Integer id){
+        if(!voiceReady){
+            pendingVoiceActions.add(new Runnable() {
+                public void run() {
+                    try { speak(text, id); } catch (IllegalStateException e) { Log.e(LOGTAG, e.getMessage()); }
+                }
+            });
+            return;
+        }
+        checkTextToSpeech();
+        setLocale();
+        latency.mark(TurnLatency.PROMPT);
+        promptScheduler.submit(text, ttsLanguage, TtsFrontEnd.utteranceId(id), PRIORITY_INFO);
+    }
+
+    /*
+     * Prompts cannot be spoken if the TTS of the service failed to initialize; callers of speak
+     * find out through the exception, as they would with an unsupported language
+     */
+    private void checkTextToSpeech() {
+        if (voiceFailed)
+            throw new IllegalStateException("The TTS could not be initialized");
+    }
+
+    /**
+     * Opens the debug screen with the latency percentiles of each stage of the voice turns
+     */
+    public void showLatencies() {
+        startActivity(new Intent(this, LatencyActivity.class));
+    }
+
+    /**
+     * Enables or disables barge-in: when enabled (the default), the prompt being played and the ones
+     * waiting are discarded as soon as the ASR detects that the user has started talking
+     */
+    public void setBargeIn(boolean enabled) {
+        bargeIn = enabled;
+    }
+
+    /**
+     * Enables or disables partial results (disabled by default). When enabled, the hypotheses the ASR
+     * produces while the user is talking are passed to <code>processAsrPartialResults</code>
+     */
+    public void setPartialResults(boolean enabled) {
+        partialResults = enabled;
+    }
+
+    /**
+     * Sets the phrases expected in the next turns (commands, song titles...), or null to recognize
+     * free speech only. The hypotheses of the ASR are matched against them on the device: a partial
+     * hypothesis that matches a phrase with a score of at least <code>threshold</code> (0 to 1, 1 being
+     * an exact match after removing case, accents and punctuation) ends the turn at once, and otherwise
+     * the best matching hypothesis of the final N-best list is put first. In both cases
+     * <code>processAsrResults</code> receives the phrase as written in the grammar, with its score as
+     * confidence. Ask for several results in <code>listen</code> to give the grammar more chances
+     */
+    public void setGrammar(LocalGrammar grammar, float threshold) {
+        this.grammar = grammar;
+        grammarThreshold = threshold;
+    }
+
+    /**
+     * Enables or disables the energy-based endpointing (enabled by default). When enabled, the RMS
+     * values of the ASR are used to call <code>stopListening</code> as soon as the user stops talking,
+     * and to end with <code>ERROR_SPEECH_TIMEOUT</code> when nobody talks, instead of waiting for the
+     * timeouts of the ASR. It can be disabled for engines whose RMS values are not reliable
+     */
+    public void setEndpointing(boolean enabled) {
+        endpointing = enabled;
+        if(!enabled)
+            endpointer.stop();
+    }
+
+    /**
+     * Synthesizes a fixed prompt (e.g. the initial question) in the background, so that it is played
+     * from the prompt cache without waiting for the synthesis. Prompts that are spoken more than once
+     * are cached anyway; this is only needed to have them ready the first time.
+     *
+     * @param text string to be synthesized
+     * @param languageCode language for the TTS, e.g. EN
+     */
+    public void cachePrompt(final String text, final String languageCode) {
+        if(!voiceReady){
+            pendingVoiceActions.add(new Runnable() {
+                public void run() {
+                    cachePrompt(text, languageCode);
+                }
+            });
+            return;
+        }
+        if (!voiceFailed)
+            voice.getPromptCache().prefetch(text, myTTS.locale(languageCode, null));
+    }
+
+    /**
+     * Stops the synthesizer if it is speaking and discards the prompts waiting to be played
+     */
+    public void stop(){
+        promptScheduler.clear();
+        abandonPromptFocusIfIdle();
+        cancelPromptFutures();
+    }
+
+    /**
+     * Stops the speech synthesis and recognition and disconnects from the shared engines. It is
+     * important to call it, as otherwise the service would keep sending events to this activity.
+     * The engines are not released here: the {@link VoiceService} keeps them for the next activity
+     * and releases them itself when no activity has used them for a while.
+     * See here: http://developer.android.com/guide/topics/resources/runtime-changes.html
+     */
+    public void shutdown(){
+        pendingVoiceActions.clear();
+        cancelPromptFutures();
+        cancelListenFuture();
+        handler.removeCallbacks(retryListening);
+        recovery.giveUp();
+        lastListenIntent=null;
+        promptScheduler.clear();
+        abandonPromptFocusIfIdle();
+        if(voice!=null)
+            voice.detach(this);
+        if(voiceBound)
+            ctx.unbindService(voiceConnection);
+        voiceBound=false;
+        voice=null;
+        voiceReady=false;
+        voiceFailed=false;
+        myTTS=null;
+        myASR=null;
+    }
+
+    //Called from the scheduler when a prompt is about to be played (the focus is requested only once
+    //for a run of prompts)
+    private synchronized void requestPromptFocus() {
+        if (!promptFocus && audioManager != null)
+            promptFocus = audioManager.requestAudioFocus(promptFocusListener, AudioManager.STREAM_MUSIC,
+                    AudioManager.AUDIOFOCUS_GAIN_TRANSIENT_MAY_DUCK) == AudioManager.AUDIOFOCUS_REQUEST_GRANTED;
+    }
+
+    //Gives the focus back once nothing is playing or waiting. The scheduler is checked before taking
+    //this lock, because it calls requestPromptFocus holding its own
+    private void abandonPromptFocusIfIdle() {
+        if (!promptScheduler.isIdle())
+            return;
+        synchronized (this) {
+            if (promptFocus) {
+                audioManager.abandonAudioFocus(promptFocusListener);
+                promptFocus = false;
+            }
+        }
+    }
+
+
+
+/**********************************************************************************************************************************************************************
+ **********************************************************************************************************************************************************************
+ *
+ * 					CHAINED TURNS
+ *
+ **********************************************************************************************************************************************************************
+ **********************************************************************************************************************************************************************/
+
+    /**
+     * Synthesizes a text and returns a future that is completed (in the main thread) when it has been
+     * played, instead of calling <code>onTTSDone</code> with an utterance id. If other prompts are
+     * playing or waiting, the text is synthesized to the prompt cache in the meantime, so that it
+     * starts without waiting for the TTS. The future is cancelled if the prompt is discarded
+     * (barge-in, <code>stop</code>) before it is played.
+     *
+     * @param text string to be synthesized
+     * @param languageCode language for the TTS, e.g. ES
+     * @param priority PRIORITY_INFO or PRIORITY_QUERY (status prompts can be dropped without being played)
+     */
+    public VoiceFuture<Void> speakAsync(final String text, final String languageCode, final int priority) {
+        final VoiceFuture<Void> future = new VoiceFuture<Void>();
+        if (priority == PRIORITY_STATUS) {
+            future.fail(new IllegalArgumentException("Status prompts cannot be chained"));
+            return future;
+        }
+        final String id = ID_FUTURE + (++futureIds);
+        synchronized (pendingPrompts) {
+            pendingPrompts.put(id, future);
+        }
+        Runnable submit = new Runnable() {
+            public void run() {
+                try {
+                    checkTextToSpeech();
+                    setLocale(languageCode);
+                } catch (Exception e) {
+                    completePromptFuture(id, e);
+                    return;
+                }
+                //Pre-synthesized while the prompts before it are played
+                if (!promptScheduler.isIdle())
+                    voice.getPromptCache().prefetch(text, ttsLanguage);
+                latency.mark(TurnLatency.PROMPT);
+                promptScheduler.submit(text, ttsLanguage, id, priority);
+            }
+        };
+        if (voiceReady)
+            submit.run();
+        else
+            pendingVoiceActions.add(submit);
+        return future;
+    }
+
+    /**
+     * Starts speech recognition and returns a future with the N-best list, instead of calling
+     * <code>processAsrResults</code> or <code>processAsrError</code>. Recognition errors (after the
+     * retries of the transient ones) fail the future with an {@link AsrException}.
+     *
+     * @param language Language used for speech recognition (e.g. new Locale("es", "ES"))
+     * @param languageModel Type of language model used (free form or web search)
+     * @param maxResults Maximum number of recognition results
+     */
+    public VoiceFuture<ArrayList<String>> listenAsync(Locale language, String languageModel, int maxResults) {
+        try {
+            checkASRPermission();
+            return listenAsync(listenIntent(language, languageModel, maxResults));
+        } catch (Exception e) {
+            return VoiceFuture.failed(e);
+        }
+    }
+
+    private VoiceFuture<ArrayList<String>> listenAsync(Intent intent) {
+        if (myASR == null)
+            return VoiceFuture.failed(new AsrException(SpeechRecognizer.ERROR_CLIENT));
+        cancelListenFuture();
+        VoiceFuture<ArrayList<String>> future = new VoiceFuture<ArrayList<String>>();
+        pendingListen = future;
+        startListening(intent);
+        return future;
+    }
+
+    /**
+     * Asks a question and listens to the answer: the two steps of a turn in one future, e.g.
+     * <pre>
+     * ask("¿Qué canción quiere?", "ES", new Locale("es", "ES"), LANGUAGE_MODEL_FREE_FORM, 5)
+     *     .thenApply(parser)           //the N-best list, parsed
+     *     .whenComplete(callback);     //result or error of the whole turn
+     * </pre>
+     * The recognition intent and the permission are prepared while the question is being played,
+     * and the recognizer is started as soon as it ends, ahead of anything else waiting in the main
+     * thread.
+     */
+    public VoiceFuture<ArrayList<String>> ask(String question, String languageCode, Locale language, String languageModel, int maxResults) {
+        final Intent intent;
+        try {
+            intent = listenIntent(language, languageModel, maxResults);
+        } catch (Exception e) {
+            return VoiceFuture.failed(e);
+        }
+        checkASRPermission();
+        return speakAsync(question, languageCode, PRIORITY_QUERY).thenCompose(new VoiceFuture.Step<Void, ArrayList<String>>() {
+            public VoiceFuture<ArrayList<String>> apply(Void played) {
+                return listenAsync(intent);
+            }
+        });
+    }
+
+    /**
+     * Cancels the chained prompts and recognition in progress
+     */
+    public void cancelTurns() {
+        boolean listening = pendingListen != null;
+        cancelPromptFutures();
+        cancelListenFuture();
+        if (listening && myASR != null) {
+            handler.removeCallbacks(retryListening);
+            endpointer.stop();
+            myASR.cancel();
+        }
+    }
+
+    /*
+     * Completes the future of a prompt in the main thread (at the front of its queue, so that the
+     * next step, usually listening, is not delayed by other messages). A null error means that the
+     * prompt has been played
+     */
+    private void completePromptFuture(String utteranceId, final Exception error) {
+        final VoiceFuture<Void> future;
+        synchronized (pendingPrompts) {
+            future = pendingPrompts.remove(utteranceId);
+        }
+        if (future == null)
+            return;
+        handler.postAtFrontOfQueue(new Runnable() {
+            public void run() {
+                if (error == null)
+                    future.complete(null);
+                else
+                    future.fail(error);
+            }
+        });
+    }
+
+    /*
+     * The scheduler goes on with the next prompt when one cannot be started, and no TTS callback will
+     * come for it: whoever is waiting for it is told here, as with a synthesis error. It is posted
+     * because the scheduler is still choosing the next prompt, and onTTSError may speak again
+     */
+    private void promptNotStarted(final String utteranceId) {
+        handler.post(new Runnable() {
+            public void run() {
+                abandonPromptFocusIfIdle();
+                if (utteranceId.startsWith(ID_FUTURE))
+                    completePromptFuture(utteranceId, new Exception("The prompt could not be started"));
+                else
+                    onTTSError(utteranceId);
+            }
+        });
+    }
+
+    //Prompts discarded before being played: their futures will not be completed by the TTS
+    private void cancelPromptFutures() {
+        final ArrayList<VoiceFuture<Void>> cancelled;
+        synchronized (pendingPrompts) {
+            if (pendingPrompts.isEmpty())
+                return;
+            cancelled = new ArrayList<VoiceFuture<Void>>(pendingPrompts.values());
+            pendingPrompts.clear();
+        }
+        handler.post(new Runnable() {
+            public void run() {
+                for (VoiceFuture<Void> future : cancelled)
+                    future.cancel();
+            }
+        });
+    }
+
+    private void cancelListenFuture() {
+        VoiceFuture<ArrayList<String>> future = pendingListen;
+        pendingListen = null;
+        if (future != null)
+            future.cancel();
+    }
+
+
+
+/**********************************************************************************************************************************************************************
+ **********************************************************************************************************************************************************************
+ *
+ * 					SLOT-FILLING DIALOGUE
+ *
+ **********************************************************************************************************************************************************************
+ **********************************************************************************************************************************************************************/
+
+    /**
+     * Starts a slot-filling dialogue (e.g. booking an appointment with the fechas and horas grammars).
+     * From then on, the prompts and recognitions are chained here: each answer may fill several slots
+     * at once, the next prompt implicitly confirms what was understood and asks only for the missing
+     * slots, and when all the required slots are filled the final confirmation is spoken and
+     * <code>onSlotFillingComplete</code> is invoked. The results of these turns are not passed
+     * to <code>processAsrResults</code>.
+     *
+     * @param dialogue dialogue with its grammars and slots
+     * @param language language for synthesis and recognition, e.g. new Locale("es", "ES")
+     * @throws Exception when the language cannot be used for synthesis
+     */
+    public void startSlotFilling(SlotFillingDialogue dialogue, Locale language) throws Exception {
+        slotFilling = dialogue;
+        slotFillingLanguage = language;
+        slotFillingFailures = 0;
+        dialogue.reset();
+        speakSlotFillingPrompt(dialogue.nextPrompt());
+    }
+
+    /**
+     * Abandons the slot-filling dialogue in progress, if any
+     */
+    public void stopSlotFilling() {
+        slotFilling = null;
+    }
+
+    public boolean isSlotFillingActive() {
+        return slotFilling != null;
+    }
+
+    /**
+     * Invoked when all the required slots of the dialogue have been filled and confirmed
+     */
+    public void onSlotFillingComplete(SlotFillingDialogue dialogue) { }
+
+    /**
+     * Invoked when the dialogue is abandoned after too many turns without understanding the user
+     */
+    public void onSlotFillingAborted(SlotFillingDialogue dialogue) { }
+
+    private void speakSlotFillingPrompt(final String text) throws Exception {
+        if (!voiceReady) {
+            pendingVoiceActions.add(new Runnable() {
+                public void run() {
+                    try { speakSlotFillingPrompt(text); } catch (Exception e) { Log.e(LOGTAG, e.getMessage()); }
+                }
+            });
+            return;
+        }
+        checkTextToSpeech();
+        setLocale(slotFillingLanguage.getLanguage());
+        latency.mark(TurnLatency.PROMPT);
+        promptScheduler.submit(text, ttsLanguage, ID_SLOT_FILLING, PRIORITY_QUERY);
+    }
+
+    /*
+     * Invoked from the TTS thread when a dialogue prompt has been spoken: either the dialogue
+     * is finished or the next answer is listened to
+     */
+    private void onSlotFillingPromptDone() {
+        final SlotFillingDialogue dialogue = slotFilling;
+        if (dialogue == null)
+            return;
+
+        runOnUiThread(new Runnable() {
+            public void run() {
+                if (dialogue.isComplete()) {
+                    slotFilling = null;
+                    onSlotFillingComplete(dialogue);
+                    return;
+                }
+                try {
+                    listen(slotFillingLanguage, RecognizerIntent.LANGUAGE_MODEL_FREE_FORM, SLOT_FILLING_MAX_RESULTS);
+                } catch (Exception e) {
+                    Log.e(LOGTAG, "ASR could not be started for the slot-filling dialogue");
+                    slotFilling = null;
+                    onSlotFillingAborted(dialogue);
+                }
+            }
+        });
+    }
+
+    /*
+     * Processes one turn of the dialogue. Results are null when the recognizer failed,
+     * which counts as a turn that was not understood.
+     */
+    @SuppressLint("InlinedApi")
+    private void processSlotFillingResults(Bundle results) {
+        SlotFillingDialogue dialogue = slotFilling;
+        ArrayList<String> nBestList = null;
+        float[] nBestConfidences = null;
+        if (results != null) {
+            nBestList = results.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+                nBestConfidences = results.getFloatArray(SpeechRecognizer.CONFIDENCE_SCORES);
+        }
+
+        if (dialogue.process(nBestList, nBestConfidences))
+            slotFillingFailures = 0;
+        else if (++slotFillingFailures >= SLOT_FILLING_MAX_FAILURES) {
+            slotFilling = null;
+            onSlotFillingAborted(dialogue);
+            return;
+        }
+
+        try {
+            speakSlotFillingPrompt(dialogue.nextPrompt());
+        } catch (Exception e) {
+            Log.e(LOGTAG, "TTS not accessible for the slot-filling dialogue");
+            slotFilling = null;
+            onSlotFillingAborted(dialogue);
+        }
+    }
+
+}
@@ -0,0 +1,43 @@
+package com.example.laura.voice;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Lógica de un diálogo (qué se pregunta, qué se hace con lo que se reconoce, cuándo se vuelve a
+ * escuchar) separada de la actividad, que solo le pasa los eventos de VoiceActivity y le presta el
+ * TTS y el reconocedor a través de {@link Voice}. Así no depende de Android y se puede ejecutar en el
+ * ordenador con {@link DialogueSimulator}.
+ *
+ * Todos los métodos se llaman desde un solo hilo (el principal en la aplicación).
+ */
+public interface VoiceDialogue {
+
+    /**
+     * Lo que el diálogo puede pedir a la voz: en la aplicación, VoiceActivity; en el ordenador, el
+     * simulador
+     */
+    interface Voice {
+        /**
+         * @param id identificador del mensaje, que vuelve en onTTSDone como String
+         * @param priority PromptScheduler.PRIORITY_STATUS, PRIORITY_INFO o PRIORITY_QUERY
+         */
+        void speak(String text, String languageCode, int id, int priority);
+
+        void listen(Locale language, int maxResults);
+    }
+
+    /**
+     * El usuario empieza una interacción (botón de micro, orden de voz...)
+     */
+    void start();
+
+    void processAsrResults(ArrayList<String> nBestList, float[] nBestConfidences);
+
+    /**
+     * Error del reconocedor después de los reintentos de RecognizerRecovery
+     */
+    void processAsrError(int errorCode);
+
+    void onTTSDone(String uttId);
+}
@@ -0,0 +1,218 @@
+package com.example.laura.voice;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Resultado de un paso de un turno de voz que todavía no ha terminado (un mensaje que está sonando,
+ * una escucha...), al estilo de CompletableFuture pero para Java 7 y sin hilos propios: los pasos
+ * se encadenan con {@link #thenApply} (p.ej. interpretar la respuesta) y {@link #thenCompose}
+ * (p.ej. escuchar cuando termina el mensaje), y cada uno se ejecuta en cuanto el anterior termina, en
+ * el hilo que lo completa. VoiceActivity los completa siempre en el hilo principal, así que no hay
+ * que sincronizar nada: se deben usar solo desde ese hilo.
+ *
+ * Un fallo (o una cancelación, que falla con CancellationException) se pasa por la cadena sin
+ * ejecutar los pasos siguientes hasta el primer {@link #recover} o {@link #whenComplete}.
+ */
+public final class VoiceFuture<T> {
+
+    /**
+     * Paso que transforma el resultado del anterior (p.ej. de la lista N-best a un número)
+     */
+    public interface Function<T, R> {
+        R apply(T value) throws Exception;
+    }
+
+    /**
+     * Paso que empieza otra operación con el resultado del anterior (p.ej. escuchar tras el mensaje)
+     */
+    public interface Step<T, R> {
+        VoiceFuture<R> apply(T value) throws Exception;
+    }
+
+    /**
+     * Final de la cadena: recibe el resultado o el fallo
+     */
+    public interface Callback<T> {
+        void onResult(T value);
+        void onError(Exception error);
+    }
+
+    private static final int PENDING = 0;
+    private static final int DONE = 1;
+    private static final int FAILED = 2;
+
+    private int state = PENDING;
+    private T value;
+    private Exception error;
+    //Se crea solo si alguien espera antes de que termine
+    private ArrayList<Callback<T>> callbacks;
+
+    public static <T> VoiceFuture<T> completed(T value) {
+        VoiceFuture<T> f = new VoiceFuture<T>();
+        f.complete(value);
+        return f;
+    }
+
+    public static <T> VoiceFuture<T> failed(Exception error) {
+        VoiceFuture<T> f = new VoiceFuture<T>();
+        f.fail(error);
+        return f;
+    }
+
+    /**
+     * @return false si ya había terminado
+     */
+    public boolean complete(T result) {
+        if (state != PENDING)
+            return false;
+        value = result;
+        state = DONE;
+        fire();
+        return true;
+    }
+
+    /**
+     * @return false si ya había terminado
+     */
+    public boolean fail(Exception e) {
+        if (state != PENDING)
+            return false;
+        error = e;
+        state = FAILED;
+        fire();
+        return true;
+    }
+
+    /**
+     * Falla con CancellationException si no había terminado
+     */
+    public boolean cancel() {
+        return fail(new CancellationException());
+    }
+
+    public boolean isDone() {
+        return state != PENDING;
+    }
+
+    public boolean isFailed() {
+        return state == FAILED;
+    }
+
+    public boolean isCancelled() {
+        return state == FAILED && error instanceof CancellationException;
+    }
+
+    /**
+     * Resultado, o null si no ha terminado o ha fallado
+     */
+    public T value() {
+        return value;
+    }
+
+    public Exception error() {
+        return error;
+    }
+
+    /**
+     * Llama a callback cuando termine (ya mismo si ha terminado)
+     */
+    public VoiceFuture<T> whenComplete(Callback<T> callback) {
+        if (state == PENDING) {
+            if (callbacks == null)
+                callbacks = new ArrayList<Callback<T>>(2);
+            callbacks.add(callback);
+        } else
+            notify(callback);
+        return this;
+    }
+
+    /**
+     * Resultado de aplicar function al resultado de este paso
+     */
+    public <R> VoiceFuture<R> thenApply(final Function<? super T, ? extends R> function) {
+        final VoiceFuture<R> next = new VoiceFuture<R>();
+        whenComplete(new Callback<T>() {
+            public void onResult(T result) {
+                try {
+                    next.complete(function.apply(result));
+                } catch (Exception e) {
+                    next.fail(e);
+                }
+            }
+
+            public void onError(Exception e) {
+                next.fail(e);
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Resultado de la operación que empieza step con el resultado de este paso
+     */
+    public <R> VoiceFuture<R> thenCompose(final Step<? super T, R> step) {
+        final VoiceFuture<R> next = new VoiceFuture<R>();
+        whenComplete(new Callback<T>() {
+            public void onResult(T result) {
+                VoiceFuture<R> inner;
+                try {
+                    inner = step.apply(result);
+                } catch (Exception e) {
+                    next.fail(e);
+                    return;
+                }
+                inner.whenComplete(new Callback<R>() {
+                    public void onResult(R value) {
+                        next.complete(value);
+                    }
+
+                    public void onError(Exception e) {
+                        next.fail(e);
+                    }
+                });
+            }
+
+            public void onError(Exception e) {
+                next.fail(e);
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Si este paso falla, el resultado de handler con el fallo; si no, el mismo resultado
+     */
+    public VoiceFuture<T> recover(final Function<Exception, ? extends T> handler) {
+        final VoiceFuture<T> next = new VoiceFuture<T>();
+        whenComplete(new Callback<T>() {
+            public void onResult(T result) {
+                next.complete(result);
+            }
+
+            public void onError(Exception e) {
+                try {
+                    next.complete(handler.apply(e));
+                } catch (Exception again) {
+                    next.fail(again);
+                }
+            }
+        });
+        return next;
+    }
+
+    private void fire() {
+        ArrayList<Callback<T>> waiting = callbacks;
+        callbacks = null;
+        if (waiting != null)
+            for (Callback<T> c : waiting)
+                notify(c);
+    }
+
+    private void notify(Callback<T> callback) {
+        if (state == DONE)
+            callback.onResult(value);
+        else
+            callback.onError(error);
+    }
+}
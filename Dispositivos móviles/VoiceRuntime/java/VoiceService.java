@@ -0,0 +1,446 @@
+package com.example.laura.voice;
+
+import android.annotation.SuppressLint;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.pm.ResolveInfo;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.speech.RecognitionListener;
+import android.speech.RecognizerIntent;
+import android.speech.SpeechRecognizer;
+import android.speech.tts.TextToSpeech;
+import android.speech.tts.TextToSpeech.OnInitListener;
+import android.speech.tts.TextToSpeech.OnUtteranceCompletedListener;
+import android.speech.tts.UtteranceProgressListener;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Servicio compartido por MovingSound y SugarAid que mantiene "calientes" el reconocedor y el
+ * sintetizador. Antes cada VoiceActivity creaba su SpeechRecognizer y su TextToSpeech en
+ * initSpeechInputOutput y los destruía en shutdown, así que tras cada giro de pantalla o cambio de
+ * actividad había que esperar otra vez a que el motor de TTS se enlazara.
+ *
+ * Ahora los motores viven en este servicio: las actividades se enlazan al crearse y se desenlazan al
+ * destruirse, y los eventos se reenvían a la actividad enlazada en ese momento (el {@link Client}).
+ * El servicio se arranca además con startService para que sobreviva entre una actividad y la
+ * siguiente, y se para solo cuando lleva IDLE_TIMEOUT_MS sin ninguna actividad enlazada.
+ */
+public class VoiceService extends Service implements RecognitionListener, OnInitListener {
+
+    /**
+     * Quien recibe los eventos de los motores: los del reconocedor y los de cada locución
+     */
+    public interface Client extends RecognitionListener {
+        void onUtteranceStart(String utteranceId);
+        void onUtteranceDone(String utteranceId);
+        void onUtteranceError(String utteranceId);
+    }
+
+    public class VoiceBinder extends Binder {
+        public VoiceService getService() {
+            return VoiceService.this;
+        }
+    }
+
+    private static final String LOGTAG = "VOICESERVICE";
+    //Tiempo que se mantienen los motores sin actividades enlazadas (p.ej. mientras se gira la pantalla)
+    private static final long IDLE_TIMEOUT_MS = 60000;
+    //Espacio en disco para los mensajes ya sintetizados
+    private static final long PROMPT_CACHE_BYTES = 4 * 1024 * 1024;
+    //Memoria para el audio de los mensajes más usados, que se reproducen sin leer el disco
+    private static final long PROMPT_MEMORY_BYTES = 1024 * 1024;
+
+    private final IBinder voiceBind = new VoiceBinder();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private TextToSpeech tts;
+    private TtsFrontEnd frontEnd;
+    private boolean ttsReady = false;
+    private boolean ttsFailed = false;
+    private String voiceName;
+    private SpeechRecognizer asr;
+    private PromptCache prompts;
+    private ConnectivityMonitor connectivity;
+    private volatile Client client;
+    //Acciones a la espera de que termine de inicializarse el TTS (bien o con error)
+    private final List<Runnable> pending = new ArrayList<Runnable>();
+
+    private final Runnable idleStop = new Runnable() {
+        public void run() {
+            Log.i(LOGTAG, "No clients: releasing the voice engines");
+            stopSelf();
+        }
+    };
+
+    /**
+     * Arranca el servicio (si no lo estaba ya) y se enlaza a él
+     */
+    public static void bind(Context ctx, ServiceConnection connection) {
+        Intent intent = new Intent(ctx, VoiceService.class);
+        ctx.startService(intent);
+        ctx.bindService(intent, connection, Context.BIND_AUTO_CREATE);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        //Los motores se crean con el contexto de la aplicación para que no retengan ninguna actividad
+        tts = new TextToSpeech(getApplicationContext(), this);
+        frontEnd = new TtsFrontEnd(tts);
+        setUtteranceListener();
+        prompts = new PromptCache(this, new File(getCacheDir(), "prompts"), PROMPT_CACHE_BYTES, PROMPT_MEMORY_BYTES);
+        connectivity = new ConnectivityMonitor(this);
+        connectivity.start();
+
+        //Comprobamos si hay reconocimiento de voz en el dispositivo
+        List<ResolveInfo> intActivities = getPackageManager().queryIntentActivities(
+                new Intent(RecognizerIntent.ACTION_RECOGNIZE_SPEECH), 0);
+        if (intActivities.size() != 0 || "generic".equals(Build.BRAND.toLowerCase(Locale.US))) {
+            asr = SpeechRecognizer.createSpeechRecognizer(getApplicationContext());
+            asr.setRecognitionListener(this);
+        }
+        else
+            asr = null;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        handler.removeCallbacks(idleStop);
+        return voiceBind;
+    }
+
+    @Override
+    public void onRebind(Intent intent) {
+        handler.removeCallbacks(idleStop);
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        handler.removeCallbacks(idleStop);
+        handler.postDelayed(idleStop, IDLE_TIMEOUT_MS);
+        return true; //Para que se llame a onRebind con la siguiente actividad
+    }
+
+    @Override
+    public void onDestroy() {
+        handler.removeCallbacks(idleStop);
+        client = null;
+        prompts.release();
+        connectivity.stop();
+        tts.stop();
+        tts.shutdown();
+        tts = null;
+        if (asr != null) {
+            asr.cancel();
+            asr.destroy();
+            asr = null;
+        }
+        super.onDestroy();
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    ///                         CLIENTES                                              ///
+    /////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * La actividad que recibe a partir de ahora los eventos de los motores
+     */
+    public void attach(Client c) {
+        client = c;
+    }
+
+    /**
+     * Deja de enviar eventos a c, si sigue siendo el cliente actual. Lo que se esté diciendo o
+     * reconociendo se interrumpe, para que la siguiente actividad empiece de cero.
+     */
+    public void detach(Client c) {
+        if (client != c)
+            return;
+        client = null;
+        prompts.stop();
+        if (frontEnd != null)
+            frontEnd.stop();
+        if (asr != null)
+            asr.cancel();
+    }
+
+    public TextToSpeech getTextToSpeech() {
+        return tts;
+    }
+
+    /**
+     * Acceso al TTS con el idioma y los parámetros en caché; es el que hay que usar para hablar
+     */
+    public TtsFrontEnd getTtsFrontEnd() {
+        return frontEnd;
+    }
+
+    /**
+     * Reconocedor compartido, o null si el dispositivo no tiene reconocimiento de voz
+     */
+    public SpeechRecognizer getRecognizer() {
+        return asr;
+    }
+
+    /**
+     * Destruye el reconocedor y crea otro, para cuando se queda ocupado o en mal estado
+     * (ERROR_RECOGNIZER_BUSY, ERROR_CLIENT). Solo desde el hilo principal.
+     * @return el nuevo reconocedor, o null si el dispositivo no tiene reconocimiento de voz
+     */
+    public SpeechRecognizer resetRecognizer() {
+        if (asr == null)
+            return null;
+        asr.cancel();
+        asr.destroy();
+        asr = SpeechRecognizer.createSpeechRecognizer(getApplicationContext());
+        asr.setRecognitionListener(this);
+        return asr;
+    }
+
+    /**
+     * Estado de la conexión a Internet, actualizado por el sistema mientras viva el servicio
+     */
+    public ConnectivityMonitor getConnectivity() {
+        return connectivity;
+    }
+
+    /**
+     * Caché de mensajes ya sintetizados
+     */
+    public PromptCache getPromptCache() {
+        return prompts;
+    }
+
+    /**
+     * Nombre de la voz del TTS (o del motor en versiones anteriores a la 21), para la clave de la caché.
+     * Se pregunta una sola vez al inicializar el TTS.
+     */
+    String getVoiceName() {
+        return voiceName;
+    }
+
+    public boolean isTextToSpeechReady() {
+        return ttsReady;
+    }
+
+    /**
+     * true si el TTS no se ha podido inicializar: no se va a poder hablar mientras viva el servicio
+     */
+    public boolean isTextToSpeechFailed() {
+        return ttsFailed;
+    }
+
+    /**
+     * Ejecuta action en el hilo principal en cuanto termine de inicializarse el TTS (enseguida si ya
+     * ha terminado). También se ejecuta si la inicialización falla, así que action tiene que
+     * comprobar isTextToSpeechFailed().
+     */
+    public void whenReady(Runnable action) {
+        if (ttsReady || ttsFailed)
+            action.run();
+        else
+            pending.add(action);
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    ///                         TTS                                                   ///
+    /////////////////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public void onInit(int status) {
+        if (status == TextToSpeech.ERROR) {
+            Log.e(LOGTAG, "Error creating the TTS");
+            ttsFailed = true;
+            runPending();
+            return;
+        }
+        frontEnd.setLanguage(Locale.getDefault());
+        voiceName = queryVoiceName();
+        ttsReady = true;
+        runPending();
+        prompts.start();
+    }
+
+    private void runPending() {
+        for (Runnable action : pending)
+            action.run();
+        pending.clear();
+    }
+
+    @SuppressLint("NewApi")
+    private String queryVoiceName() {
+        if (Build.VERSION.SDK_INT >= 21 && tts.getVoice() != null)
+            return tts.getVoice().getName();
+        return tts.getDefaultEngine();
+    }
+
+    void dispatchUtteranceStart(String utteranceId) {
+        Client c = client;
+        if (c != null)
+            c.onUtteranceStart(utteranceId);
+    }
+
+    /*
+     * Fin de una locución del TTS. Las síntesis a fichero son de la caché; el resto se han lanzado con
+     * TtsFrontEnd.speak, que lleva la lista de las que quedan por terminar.
+     */
+    private void ttsUtteranceDone(String utteranceId) {
+        if (utteranceId.startsWith(PromptCache.UTTERANCE_PREFIX)) {
+            prompts.onRendered(utteranceId, true);
+            return;
+        }
+        frontEnd.onUtteranceFinished(utteranceId);
+        dispatchUtteranceDone(utteranceId);
+    }
+
+    /**
+     * Avisa al cliente del fin de una locución, dicha con el TTS o reproducida desde la caché
+     */
+    void dispatchUtteranceDone(String utteranceId) {
+        Client c = client;
+        if (c != null)
+            c.onUtteranceDone(utteranceId);
+    }
+
+    //Error en una locución del TTS (los mensajes de la caché no fallan una vez que empiezan a sonar)
+    private void ttsUtteranceError(String utteranceId) {
+        if (utteranceId.startsWith(PromptCache.UTTERANCE_PREFIX)) {
+            prompts.onRendered(utteranceId, false);
+            return;
+        }
+        frontEnd.onUtteranceFinished(utteranceId);
+        Client c = client;
+        if (c != null)
+            c.onUtteranceError(utteranceId);
+    }
+
+    /*
+     * UtteranceProgressListener a partir del SDK 15 y OnUtteranceCompletedListener en los anteriores
+     * (el truco de Greg Milette que usaba VoiceActivity.setTTS)
+     */
+    @SuppressLint("NewApi")
+    @SuppressWarnings("deprecation")
+    private void setUtteranceListener() {
+        if (Build.VERSION.SDK_INT >= 15) {
+            tts.setOnUtteranceProgressListener(new UtteranceProgressListener() {
+                @Override
+                public void onDone(String utteranceId) {
+                    ttsUtteranceDone(utteranceId);
+                }
+
+                @Override
+                public void onError(String utteranceId) {
+                    ttsUtteranceError(utteranceId);
+                }
+
+                @Override
+                public void onStart(String utteranceId) {
+                    if (!utteranceId.startsWith(PromptCache.UTTERANCE_PREFIX))
+                        dispatchUtteranceStart(utteranceId);
+                }
+
+                @Override
+                public void onStop(String utteranceId, boolean interrupted) {
+                    //Una síntesis a fichero cortada por stop() no llega a terminar: la quitamos de la cola
+                    if (utteranceId.startsWith(PromptCache.UTTERANCE_PREFIX))
+                        prompts.onRendered(utteranceId, false);
+                }
+            });
+        }
+        else {
+            tts.setOnUtteranceCompletedListener(new OnUtteranceCompletedListener() {
+                @Override
+                public void onUtteranceCompleted(String utteranceId) {
+                    //Aquí no hay aviso de inicio, y PromptScheduler solo acepta el final de un mensaje
+                    //que ha empezado a sonar: se avisa justo antes del final
+                    if (!utteranceId.startsWith(PromptCache.UTTERANCE_PREFIX))
+                        dispatchUtteranceStart(utteranceId);
+                    ttsUtteranceDone(utteranceId);
+                }
+            });
+        }
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    ///                         ASR: reenvío de eventos al cliente                    ///
+    /////////////////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public void onReadyForSpeech(Bundle params) {
+        Client c = client;
+        if (c != null)
+            c.onReadyForSpeech(params);
+    }
+
+    @Override
+    public void onBeginningOfSpeech() {
+        Client c = client;
+        if (c != null)
+            c.onBeginningOfSpeech();
+    }
+
+    @Override
+    public void onRmsChanged(float rmsdB) {
+        Client c = client;
+        if (c != null)
+            c.onRmsChanged(rmsdB);
+    }
+
+    @Override
+    public void onBufferReceived(byte[] buffer) {
+        Client c = client;
+        if (c != null)
+            c.onBufferReceived(buffer);
+    }
+
+    @Override
+    public void onEndOfSpeech() {
+        Client c = client;
+        if (c != null)
+            c.onEndOfSpeech();
+    }
+
+    @Override
+    public void onError(int error) {
+        Client c = client;
+        if (c != null)
+            c.onError(error);
+    }
+
+    @Override
+    public void onResults(Bundle results) {
+        Client c = client;
+        if (c != null)
+            c.onResults(results);
+    }
+
+    @Override
+    public void onPartialResults(Bundle partialResults) {
+        Client c = client;
+        if (c != null)
+            c.onPartialResults(partialResults);
+    }
+
+    @Override
+    public void onEvent(int eventType, Bundle params) {
+        Client c = client;
+        if (c != null)
+            c.onEvent(eventType, params);
+    }
+}
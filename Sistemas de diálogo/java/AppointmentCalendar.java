@@ -0,0 +1,277 @@
+package com.example.laura.dialogo;
+
+import java.time.LocalDate;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Agenda de citas para el diálogo de fechas y horas. Cada día del horizonte de reserva se divide en
+ * huecos de slotMinutes minutos entre la hora de apertura y la de cierre, y se guarda como un mapa
+ * de bits (1 = ocupado). Un árbol de segmentos con los huecos libres de cada día permite saltar los
+ * días completos, así que "primer hueco libre a partir de tal día y hora" cuesta O(log días).
+ *
+ * Las consultas no bloquean. Las reservas y anulaciones bloquean solo el día afectado (un cerrojo
+ * por grupo de días), de manera que muchas sesiones de diálogo pueden reservar a la vez sin
+ * esperarse unas a otras salvo que compitan por el mismo día.
+ *
+ * Los huecos se identifican con un long: día (época) * 1440 + minuto del día.
+ */
+public final class AppointmentCalendar {
+
+    public static final long NONE = -1;
+
+    private static final int STRIPES = 64;
+
+    private final long firstDay;
+    private final int numDays;
+    private final int openMinute;
+    private final int slotMinutes;
+    private final int slotsPerDay;
+    private final int wordsPerDay;
+
+    //Bits de ocupación de todos los días seguidos: día d ocupa [d * wordsPerDay, (d + 1) * wordsPerDay)
+    private final AtomicLongArray busy;
+    //Árbol de segmentos (hojas desde leaves) con el número de huecos libres de cada día
+    private final AtomicIntegerArray freeTree;
+    private final int leaves;
+    private final Object[] locks;
+
+    /**
+     * @param firstDay primer día que se puede reservar
+     * @param horizonDays número de días reservables a partir de firstDay
+     * @param openMinute minuto del día en que empieza el primer hueco (p.ej. 8 * 60)
+     * @param closeMinute minuto del día en que termina el último hueco (p.ej. 20 * 60)
+     * @param slotMinutes duración de cada cita
+     */
+    public AppointmentCalendar(LocalDate firstDay, int horizonDays, int openMinute, int closeMinute, int slotMinutes) {
+        if (horizonDays <= 0 || slotMinutes <= 0 || openMinute < 0 || closeMinute > 1440 || closeMinute - openMinute < slotMinutes)
+            throw new IllegalArgumentException("Parámetros de agenda no válidos");
+        this.firstDay = firstDay.toEpochDay();
+        this.numDays = horizonDays;
+        this.openMinute = openMinute;
+        this.slotMinutes = slotMinutes;
+        this.slotsPerDay = (closeMinute - openMinute) / slotMinutes;
+        this.wordsPerDay = (slotsPerDay + 63) >>> 6;
+
+        busy = new AtomicLongArray(numDays * wordsPerDay);
+        //Los bits que sobran en la última palabra de cada día se marcan como ocupados
+        int spare = wordsPerDay * 64 - slotsPerDay;
+        if (spare > 0)
+            for (int d = 0; d < numDays; ++d)
+                busy.set((d + 1) * wordsPerDay - 1, -1L << (64 - spare));
+
+        int l = 1;
+        while (l < numDays)
+            l <<= 1;
+        leaves = l;
+        freeTree = new AtomicIntegerArray(2 * leaves);
+        for (int d = 0; d < numDays; ++d)
+            freeTree.set(leaves + d, slotsPerDay);
+        for (int i = leaves - 1; i >= 1; --i)
+            freeTree.set(i, freeTree.get(2 * i) + freeTree.get(2 * i + 1));
+
+        locks = new Object[STRIPES];
+        for (int i = 0; i < STRIPES; ++i)
+            locks[i] = new Object();
+    }
+
+    public int slotsPerDay() {
+        return slotsPerDay;
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    ///                         CONSULTAS                                             ///
+    /////////////////////////////////////////////////////////////////////////////////////
+
+    public long firstFree(LocalDate date, int minuteOfDay) {
+        return firstFree(date.toEpochDay(), minuteOfDay);
+    }
+
+    /**
+     * Primer hueco libre que empieza en minuteOfDay del día epochDay o más tarde
+     * @return el hueco, o NONE si no queda ninguno en el horizonte de reserva
+     */
+    public long firstFree(long epochDay, int minuteOfDay) {
+        int day = (int) Math.max(0, epochDay - firstDay);
+        if (epochDay - firstDay >= numDays)
+            return NONE;
+        int slot = epochDay < firstDay ? 0 : slotAtOrAfter(minuteOfDay);
+
+        while (day >= 0) {
+            if (slot < slotsPerDay) {
+                int s = nextFreeSlot(day, slot);
+                if (s >= 0)
+                    return encode(day, s);
+            }
+            day = nextDayWithFree(day + 1);
+            slot = 0;
+        }
+        return NONE;
+    }
+
+    public boolean isFree(long epochDay, int minuteOfDay) {
+        int day = dayIndex(epochDay);
+        int slot = exactSlot(minuteOfDay);
+        return day >= 0 && slot >= 0 && (busy.get(day * wordsPerDay + (slot >>> 6)) & (1L << slot)) == 0;
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    ///                         RESERVAS                                              ///
+    /////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Reserva el hueco que empieza exactamente en minuteOfDay
+     * @return false si ya estaba ocupado o no es un hueco de la agenda
+     */
+    public boolean book(long epochDay, int minuteOfDay) {
+        int day = dayIndex(epochDay);
+        int slot = exactSlot(minuteOfDay);
+        if (day < 0 || slot < 0)
+            return false;
+        synchronized (lock(day)) {
+            return set(day, slot);
+        }
+    }
+
+    /**
+     * Busca y reserva de una vez el primer hueco libre a partir de epochDay y minuteOfDay
+     * @return el hueco reservado, o NONE si no queda ninguno
+     */
+    public long bookFirstFree(long epochDay, int minuteOfDay) {
+        while (true) {
+            long candidate = firstFree(epochDay, minuteOfDay);
+            if (candidate == NONE)
+                return NONE;
+            int day = (int) (epochDay(candidate) - firstDay);
+            int slot = exactSlot(minuteOfDay(candidate));
+            synchronized (lock(day)) {
+                if (set(day, slot))
+                    return candidate;
+            }
+            //Otra sesión lo ha reservado entre la consulta y el cerrojo: seguimos desde ahí
+            epochDay = epochDay(candidate);
+            minuteOfDay = minuteOfDay(candidate);
+        }
+    }
+
+    public boolean cancel(long epochDay, int minuteOfDay) {
+        int day = dayIndex(epochDay);
+        int slot = exactSlot(minuteOfDay);
+        if (day < 0 || slot < 0)
+            return false;
+        synchronized (lock(day)) {
+            int w = day * wordsPerDay + (slot >>> 6);
+            long bits = busy.get(w);
+            long mask = 1L << slot;
+            if ((bits & mask) == 0)
+                return false;
+            busy.set(w, bits & ~mask);
+            addFree(day, 1);
+            return true;
+        }
+    }
+
+    /**
+     * Marca el día entero como no disponible (festivos, fines de semana)
+     */
+    public void closeDay(long epochDay) {
+        int day = dayIndex(epochDay);
+        if (day < 0)
+            return;
+        synchronized (lock(day)) {
+            int closed = 0;
+            for (int w = 0; w < wordsPerDay; ++w)
+                closed += 64 - Long.bitCount(busy.getAndSet(day * wordsPerDay + w, -1L));
+            addFree(day, -closed);
+        }
+    }
+
+    public static long epochDay(long slot) {
+        return slot / 1440;
+    }
+
+    public static int minuteOfDay(long slot) {
+        return (int) (slot % 1440);
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    ///                         AUXILIARES                                            ///
+    /////////////////////////////////////////////////////////////////////////////////////
+
+    //Hay que llamarlo con el cerrojo del día
+    private boolean set(int day, int slot) {
+        int w = day * wordsPerDay + (slot >>> 6);
+        long bits = busy.get(w);
+        long mask = 1L << slot;
+        if ((bits & mask) != 0)
+            return false;
+        busy.set(w, bits | mask);
+        addFree(day, -1);
+        return true;
+    }
+
+    private void addFree(int day, int delta) {
+        for (int i = leaves + day; i >= 1; i >>>= 1)
+            freeTree.addAndGet(i, delta);
+    }
+
+    //Primer hueco libre del día a partir de slot, o -1
+    private int nextFreeSlot(int day, int slot) {
+        int base = day * wordsPerDay;
+        for (int w = slot >>> 6; w < wordsPerDay; ++w) {
+            long free = ~busy.get(base + w);
+            if (w == slot >>> 6)
+                free &= -1L << slot;
+            if (free != 0)
+                return (w << 6) + Long.numberOfTrailingZeros(free);
+        }
+        return -1;
+    }
+
+    //Primer día >= from con algún hueco libre, o -1: subimos por el árbol y bajamos por la izquierda
+    private int nextDayWithFree(int from) {
+        if (from >= numDays)
+            return -1;
+        int i = leaves + from;
+        if (freeTree.get(i) > 0)
+            return from;
+        while (true) {
+            if (i == 1)
+                return -1;
+            if ((i & 1) == 0 && freeTree.get(i + 1) > 0) {
+                i++;
+                break;
+            }
+            i >>>= 1;
+        }
+        while (i < leaves)
+            i = freeTree.get(2 * i) > 0 ? 2 * i : 2 * i + 1;
+        return i - leaves < numDays ? i - leaves : -1;
+    }
+
+    private int slotAtOrAfter(int minuteOfDay) {
+        if (minuteOfDay <= openMinute)
+            return 0;
+        return (minuteOfDay - openMinute + slotMinutes - 1) / slotMinutes;
+    }
+
+    private int exactSlot(int minuteOfDay) {
+        int rel = minuteOfDay - openMinute;
+        if (rel < 0 || rel % slotMinutes != 0 || rel / slotMinutes >= slotsPerDay)
+            return -1;
+        return rel / slotMinutes;
+    }
+
+    private int dayIndex(long epochDay) {
+        long day = epochDay - firstDay;
+        return day >= 0 && day < numDays ? (int) day : -1;
+    }
+
+    private long encode(int day, int slot) {
+        return (firstDay + day) * 1440 + openMinute + slot * slotMinutes;
+    }
+
+    private Object lock(int day) {
+        return locks[day & (STRIPES - 1)];
+    }
+}
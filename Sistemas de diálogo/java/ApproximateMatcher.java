@@ -0,0 +1,427 @@
+package com.example.laura.dialogo;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reconocimiento tolerante a errores con un {@link CompiledGrammar}. Calcula la intersección del
+ * autómata de la gramática con un autómata de Levenshtein sobre palabras de distancia máxima maxEdits:
+ * cada palabra sobrante, que falta o está cambiada (p.ej. un "el" que el reconocedor se ha comido)
+ * cuesta una edición. Una palabra de la gramática partida en dos o tres ("veinte dos" en lugar de
+ * "veintidos") también cuesta una, si al juntarlas queda a un carácter de ella; cuenta algo menos
+ * que borrar una palabra, para que "el dia veinte dos de mayo" sea el 22 y no el 2 con "veinte"
+ * sobrante.
+ *
+ * Con la lista N-best del reconocedor se queda con la hipótesis de mayor puntuación, que es su
+ * confianza penalizada por cada edición. Los slots se devuelven con las palabras de la gramática
+ * (la forma canónica, útil para normalizar) y con el intervalo de la frase reconocida que ocupan.
+ *
+ * Las tablas se reservan al crearlo y solo crecen si llega una frase más larga que las anteriores,
+ * así que reevaluar la lista N-best completa en cada turno no crea objetos. No es thread-safe.
+ */
+public final class ApproximateMatcher {
+
+    //Penalización por edición por defecto: cada edición divide la puntuación entre dos
+    public static final float DEFAULT_EDIT_PENALTY = 0.5f;
+
+    private static final int INF = Integer.MAX_VALUE / 2;
+    //OP_MERGE + k: la transición consume k + 2 palabras reconocidas juntas
+    private static final byte OP_MATCH = 0, OP_DELETE = 1, OP_INSERT = 2, OP_MERGE = 3;
+    //Palabras reconocidas que pueden juntarse en una de la gramática
+    private static final int MAX_MERGE = 3;
+    //Costes en cuartos de edición: juntar palabras cuesta menos que borrar una
+    private static final int EDIT = 4, MERGE = 3;
+
+    private final CompiledGrammar grammar;
+    private final SymbolTable symbols;
+    private final int numStates;
+    private final int maxEdits;
+    private final int maxCost;
+    private final float[] penalty;
+
+    //Palabras de la hipótesis en curso: identificador y posición en la frase
+    private int numTokens;
+    private int[] tokenSym;
+    private int[] tokenStart;
+    private int[] tokenEnd;
+
+    //Programación dinámica: fila i = palabras consumidas, columna = estado del autómata
+    private int[] cost;
+    private int[] backState;
+    private int[] backTrans;
+    private byte[] backOp;
+
+    //Alineamiento de la mejor hipótesis: palabra de la gramática, slot y primera y última palabra
+    //reconocida (-1 si insertada)
+    private int alignLength;
+    private int[] alignSym;
+    private int[] alignSlot;
+    private int[] alignFirst;
+    private int[] alignToken;
+    private final int[] slotStart;
+    private final int[] slotEnd;
+
+    private CharSequence bestInput;
+    private int bestHypothesis;
+    private int bestEdits;
+    private float bestScore;
+
+    public ApproximateMatcher(CompiledGrammar grammar, int maxEdits) {
+        this(grammar, maxEdits, DEFAULT_EDIT_PENALTY);
+    }
+
+    /**
+     * @param grammar gramática compilada
+     * @param maxEdits número máximo de palabras insertadas, borradas o sustituidas
+     * @param editPenalty factor (entre 0 y 1) por el que se multiplica la confianza en cada edición
+     */
+    public ApproximateMatcher(CompiledGrammar grammar, int maxEdits, float editPenalty) {
+        if (maxEdits < 0)
+            throw new IllegalArgumentException("maxEdits debe ser >= 0");
+        this.grammar = grammar;
+        this.symbols = grammar.getSymbols();
+        this.numStates = grammar.numStates();
+        this.maxEdits = maxEdits;
+        this.maxCost = maxEdits * EDIT;
+        this.penalty = new float[maxEdits + 1];
+        for (int e = 0; e <= maxEdits; ++e)
+            penalty[e] = (float) Math.pow(editPenalty, e);
+        this.slotStart = new int[grammar.numSlots()];
+        this.slotEnd = new int[grammar.numSlots()];
+        ensureTokens(16);
+        bestHypothesis = -1;
+    }
+
+    /**
+     * Evalúa todas las hipótesis de la lista N-best y se queda con la mejor
+     * @param nBestList hipótesis del reconocedor
+     * @param nBestConfidences sus confianzas; si es null se usa una confianza decreciente con la posición
+     * @return índice de la mejor hipótesis aceptada o -1 si ninguna está a menos de maxEdits ediciones
+     */
+    public int match(List<String> nBestList, float[] nBestConfidences) {
+        bestHypothesis = -1;
+        bestEdits = INF;
+        bestScore = -1;
+        bestInput = null;
+        if (nBestList == null)
+            return -1;
+
+        for (int h = 0; h < nBestList.size(); ++h) {
+            float confidence = nBestConfidences != null && h < nBestConfidences.length
+                    ? nBestConfidences[h] : 1.0f / (h + 1);
+            //Ni con cero ediciones superaría a la mejor (con la misma confianza puede ganarle con menos ediciones)
+            if (confidence < bestScore)
+                continue;
+            CharSequence input = nBestList.get(h);
+            int edits = distance(input);
+            if (edits > maxEdits)
+                continue;
+            float score = confidence * penalty[edits];
+            if (score > bestScore || (score == bestScore && edits < bestEdits)) {
+                bestScore = score;
+                bestEdits = edits;
+                bestHypothesis = h;
+                bestInput = input;
+                backtrace();
+            }
+        }
+        return bestHypothesis;
+    }
+
+    /**
+     * Evalúa una única frase
+     * @return true si está a maxEdits ediciones o menos de alguna frase de la gramática
+     */
+    public boolean match(CharSequence utterance) {
+        bestHypothesis = -1;
+        bestInput = null;
+        int edits = distance(utterance);
+        if (edits > maxEdits)
+            return false;
+        bestHypothesis = 0;
+        bestEdits = edits;
+        bestScore = penalty[edits];
+        bestInput = utterance;
+        backtrace();
+        return true;
+    }
+
+    public int hypothesis() {
+        return bestHypothesis;
+    }
+
+    public int edits() {
+        return bestEdits;
+    }
+
+    public float score() {
+        return bestScore;
+    }
+
+    public int slotIndex(String name) {
+        return grammar.slotIndex(name);
+    }
+
+    public boolean hasSlot(int slot) {
+        if (bestHypothesis < 0)
+            return false;
+        for (int a = 0; a < alignLength; ++a)
+            if (alignSlot[a] == slot)
+                return true;
+        return false;
+    }
+
+    /**
+     * Añade a sb las palabras de la gramática asignadas al slot, separadas por espacios
+     * @return false si el slot no se ha rellenado
+     */
+    public boolean appendSlot(int slot, StringBuilder sb) {
+        boolean found = false;
+        if (bestHypothesis < 0)
+            return false;
+        for (int a = 0; a < alignLength; ++a) {
+            if (alignSlot[a] == slot) {
+                if (found)
+                    sb.append(' ');
+                symbols.appendWord(alignSym[a], sb);
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    public String slotValue(int slot) {
+        StringBuilder sb = new StringBuilder();
+        return appendSlot(slot, sb) ? sb.toString() : null;
+    }
+
+    public String slotValue(String name) {
+        int slot = slotIndex(name);
+        return slot == CompiledGrammar.NO_SLOT ? null : slotValue(slot);
+    }
+
+    //Intervalo de la frase reconocida que ocupan las palabras del slot (-1 si todas eran insertadas)
+    public int slotStart(int slot) {
+        return slotStart[slot];
+    }
+
+    public int slotEnd(int slot) {
+        return slotEnd[slot];
+    }
+
+    public CharSequence input() {
+        return bestInput;
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    ///                         DISTANCIA DE EDICIÓN                                  ///
+    /////////////////////////////////////////////////////////////////////////////////////
+
+    //Menor número de ediciones para que la frase sea de la gramática (maxEdits + 1 si supera el límite)
+    private int distance(CharSequence input) {
+        int best = cost(input);
+        return best > maxCost ? maxEdits + 1 : (best + EDIT - 1) / EDIT;
+    }
+
+    //Menor coste, en cuartos de edición, para que la frase sea de la gramática
+    private int cost(CharSequence input) {
+        tokenize(input);
+        int n = numTokens;
+        Arrays.fill(cost, 0, (n + 1) * numStates, INF);
+
+        cost[0] = 0;
+        insertions(0);
+        for (int i = 1; i <= n; ++i) {
+            int prev = (i - 1) * numStates;
+            int row = i * numStates;
+            int sym = tokenSym[i - 1];
+            for (int q = 0; q < numStates; ++q) {
+                int c = cost[prev + q];
+                if (c > maxCost)
+                    continue;
+                //La palabra reconocida sobra
+                relax(row + q, c + EDIT, q, -1, OP_DELETE);
+                //La palabra reconocida coincide con la de la transición o la sustituye
+                for (int t = grammar.firstTransition(q), end = grammar.endTransition(q); t < end; ++t) {
+                    int extra = grammar.transitionSymbol(t) == sym ? 0 : EDIT;
+                    relax(row + grammar.transitionTarget(t), c + extra, q, t, OP_MATCH);
+                }
+            }
+            merges(input, i);
+            insertions(i);
+        }
+
+        int best = maxCost + 1;
+        int row = n * numStates;
+        for (int q = 0; q < numStates; ++q)
+            if (grammar.isAccepting(q) && cost[row + q] < best)
+                best = cost[row + q];
+        return best;
+    }
+
+    //Las palabras reconocidas i - k .. i - 1, juntas, son una palabra de la gramática partida
+    private void merges(CharSequence input, int i) {
+        int row = i * numStates;
+        int length = wordChars(input, tokenStart[i - 1], tokenEnd[i - 1]);
+        for (int k = 2; k <= MAX_MERGE && k <= i; ++k) {
+            int first = i - k;
+            length += wordChars(input, tokenStart[first], tokenEnd[first]);
+            int start = tokenStart[first];
+            int prev = first * numStates;
+            for (int q = 0; q < numStates; ++q) {
+                int c = cost[prev + q];
+                if (c + MERGE > maxCost)
+                    continue;
+                for (int t = grammar.firstTransition(q), end = grammar.endTransition(q); t < end; ++t) {
+                    int sym = grammar.transitionSymbol(t);
+                    if (Math.abs(symbols.length(sym) - length) <= 1
+                            && symbols.nearJoined(sym, input, start, tokenEnd[i - 1], length))
+                        relax(row + grammar.transitionTarget(t), c + MERGE, q, t, (byte) (OP_MERGE + k - 2));
+                }
+            }
+        }
+    }
+
+    private static int wordChars(CharSequence input, int start, int end) {
+        int n = 0;
+        for (int i = start; i < end; ++i)
+            if (SymbolTable.isWordChar(input.charAt(i)))
+                n++;
+        return n;
+    }
+
+    //Palabras de la gramática que faltan en la frase: maxEdits pasadas bastan para cadenas de inserciones
+    private void insertions(int i) {
+        int row = i * numStates;
+        for (int pass = 0; pass < maxEdits; ++pass) {
+            boolean changed = false;
+            for (int q = 0; q < numStates; ++q) {
+                int c = cost[row + q];
+                if (c + EDIT > maxCost)
+                    continue;
+                for (int t = grammar.firstTransition(q), end = grammar.endTransition(q); t < end; ++t)
+                    changed |= relax(row + grammar.transitionTarget(t), c + EDIT, q, t, OP_INSERT);
+            }
+            if (!changed)
+                break;
+        }
+    }
+
+    private boolean relax(int cell, int c, int fromState, int trans, byte op) {
+        if (c > maxCost || c >= cost[cell])
+            return false;
+        cost[cell] = c;
+        backState[cell] = fromState;
+        backTrans[cell] = trans;
+        backOp[cell] = op;
+        return true;
+    }
+
+    //Reconstruye el alineamiento de la hipótesis que se acaba de evaluar
+    private void backtrace() {
+        int n = numTokens;
+        int row = n * numStates;
+        int q = -1;
+        for (int s = 0; s < numStates; ++s)
+            if (grammar.isAccepting(s) && (q < 0 || cost[row + s] < cost[row + q]))
+                q = s;
+
+        //Se rellena de atrás hacia delante y luego se invierte
+        alignLength = 0;
+        int i = n;
+        //La celda (0, 0) es el origen: nunca se actualiza porque su coste es 0
+        while (i > 0 || q != 0) {
+            int cell = i * numStates + q;
+            byte op = backOp[cell];
+            int t = backTrans[cell];
+            if (op == OP_DELETE) {
+                i--;
+            }
+            else {
+                //Palabras reconocidas que consume la transición
+                int k = op == OP_INSERT ? 0 : op == OP_MATCH ? 1 : op - OP_MERGE + 2;
+                alignSym[alignLength] = grammar.transitionSymbol(t);
+                alignSlot[alignLength] = grammar.transitionSlot(t);
+                alignFirst[alignLength] = k > 0 ? i - k : -1;
+                alignToken[alignLength] = k > 0 ? i - 1 : -1;
+                alignLength++;
+                i -= k;
+            }
+            q = backState[cell];
+        }
+        for (int a = 0, b = alignLength - 1; a < b; ++a, --b) {
+            swap(alignSym, a, b);
+            swap(alignSlot, a, b);
+            swap(alignFirst, a, b);
+            swap(alignToken, a, b);
+        }
+
+        Arrays.fill(slotStart, -1);
+        Arrays.fill(slotEnd, -1);
+        for (int a = 0; a < alignLength; ++a) {
+            int slot = alignSlot[a];
+            int tok = alignToken[a];
+            if (slot == CompiledGrammar.NO_SLOT || tok < 0)
+                continue;
+            if (slotStart[slot] < 0)
+                slotStart[slot] = tokenStart[alignFirst[a]];
+            slotEnd[slot] = tokenEnd[tok];
+        }
+    }
+
+    private static void swap(int[] v, int a, int b) {
+        int tmp = v[a];
+        v[a] = v[b];
+        v[b] = tmp;
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    ///                         PALABRAS                                              ///
+    /////////////////////////////////////////////////////////////////////////////////////
+
+    private void tokenize(CharSequence input) {
+        numTokens = 0;
+        int n = input.length();
+        int i = 0;
+        while (true) {
+            while (i < n && !SymbolTable.isWordChar(input.charAt(i)))
+                i++;
+            if (i >= n)
+                break;
+            int j = i;
+            while (j < n && SymbolTable.isWordChar(input.charAt(j)))
+                j++;
+            if (numTokens == tokenSym.length)
+                ensureTokens(2 * numTokens);
+            //Las palabras fuera del vocabulario quedan como -1: solo pueden borrarse o sustituirse
+            tokenSym[numTokens] = symbols.lookup(input, i, j);
+            tokenStart[numTokens] = i;
+            tokenEnd[numTokens] = j;
+            numTokens++;
+            i = j;
+        }
+    }
+
+    private void ensureTokens(int capacity) {
+        tokenSym = grow(tokenSym, capacity);
+        tokenStart = grow(tokenStart, capacity);
+        tokenEnd = grow(tokenEnd, capacity);
+
+        int cells = (capacity + 1) * numStates;
+        cost = new int[cells];
+        backState = new int[cells];
+        backTrans = new int[cells];
+        backOp = new byte[cells];
+
+        //Cada palabra se alinea como mucho una vez, más las inserciones. Se copian porque pueden
+        //contener el alineamiento de la mejor hipótesis evaluada hasta ahora
+        alignSym = grow(alignSym, capacity + maxEdits);
+        alignSlot = grow(alignSlot, capacity + maxEdits);
+        alignFirst = grow(alignFirst, capacity + maxEdits);
+        alignToken = grow(alignToken, capacity + maxEdits);
+    }
+
+    private static int[] grow(int[] v, int capacity) {
+        return v == null ? new int[capacity] : Arrays.copyOf(v, capacity);
+    }
+}
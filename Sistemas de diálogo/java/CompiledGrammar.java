@@ -0,0 +1,125 @@
+package com.example.laura.dialogo;
+
+import java.nio.IntBuffer;
+
+/**
+ * Autómata finito determinista y mínimo que reconoce el lenguaje de una regla JSGF.
+ * El estado inicial es el 0. Las transiciones de cada estado están ordenadas por palabra,
+ * y cada una lleva el slot al que va la palabra (o -1 si no va a ninguno).
+ *
+ * Se construye con {@link GrammarCompiler} y se recorre con {@link GrammarMatcher}. Las tablas pueden
+ * estar en memoria o proyectadas directamente desde un fichero de {@link GrammarCache}.
+ */
+public final class CompiledGrammar {
+
+    public static final int NO_SLOT = -1;
+
+    private final String rule;
+    private final SymbolTable symbols;
+    private final String[] slotNames;
+
+    //Transiciones del estado s: [first[s], first[s+1])
+    private final IntBuffer first;
+    private final IntBuffer symbol;
+    private final IntBuffer target;
+    private final IntBuffer slot;
+    //1 si el estado es final, 0 si no
+    private final IntBuffer accepting;
+
+    CompiledGrammar(String rule, SymbolTable symbols, String[] slotNames,
+                    IntBuffer first, IntBuffer symbol, IntBuffer target, IntBuffer slot, IntBuffer accepting) {
+        this.rule = rule;
+        this.symbols = symbols;
+        this.slotNames = slotNames;
+        this.first = first;
+        this.symbol = symbol;
+        this.target = target;
+        this.slot = slot;
+        this.accepting = accepting;
+    }
+
+    public String getRule() {
+        return rule;
+    }
+
+    public SymbolTable getSymbols() {
+        return symbols;
+    }
+
+    public int numStates() {
+        return accepting.capacity();
+    }
+
+    public int numTransitions() {
+        return symbol.capacity();
+    }
+
+    public int numSlots() {
+        return slotNames.length;
+    }
+
+    public String slotName(int slotIndex) {
+        return slotNames[slotIndex];
+    }
+
+    public int slotIndex(String name) {
+        for (int i = 0; i < slotNames.length; ++i)
+            if (slotNames[i].equals(name))
+                return i;
+        return NO_SLOT;
+    }
+
+    public boolean isAccepting(int state) {
+        return accepting.get(state) != 0;
+    }
+
+    public int firstTransition(int state) {
+        return first.get(state);
+    }
+
+    public int endTransition(int state) {
+        return first.get(state + 1);
+    }
+
+    public int transitionSymbol(int t) {
+        return symbol.get(t);
+    }
+
+    public int transitionTarget(int t) {
+        return target.get(t);
+    }
+
+    public int transitionSlot(int t) {
+        return slot.get(t);
+    }
+
+    /**
+     * Busca (búsqueda binaria) la transición que sale de state con la palabra sym.
+     * @return índice de la transición o -1 si no existe
+     */
+    public int transition(int state, int sym) {
+        int lo = first.get(state);
+        int hi = first.get(state + 1) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int s = symbol.get(mid);
+            if (s < sym)
+                lo = mid + 1;
+            else if (s > sym)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    //Acceso a las tablas para GrammarCache
+    String[] slotNames() {
+        return slotNames.clone();
+    }
+
+    IntBuffer[] tables() {
+        return new IntBuffer[]{first.duplicate(), symbol.duplicate(), target.duplicate(),
+                slot.duplicate(), accepting.duplicate()};
+    }
+}
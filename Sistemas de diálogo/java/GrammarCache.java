@@ -0,0 +1,214 @@
+package com.example.laura.dialogo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * Caché binaria de gramáticas compiladas. Una gramática como horas.jsgf se compila una sola vez y se
+ * guarda en un fichero; en los siguientes arranques el fichero se proyecta en memoria (mmap) y el
+ * autómata se usa tal cual, sin copiar ni reconstruir tablas, así que cargarlo cuesta lo mismo sea
+ * cual sea su tamaño.
+ *
+ * Formato (little endian, tablas alineadas a 4 bytes):
+ * <pre>
+ *   int magia, int versión, int CRC32 del fuente
+ *   int longitud + bytes UTF-8 del nombre de la regla, relleno hasta múltiplo de 4
+ *   int número de slots, y por cada uno int longitud + bytes UTF-8, relleno
+ *   int palabras, caracteres, tamaño de la tabla hash, estados, transiciones
+ *   int[] offsets, table, first, symbol, target, slot, accepting
+ *   char[] caracteres de las palabras
+ * </pre>
+ */
+public final class GrammarCache {
+
+    private static final int MAGIC = 0x4347534A; //"JSGC"
+    private static final int VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private GrammarCache() {
+    }
+
+    /**
+     * Devuelve la gramática compilada de la regla indicada, usando el fichero de caché si está al día
+     * con el fuente y regenerándolo si no existe o el fuente ha cambiado.
+     *
+     * @param source texto JSGF de la gramática (p.ej. leído de los assets)
+     * @param rule regla a compilar, o null para la primera regla pública
+     * @param cacheFile fichero de caché (p.ej. en getCacheDir())
+     */
+    public static CompiledGrammar load(String source, String rule, File cacheFile) throws IOException {
+        int checksum = checksum(source);
+        if (cacheFile.exists()) {
+            CompiledGrammar cached = map(cacheFile, checksum);
+            if (cached != null && (rule == null || rule.equals(cached.getRule())))
+                return cached;
+        }
+
+        JsgfGrammar grammar = JsgfParser.parse(source);
+        CompiledGrammar compiled = rule == null ? GrammarCompiler.compile(grammar) : GrammarCompiler.compile(grammar, rule);
+        write(compiled, checksum, cacheFile);
+        return compiled;
+    }
+
+    public static int checksum(String source) {
+        CRC32 crc = new CRC32();
+        crc.update(source.getBytes(UTF8));
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Proyecta en memoria un fichero de caché
+     * @param expectedChecksum CRC32 del fuente del que debe proceder
+     * @return la gramática, o null si el fichero no es válido o procede de otro fuente
+     */
+    public static CompiledGrammar map(File cacheFile, int expectedChecksum) throws IOException {
+        MappedByteBuffer buf;
+        RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+        try {
+            //La proyección sigue siendo válida después de cerrar el canal
+            buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (buf.remaining() < 12 || buf.getInt() != MAGIC || buf.getInt() != VERSION || buf.getInt() != expectedChecksum)
+            return null;
+        try {
+            return read(buf);
+        } catch (RuntimeException e) {
+            //Fichero truncado o corrupto: se regenerará
+            return null;
+        }
+    }
+
+    private static CompiledGrammar read(ByteBuffer buf) {
+        String rule = readString(buf);
+        String[] slotNames = new String[buf.getInt()];
+        for (int i = 0; i < slotNames.length; ++i)
+            slotNames[i] = readString(buf);
+
+        int numWords = buf.getInt();
+        int numChars = buf.getInt();
+        int tableSize = buf.getInt();
+        int numStates = buf.getInt();
+        int numTransitions = buf.getInt();
+
+        IntBuffer offsets = intView(buf, numWords + 1);
+        IntBuffer table = intView(buf, tableSize);
+        IntBuffer first = intView(buf, numStates + 1);
+        IntBuffer symbol = intView(buf, numTransitions);
+        IntBuffer target = intView(buf, numTransitions);
+        IntBuffer slot = intView(buf, numTransitions);
+        IntBuffer accepting = intView(buf, numStates);
+        CharBuffer chars = charView(buf, numChars);
+
+        SymbolTable symbols = new SymbolTable(chars, offsets, table);
+        return new CompiledGrammar(rule, symbols, slotNames, first, symbol, target, slot, accepting);
+    }
+
+    public static void write(CompiledGrammar grammar, int checksum, File cacheFile) throws IOException {
+        SymbolTable symbols = grammar.getSymbols();
+        String[] slotNames = grammar.slotNames();
+        CharBuffer chars = symbols.chars();
+        IntBuffer[] ints = new IntBuffer[7];
+        ints[0] = symbols.offsets();
+        ints[1] = symbols.table();
+        System.arraycopy(grammar.tables(), 0, ints, 2, 5);
+
+        byte[] rule = grammar.getRule().getBytes(UTF8);
+        byte[][] slots = new byte[slotNames.length][];
+        int size = 12 + 4 + pad(rule.length) + 4;
+        for (int i = 0; i < slots.length; ++i) {
+            slots[i] = slotNames[i].getBytes(UTF8);
+            size += 4 + pad(slots[i].length);
+        }
+        size += 5 * 4;
+        for (IntBuffer b : ints)
+            size += 4 * b.capacity();
+        size += 2 * chars.capacity();
+
+        ByteBuffer out = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(MAGIC).putInt(VERSION).putInt(checksum);
+        writeBytes(out, rule);
+        out.putInt(slots.length);
+        for (byte[] s : slots)
+            writeBytes(out, s);
+        out.putInt(symbols.size()).putInt(chars.capacity()).putInt(ints[1].capacity())
+                .putInt(grammar.numStates()).putInt(grammar.numTransitions());
+        for (IntBuffer b : ints) {
+            b.rewind();
+            while (b.hasRemaining())
+                out.putInt(b.get());
+        }
+        chars.rewind();
+        while (chars.hasRemaining())
+            out.putChar(chars.get());
+        out.flip();
+
+        //Escribimos en un temporal y renombramos, para no dejar nunca un fichero a medias
+        File tmp = new File(cacheFile.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            while (out.hasRemaining())
+                channel.write(out);
+            channel.force(true);
+        } finally {
+            raf.close();
+        }
+        if (!tmp.renameTo(cacheFile)) {
+            cacheFile.delete();
+            if (!tmp.renameTo(cacheFile))
+                throw new IOException("No se pudo escribir la caché " + cacheFile);
+        }
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    ///                         AUXILIARES                                            ///
+    /////////////////////////////////////////////////////////////////////////////////////
+
+    private static int pad(int n) {
+        return (n + 3) & ~3;
+    }
+
+    private static void writeBytes(ByteBuffer out, byte[] b) {
+        out.putInt(b.length);
+        out.put(b);
+        for (int i = b.length; i < pad(b.length); ++i)
+            out.put((byte) 0);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        int len = buf.getInt();
+        byte[] b = new byte[len];
+        buf.get(b);
+        buf.position(buf.position() + pad(len) - len);
+        return new String(b, UTF8);
+    }
+
+    //Vista de n enteros a partir de la posición actual, que avanza
+    private static IntBuffer intView(ByteBuffer buf, int n) {
+        ByteBuffer slice = buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+        slice.limit(4 * n);
+        buf.position(buf.position() + 4 * n);
+        return slice.asIntBuffer();
+    }
+
+    private static CharBuffer charView(ByteBuffer buf, int n) {
+        ByteBuffer slice = buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+        slice.limit(2 * n);
+        buf.position(buf.position() + 2 * n);
+        return slice.asCharBuffer();
+    }
+}
@@ -0,0 +1,379 @@
+package com.example.laura.dialogo;
+
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compila una regla de una {@link JsgfGrammar} a un {@link CompiledGrammar}:
+ * 1) construye un autómata no determinista (Thompson) expandiendo las referencias a reglas,
+ * 2) lo determiniza por construcción de subconjuntos,
+ * 3) elimina los estados que no llevan a un estado final y
+ * 4) lo minimiza por refinamiento de particiones (Moore).
+ *
+ * Las palabras etiquetadas con {this.slot=$regla} llevan el slot en su transición. Si una misma palabra
+ * puede ir a slots distintos desde el mismo punto de la frase la gramática es ambigua y no se compila.
+ * Tampoco se admiten reglas recursivas, porque su lenguaje no es regular en general.
+ */
+public final class GrammarCompiler {
+
+    private final JsgfGrammar grammar;
+
+    //Autómata no determinista: transiciones vacías y transiciones {palabra, slot, destino} de cada estado
+    private final List<List<Integer>> epsilon = new ArrayList<List<Integer>>();
+    private final List<List<int[]>> edges = new ArrayList<List<int[]>>();
+
+    private final Map<String, Integer> symbolIds = new HashMap<String, Integer>();
+    private final List<String> words = new ArrayList<String>();
+    private final Map<String, Integer> slotIds = new HashMap<String, Integer>();
+    private final List<String> slots = new ArrayList<String>();
+
+    private GrammarCompiler(JsgfGrammar grammar) {
+        this.grammar = grammar;
+    }
+
+    /**
+     * Compila la primera regla pública de la gramática
+     */
+    public static CompiledGrammar compile(JsgfGrammar grammar) {
+        if (grammar.getPublicRules().isEmpty())
+            throw new IllegalArgumentException("La gramática " + grammar.getName() + " no tiene reglas públicas");
+        return compile(grammar, grammar.getPublicRules().get(0));
+    }
+
+    public static CompiledGrammar compile(JsgfGrammar grammar, String rule) {
+        if (grammar.getRule(rule) == null)
+            throw new IllegalArgumentException("Regla no definida: <" + rule + ">");
+        return new GrammarCompiler(grammar).run(rule);
+    }
+
+    private CompiledGrammar run(String rule) {
+        int start = newState();
+        int end = build(new JsgfGrammar.RuleRef(rule), start, CompiledGrammar.NO_SLOT, new ArrayDeque<String>());
+
+        List<List<int[]>> dfa = new ArrayList<List<int[]>>();
+        List<Boolean> dfaAccepting = new ArrayList<Boolean>();
+        determinize(start, end, dfa, dfaAccepting);
+
+        boolean[] live = trim(dfa, dfaAccepting);
+        int[] classes = minimize(dfa, dfaAccepting, live);
+        return renumber(rule, dfa, dfaAccepting, live, classes);
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    ///                         AUTÓMATA NO DETERMINISTA                              ///
+    /////////////////////////////////////////////////////////////////////////////////////
+
+    private int newState() {
+        epsilon.add(new ArrayList<Integer>());
+        edges.add(new ArrayList<int[]>());
+        return epsilon.size() - 1;
+    }
+
+    //Añade al autómata la expansión e a partir del estado from y devuelve un estado final nuevo
+    private int build(JsgfGrammar.Expansion e, int from, int slot, ArrayDeque<String> stack) {
+        if (e instanceof JsgfGrammar.Token) {
+            int cur = from;
+            String text = ((JsgfGrammar.Token) e).text;
+            int i = 0;
+            while (i < text.length()) {
+                while (i < text.length() && !SymbolTable.isWordChar(text.charAt(i)))
+                    i++;
+                int j = i;
+                while (j < text.length() && SymbolTable.isWordChar(text.charAt(j)))
+                    j++;
+                if (j > i) {
+                    int next = newState();
+                    edges.get(cur).add(new int[]{symbol(text, i, j), slot, next});
+                    cur = next;
+                }
+                i = j;
+            }
+            if (cur == from) {
+                cur = newState();
+                epsilon.get(from).add(cur);
+            }
+            return cur;
+        }
+        if (e instanceof JsgfGrammar.RuleRef) {
+            String name = ((JsgfGrammar.RuleRef) e).rule;
+            JsgfGrammar.Expansion body = grammar.getRule(name);
+            if (body == null)
+                throw new IllegalArgumentException("Regla no definida: <" + name + ">");
+            if (stack.contains(name))
+                throw new IllegalArgumentException("Regla recursiva no soportada: <" + name + ">");
+            stack.push(name);
+            int end = build(body, from, slot, stack);
+            stack.pop();
+            return end;
+        }
+        if (e instanceof JsgfGrammar.Sequence) {
+            int cur = from;
+            for (JsgfGrammar.Expansion item : ((JsgfGrammar.Sequence) e).items)
+                cur = build(item, cur, slot, stack);
+            return cur;
+        }
+        if (e instanceof JsgfGrammar.Alternatives) {
+            int end = newState();
+            for (JsgfGrammar.Expansion item : ((JsgfGrammar.Alternatives) e).items)
+                epsilon.get(build(item, from, slot, stack)).add(end);
+            return end;
+        }
+        if (e instanceof JsgfGrammar.OptionalGroup) {
+            int end = newState();
+            epsilon.get(build(((JsgfGrammar.OptionalGroup) e).item, from, slot, stack)).add(end);
+            epsilon.get(from).add(end);
+            return end;
+        }
+        if (e instanceof JsgfGrammar.Repeat) {
+            JsgfGrammar.Repeat r = (JsgfGrammar.Repeat) e;
+            //Estado propio para el bucle, para no crear ciclos sobre estados compartidos
+            int loop = newState();
+            int end = newState();
+            epsilon.get(from).add(loop);
+            int itemEnd = build(r.item, loop, slot, stack);
+            epsilon.get(itemEnd).add(loop);
+            epsilon.get(r.atLeastOnce ? itemEnd : loop).add(end);
+            return end;
+        }
+        if (e instanceof JsgfGrammar.Tagged) {
+            JsgfGrammar.Tagged t = (JsgfGrammar.Tagged) e;
+            return build(t.item, from, slotId(t.slot), stack);
+        }
+        throw new IllegalStateException("Expansión desconocida: " + e);
+    }
+
+    private int symbol(String text, int start, int end) {
+        StringBuilder sb = new StringBuilder(end - start);
+        for (int i = start; i < end; ++i)
+            sb.append(SymbolTable.fold(text.charAt(i)));
+        String word = sb.toString();
+        Integer id = symbolIds.get(word);
+        if (id == null) {
+            id = words.size();
+            symbolIds.put(word, id);
+            words.add(word);
+        }
+        return id;
+    }
+
+    private int slotId(String name) {
+        Integer id = slotIds.get(name);
+        if (id == null) {
+            id = slots.size();
+            slotIds.put(name, id);
+            slots.add(name);
+        }
+        return id;
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    ///                         DETERMINIZACIÓN                                       ///
+    /////////////////////////////////////////////////////////////////////////////////////
+
+    private BitSet closure(BitSet states) {
+        BitSet result = (BitSet) states.clone();
+        ArrayDeque<Integer> pending = new ArrayDeque<Integer>();
+        for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1))
+            pending.push(s);
+        while (!pending.isEmpty()) {
+            for (int next : epsilon.get(pending.pop())) {
+                if (!result.get(next)) {
+                    result.set(next);
+                    pending.push(next);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void determinize(int start, int end, List<List<int[]>> dfa, List<Boolean> dfaAccepting) {
+        Map<BitSet, Integer> ids = new HashMap<BitSet, Integer>();
+        List<BitSet> subsets = new ArrayList<BitSet>();
+
+        BitSet init = new BitSet();
+        init.set(start);
+        init = closure(init);
+        ids.put(init, 0);
+        subsets.add(init);
+
+        for (int d = 0; d < subsets.size(); ++d) {
+            BitSet subset = subsets.get(d);
+            //palabra -> {slot, estados destino}
+            TreeMap<Integer, Object[]> moves = new TreeMap<Integer, Object[]>();
+            for (int s = subset.nextSetBit(0); s >= 0; s = subset.nextSetBit(s + 1)) {
+                for (int[] edge : edges.get(s)) {
+                    Object[] move = moves.get(edge[0]);
+                    if (move == null) {
+                        move = new Object[]{edge[1], new BitSet()};
+                        moves.put(edge[0], move);
+                    }
+                    else if ((Integer) move[0] != edge[1])
+                        throw new IllegalArgumentException("Gramática ambigua: la palabra '" + words.get(edge[0])
+                                + "' puede ir a los slots " + slotLabel((Integer) move[0]) + " y " + slotLabel(edge[1]));
+                    ((BitSet) move[1]).set(edge[2]);
+                }
+            }
+
+            List<int[]> transitions = new ArrayList<int[]>();
+            for (Map.Entry<Integer, Object[]> move : moves.entrySet()) {
+                BitSet next = closure((BitSet) move.getValue()[1]);
+                Integer id = ids.get(next);
+                if (id == null) {
+                    id = subsets.size();
+                    ids.put(next, id);
+                    subsets.add(next);
+                }
+                transitions.add(new int[]{move.getKey(), (Integer) move.getValue()[0], id});
+            }
+            dfa.add(transitions);
+            dfaAccepting.add(subset.get(end));
+        }
+    }
+
+    private String slotLabel(int slot) {
+        return slot == CompiledGrammar.NO_SLOT ? "(ninguno)" : slots.get(slot);
+    }
+
+    //Marca los estados desde los que se puede llegar a un estado final
+    private static boolean[] trim(List<List<int[]>> dfa, List<Boolean> accepting) {
+        int n = dfa.size();
+        List<List<Integer>> reverse = new ArrayList<List<Integer>>(n);
+        for (int s = 0; s < n; ++s)
+            reverse.add(new ArrayList<Integer>());
+        for (int s = 0; s < n; ++s)
+            for (int[] t : dfa.get(s))
+                reverse.get(t[2]).add(s);
+
+        boolean[] live = new boolean[n];
+        ArrayDeque<Integer> pending = new ArrayDeque<Integer>();
+        for (int s = 0; s < n; ++s) {
+            if (accepting.get(s)) {
+                live[s] = true;
+                pending.push(s);
+            }
+        }
+        while (!pending.isEmpty()) {
+            for (int prev : reverse.get(pending.pop())) {
+                if (!live[prev]) {
+                    live[prev] = true;
+                    pending.push(prev);
+                }
+            }
+        }
+        return live;
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    ///                         MINIMIZACIÓN                                          ///
+    /////////////////////////////////////////////////////////////////////////////////////
+
+    /*
+     * Refinamiento de Moore: empezamos separando finales y no finales, y en cada vuelta separamos
+     * los estados de una misma clase cuyas transiciones (palabra, slot, clase destino) difieren.
+     */
+    private static int[] minimize(List<List<int[]>> dfa, List<Boolean> accepting, boolean[] live) {
+        int n = dfa.size();
+        int[] classes = new int[n];
+        for (int s = 0; s < n; ++s)
+            classes[s] = accepting.get(s) ? 1 : 0;
+        int numClasses = -1;
+
+        while (true) {
+            Map<List<Integer>, Integer> signatures = new HashMap<List<Integer>, Integer>();
+            int[] next = new int[n];
+            for (int s = 0; s < n; ++s) {
+                if (!live[s])
+                    continue;
+                List<Integer> signature = new ArrayList<Integer>();
+                signature.add(classes[s]);
+                for (int[] t : dfa.get(s)) {
+                    if (!live[t[2]])
+                        continue;
+                    signature.add(t[0]);
+                    signature.add(t[1]);
+                    signature.add(classes[t[2]]);
+                }
+                Integer id = signatures.get(signature);
+                if (id == null) {
+                    id = signatures.size();
+                    signatures.put(signature, id);
+                }
+                next[s] = id;
+            }
+            classes = next;
+            if (signatures.size() == numClasses)
+                return classes;
+            numClasses = signatures.size();
+        }
+    }
+
+    //Numera las clases en orden de recorrido en anchura desde el estado inicial y genera las tablas
+    private CompiledGrammar renumber(String rule, List<List<int[]>> dfa, List<Boolean> accepting,
+                                     boolean[] live, int[] classes) {
+        SymbolTable symbols = new SymbolTable(words.toArray(new String[words.size()]));
+        String[] slotNames = slots.toArray(new String[slots.size()]);
+
+        if (!live[0])
+            return new CompiledGrammar(rule, symbols, slotNames, IntBuffer.wrap(new int[]{0, 0}),
+                    IntBuffer.allocate(0), IntBuffer.allocate(0), IntBuffer.allocate(0), IntBuffer.allocate(1));
+
+        //Un representante por clase
+        int[] representative = new int[dfa.size()];
+        Arrays.fill(representative, -1);
+        for (int s = 0; s < dfa.size(); ++s)
+            if (live[s] && representative[classes[s]] < 0)
+                representative[classes[s]] = s;
+
+        int[] order = new int[dfa.size()];
+        Arrays.fill(order, -1);
+        List<Integer> queue = new ArrayList<Integer>();
+        order[classes[0]] = 0;
+        queue.add(classes[0]);
+        int numTransitions = 0;
+        for (int q = 0; q < queue.size(); ++q) {
+            for (int[] t : dfa.get(representative[queue.get(q)])) {
+                if (!live[t[2]])
+                    continue;
+                numTransitions++;
+                int c = classes[t[2]];
+                if (order[c] < 0) {
+                    order[c] = queue.size();
+                    queue.add(c);
+                }
+            }
+        }
+
+        int numStates = queue.size();
+        int[] first = new int[numStates + 1];
+        int[] symbol = new int[numTransitions];
+        int[] target = new int[numTransitions];
+        int[] slot = new int[numTransitions];
+        int[] isAccepting = new int[numStates];
+        int k = 0;
+        for (int q = 0; q < numStates; ++q) {
+            int s = representative[queue.get(q)];
+            first[q] = k;
+            isAccepting[q] = accepting.get(s) ? 1 : 0;
+            //Las transiciones ya vienen ordenadas por palabra (TreeMap)
+            for (int[] t : dfa.get(s)) {
+                if (!live[t[2]])
+                    continue;
+                symbol[k] = t[0];
+                slot[k] = t[1];
+                target[k] = order[classes[t[2]]];
+                k++;
+            }
+        }
+        first[numStates] = k;
+
+        return new CompiledGrammar(rule, symbols, slotNames, IntBuffer.wrap(first), IntBuffer.wrap(symbol),
+                IntBuffer.wrap(target), IntBuffer.wrap(slot), IntBuffer.wrap(isAccepting));
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.laura.dialogo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+/**
+ * Frases de ejemplo con el resultado que deben dar las gramáticas, para comprobar en el ordenador
+ * que un cambio en el compilador, el reconocimiento aproximado o las gramáticas no rompe ninguna.
+ * Se ejecuta con
+ *
+ *   java com.example.laura.dialogo.GrammarExamples [directorio de las gramáticas]
+ *
+ * y termina con código 1 si alguna frase no da lo esperado.
+ */
+public final class GrammarExamples {
+
+    private static int failures;
+
+    public static void main(String[] args) throws IOException {
+        File dir = new File(args.length > 0 ? args[0] : ".");
+        TimeDateNormalizer normalizer = new TimeDateNormalizer();
+        int today = 20170301;
+
+        //Año: solo lo tiene grammar.xml
+        CompiledGrammar fechas = load(new File(dir, "grammar.xml"));
+        GrammarMatcher exact = new GrammarMatcher(fechas);
+        exact.match("quiero cita para el dia veintidos de mayo de dos mil diecisiete");
+        check("año", normalizer.packedDate(exact, today), 20170522);
+        exact.match("para el tres de enero");
+        check("sin año", normalizer.packedDate(exact, today), 20180103);
+
+        //Una palabra partida en dos se junta; no se borra "veinte" para quedarse con "dos"
+        ApproximateMatcher approximate = new ApproximateMatcher(load(new File(dir, "fechas.jsgf")), 2);
+        check("veinte dos", approximate.match("quiero cita para el dia veinte dos de mayo") ? 1 : 0, 1);
+        check("veinte dos: dia", approximate.slotValue("dia"), "veintidos");
+        check("veinte dos: ediciones", approximate.edits(), 1);
+        check("treinta y uno", approximate.match("para el treinta y uno de enero") ? approximate.slotValue("dia") : null, "treintaiuno");
+        check("dos", approximate.match("para el dia dos de mayo") ? approximate.slotValue("dia") : null, "dos");
+
+        if (failures > 0) {
+            System.out.println(failures + " ejemplos fallan");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    private static CompiledGrammar load(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            return GrammarCompiler.compile(JsgfParser.parse(reader));
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void check(String name, Object actual, Object expected) {
+        boolean ok = expected == null ? actual == null : expected.equals(actual);
+        if (!ok) {
+            System.out.println(name + ": " + actual + " (se esperaba " + expected + ")");
+            failures++;
+        }
+    }
+}
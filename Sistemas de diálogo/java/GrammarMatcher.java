@@ -0,0 +1,199 @@
+package com.example.laura.dialogo;
+
+/**
+ * Reconoce frases con un {@link CompiledGrammar} y devuelve los slots rellenados.
+ * Recorre la frase una sola vez, palabra a palabra, sin crear objetos: cada slot se guarda como
+ * el intervalo [inicio, fin) de caracteres de la frase que ocupan sus palabras.
+ *
+ * Un matcher guarda el resultado de la última frase, así que no se debe compartir entre hilos.
+ */
+public final class GrammarMatcher {
+
+    private final CompiledGrammar grammar;
+    private final SymbolTable symbols;
+    private final int[] slotStart;
+    private final int[] slotEnd;
+    //Slots provisionales mientras find() prueba el fragmento más largo
+    private final int[] workStart;
+    private final int[] workEnd;
+    private CharSequence input;
+    private boolean matched;
+    private int matchStart;
+
+    public GrammarMatcher(CompiledGrammar grammar) {
+        this.grammar = grammar;
+        this.symbols = grammar.getSymbols();
+        this.slotStart = new int[grammar.numSlots()];
+        this.slotEnd = new int[grammar.numSlots()];
+        this.workStart = new int[grammar.numSlots()];
+        this.workEnd = new int[grammar.numSlots()];
+    }
+
+    public CompiledGrammar getGrammar() {
+        return grammar;
+    }
+
+    /**
+     * Comprueba si la frase completa pertenece a la gramática
+     * @param utterance frase reconocida, p.ej. "quiero cita para el dia dos de mayo"
+     * @return true si la reconoce; en ese caso los slots quedan disponibles hasta la siguiente llamada
+     */
+    public boolean match(CharSequence utterance) {
+        input = utterance;
+        matched = false;
+        for (int i = 0; i < slotStart.length; ++i) {
+            slotStart[i] = -1;
+            slotEnd[i] = -1;
+        }
+
+        int state = 0;
+        int n = utterance.length();
+        int i = 0;
+        while (true) {
+            while (i < n && !SymbolTable.isWordChar(utterance.charAt(i)))
+                i++;
+            if (i >= n)
+                break;
+            int j = i;
+            while (j < n && SymbolTable.isWordChar(utterance.charAt(j)))
+                j++;
+
+            int sym = symbols.lookup(utterance, i, j);
+            if (sym < 0)
+                return false;
+            int t = grammar.transition(state, sym);
+            if (t < 0)
+                return false;
+            int slot = grammar.transitionSlot(t);
+            if (slot != CompiledGrammar.NO_SLOT) {
+                if (slotStart[slot] < 0)
+                    slotStart[slot] = i;
+                slotEnd[slot] = j;
+            }
+            state = grammar.transitionTarget(t);
+            i = j;
+        }
+
+        matched = grammar.isAccepting(state);
+        return matched;
+    }
+
+    /**
+     * Busca, a partir de la posición from, el primer fragmento de la frase que pertenece a la gramática
+     * y rellena algún slot (el más largo que empieza en esa palabra). Sirve para encontrar una fecha
+     * y una hora dentro de una misma frase: "el dos de mayo a las cinco".
+     * @return posición final del fragmento, o -1 si no hay ninguno; el inicio está en {@link #matchStart()}
+     */
+    public int find(CharSequence text, int from) {
+        input = text;
+        matched = false;
+        int n = text.length();
+        int i = from;
+        while (true) {
+            while (i < n && !SymbolTable.isWordChar(text.charAt(i)))
+                i++;
+            if (i >= n)
+                return -1;
+            int end = longestAt(text, i);
+            if (end >= 0) {
+                matched = true;
+                matchStart = i;
+                return end;
+            }
+            while (i < n && SymbolTable.isWordChar(text.charAt(i)))
+                i++;
+        }
+    }
+
+    public int matchStart() {
+        return matchStart;
+    }
+
+    //Fragmento aceptado más largo que empieza en i y rellena algún slot; deja sus slots en slotStart/slotEnd
+    private int longestAt(CharSequence text, int i) {
+        for (int k = 0; k < workStart.length; ++k) {
+            workStart[k] = -1;
+            workEnd[k] = -1;
+        }
+        int best = -1;
+        boolean anySlot = false;
+        int state = 0;
+        int n = text.length();
+        while (true) {
+            while (i < n && !SymbolTable.isWordChar(text.charAt(i)))
+                i++;
+            if (i >= n)
+                break;
+            int j = i;
+            while (j < n && SymbolTable.isWordChar(text.charAt(j)))
+                j++;
+            int sym = symbols.lookup(text, i, j);
+            int t = sym < 0 ? -1 : grammar.transition(state, sym);
+            if (t < 0)
+                break;
+            int slot = grammar.transitionSlot(t);
+            if (slot != CompiledGrammar.NO_SLOT) {
+                if (workStart[slot] < 0)
+                    workStart[slot] = i;
+                workEnd[slot] = j;
+                anySlot = true;
+            }
+            state = grammar.transitionTarget(t);
+            if (anySlot && grammar.isAccepting(state)) {
+                best = j;
+                System.arraycopy(workStart, 0, slotStart, 0, workStart.length);
+                System.arraycopy(workEnd, 0, slotEnd, 0, workEnd.length);
+            }
+            i = j;
+        }
+        return best;
+    }
+
+    public boolean matched() {
+        return matched;
+    }
+
+    //Última frase evaluada
+    public CharSequence input() {
+        return input;
+    }
+
+    public int slotIndex(String name) {
+        return grammar.slotIndex(name);
+    }
+
+    public boolean hasSlot(int slot) {
+        return matched && slotStart[slot] >= 0;
+    }
+
+    public int slotStart(int slot) {
+        return slotStart[slot];
+    }
+
+    public int slotEnd(int slot) {
+        return slotEnd[slot];
+    }
+
+    /**
+     * Añade el valor del slot a sb (sin crear Strings intermedios)
+     * @return false si el slot no se ha rellenado
+     */
+    public boolean appendSlot(int slot, StringBuilder sb) {
+        if (!hasSlot(slot))
+            return false;
+        sb.append(input, slotStart[slot], slotEnd[slot]);
+        return true;
+    }
+
+    /**
+     * Valor del slot como String, o null si no se ha rellenado
+     */
+    public String slotValue(int slot) {
+        return hasSlot(slot) ? input.subSequence(slotStart[slot], slotEnd[slot]).toString() : null;
+    }
+
+    public String slotValue(String name) {
+        int slot = slotIndex(name);
+        return slot == CompiledGrammar.NO_SLOT ? null : slotValue(slot);
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.laura.dialogo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gramática JSGF ya analizada: conjunto de reglas con nombre, cada una con su árbol de expansión.
+ * Se obtiene con {@link JsgfParser} y se compila a autómata con {@link GrammarCompiler}.
+ */
+public class JsgfGrammar {
+
+    private final String name;
+    private final Map<String, Expansion> rules;
+    private final List<String> publicRules;
+
+    JsgfGrammar(String name, LinkedHashMap<String, Expansion> rules, List<String> publicRules) {
+        this.name = name;
+        this.rules = Collections.unmodifiableMap(rules);
+        this.publicRules = Collections.unmodifiableList(publicRules);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Expansion getRule(String ruleName) {
+        return rules.get(ruleName);
+    }
+
+    public Map<String, Expansion> getRules() {
+        return rules;
+    }
+
+    public List<String> getPublicRules() {
+        return publicRules;
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    ///                         NODOS DE EXPANSIÓN                                    ///
+    /////////////////////////////////////////////////////////////////////////////////////
+
+    public static abstract class Expansion {
+    }
+
+    //Palabra (o palabras, si venía entre comillas) que hay que reconocer literalmente
+    public static final class Token extends Expansion {
+        public final String text;
+
+        Token(String text) {
+            this.text = text;
+        }
+    }
+
+    //Referencia a otra regla: <dia>
+    public static final class RuleRef extends Expansion {
+        public final String rule;
+
+        RuleRef(String rule) {
+            this.rule = rule;
+        }
+    }
+
+    //Elementos uno detrás de otro
+    public static final class Sequence extends Expansion {
+        public final List<Expansion> items;
+
+        Sequence(List<Expansion> items) {
+            this.items = Collections.unmodifiableList(new ArrayList<Expansion>(items));
+        }
+    }
+
+    //Alternativas separadas por |
+    public static final class Alternatives extends Expansion {
+        public final List<Expansion> items;
+
+        Alternatives(List<Expansion> items) {
+            this.items = Collections.unmodifiableList(new ArrayList<Expansion>(items));
+        }
+    }
+
+    //Grupo opcional: [ ... ]
+    public static final class OptionalGroup extends Expansion {
+        public final Expansion item;
+
+        OptionalGroup(Expansion item) {
+            this.item = item;
+        }
+    }
+
+    //Repetición: x* (atLeastOnce = false) o x+ (atLeastOnce = true)
+    public static final class Repeat extends Expansion {
+        public final Expansion item;
+        public final boolean atLeastOnce;
+
+        Repeat(Expansion item, boolean atLeastOnce) {
+            this.item = item;
+            this.atLeastOnce = atLeastOnce;
+        }
+    }
+
+    //Elemento con etiqueta semántica {this.slot=$regla}: las palabras que reconoce van al slot
+    public static final class Tagged extends Expansion {
+        public final Expansion item;
+        public final String slot;
+
+        Tagged(Expansion item, String slot) {
+            this.item = item;
+            this.slot = slot;
+        }
+    }
+}
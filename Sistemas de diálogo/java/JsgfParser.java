@@ -0,0 +1,282 @@
+package com.example.laura.dialogo;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Analizador de gramáticas JSGF (el subconjunto que usamos en dias.jsgf, fechas.jsgf y horas.jsgf):
+ * cabecera, nombre de gramática, reglas públicas y privadas, alternativas, grupos (), opcionales [],
+ * repeticiones * y +, referencias a reglas, palabras entre comillas y etiquetas {this.slot=$regla}.
+ * Los pesos /n/ se aceptan y se ignoran. Los import no están soportados.
+ */
+public class JsgfParser {
+
+    private final String src;
+    private int pos;
+
+    private JsgfParser(String src) {
+        this.src = src;
+        this.pos = 0;
+    }
+
+    public static JsgfGrammar parse(Reader reader) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        char[] buf = new char[4096];
+        int n;
+        while ((n = reader.read(buf)) != -1)
+            sb.append(buf, 0, n);
+        return parse(sb.toString());
+    }
+
+    public static JsgfGrammar parse(String text) {
+        return new JsgfParser(text).grammar();
+    }
+
+    private JsgfGrammar grammar() {
+        String name = "";
+        LinkedHashMap<String, JsgfGrammar.Expansion> rules = new LinkedHashMap<String, JsgfGrammar.Expansion>();
+        List<String> publicRules = new ArrayList<String>();
+
+        skipSpace();
+        //Cabecera "#JSGF V1.0;" (también aceptamos la errata #JSFG de grammar.xml)
+        if (peek() == '#')
+            skipPast(';');
+
+        while (true) {
+            skipSpace();
+            if (pos >= src.length())
+                break;
+
+            if (peek() == '<' || atPublic()) {
+                boolean isPublic = false;
+                if (atPublic()) {
+                    pos += "public".length();
+                    isPublic = true;
+                    skipSpace();
+                }
+                String ruleName = ruleName();
+                skipSpace();
+                expect('=');
+                JsgfGrammar.Expansion expansion = alternatives();
+                skipSpace();
+                expect(';');
+
+                if (rules.containsKey(ruleName))
+                    throw error("Regla definida dos veces: <" + ruleName + ">");
+                rules.put(ruleName, expansion);
+                if (isPublic)
+                    publicRules.add(ruleName);
+            }
+            else {
+                String keyword = word();
+                if (keyword.equals("grammar")) {
+                    skipSpace();
+                    name = word();
+                    skipSpace();
+                    expect(';');
+                }
+                else if (keyword.equals("import"))
+                    throw error("Las reglas import no están soportadas");
+                else
+                    throw error("Se esperaba una regla y se encontró '" + keyword + "'");
+            }
+        }
+
+        return new JsgfGrammar(name, rules, publicRules);
+    }
+
+    //alternativas := secuencia ('|' secuencia)*
+    private JsgfGrammar.Expansion alternatives() {
+        List<JsgfGrammar.Expansion> alts = new ArrayList<JsgfGrammar.Expansion>();
+        alts.add(sequence());
+        skipSpace();
+        while (peek() == '|') {
+            pos++;
+            alts.add(sequence());
+            skipSpace();
+        }
+        return alts.size() == 1 ? alts.get(0) : new JsgfGrammar.Alternatives(alts);
+    }
+
+    //secuencia := elemento+
+    private JsgfGrammar.Expansion sequence() {
+        List<JsgfGrammar.Expansion> items = new ArrayList<JsgfGrammar.Expansion>();
+        skipSpace();
+        //Peso opcional de la alternativa: /10/
+        if (peek() == '/') {
+            pos++;
+            skipPast('/');
+            skipSpace();
+        }
+        while (true) {
+            skipSpace();
+            char c = peek();
+            if (c == 0 || c == '|' || c == ';' || c == ')' || c == ']')
+                break;
+            items.add(item());
+        }
+        if (items.isEmpty())
+            throw error("Expansión vacía");
+        return items.size() == 1 ? items.get(0) : new JsgfGrammar.Sequence(items);
+    }
+
+    //elemento := primario ('*' | '+' | '{etiqueta}')*
+    private JsgfGrammar.Expansion item() {
+        JsgfGrammar.Expansion item = primary();
+        while (true) {
+            skipSpace();
+            char c = peek();
+            if (c == '*' || c == '+') {
+                pos++;
+                item = new JsgfGrammar.Repeat(item, c == '+');
+            }
+            else if (c == '{') {
+                pos++;
+                int end = src.indexOf('}', pos);
+                if (end < 0)
+                    throw error("Etiqueta sin cerrar");
+                String tag = src.substring(pos, end).trim();
+                pos = end + 1;
+                item = new JsgfGrammar.Tagged(item, tagSlot(tag, item));
+            }
+            else
+                return item;
+        }
+    }
+
+    private JsgfGrammar.Expansion primary() {
+        char c = peek();
+        if (c == '<')
+            return new JsgfGrammar.RuleRef(ruleName());
+        if (c == '(') {
+            pos++;
+            JsgfGrammar.Expansion e = alternatives();
+            skipSpace();
+            expect(')');
+            return e;
+        }
+        if (c == '[') {
+            pos++;
+            JsgfGrammar.Expansion e = alternatives();
+            skipSpace();
+            expect(']');
+            return new JsgfGrammar.OptionalGroup(e);
+        }
+        if (c == '"') {
+            pos++;
+            int end = src.indexOf('"', pos);
+            if (end < 0)
+                throw error("Comillas sin cerrar");
+            String text = src.substring(pos, end);
+            pos = end + 1;
+            return new JsgfGrammar.Token(text);
+        }
+        return new JsgfGrammar.Token(word());
+    }
+
+    /*
+     * Solo admitimos etiquetas de la forma this.slot=$regla, donde $regla es la referencia
+     * a la que acompaña la etiqueta. El slot recibe las palabras reconocidas por esa referencia.
+     */
+    private String tagSlot(String tag, JsgfGrammar.Expansion item) {
+        int eq = tag.indexOf('=');
+        if (!tag.startsWith("this.") || eq < 0)
+            throw error("Etiqueta no soportada: {" + tag + "}");
+        String slot = tag.substring("this.".length(), eq).trim();
+        String value = tag.substring(eq + 1).trim();
+        if (value.endsWith(";"))
+            value = value.substring(0, value.length() - 1).trim();
+        if (slot.isEmpty() || !value.startsWith("$"))
+            throw error("Etiqueta no soportada: {" + tag + "}");
+        String ref = value.substring(1);
+        if (!(item instanceof JsgfGrammar.RuleRef) || !((JsgfGrammar.RuleRef) item).rule.equals(ref))
+            throw error("La etiqueta {" + tag + "} debe acompañar a la referencia <" + ref + ">");
+        return slot;
+    }
+
+    private boolean atPublic() {
+        int end = pos + "public".length();
+        return src.startsWith("public", pos) && end < src.length()
+                && (Character.isWhitespace(src.charAt(end)) || src.charAt(end) == '<');
+    }
+
+    private String ruleName() {
+        expect('<');
+        int end = src.indexOf('>', pos);
+        if (end < 0)
+            throw error("Nombre de regla sin cerrar");
+        String name = src.substring(pos, end).trim();
+        pos = end + 1;
+        if (name.isEmpty())
+            throw error("Nombre de regla vacío");
+        return name;
+    }
+
+    private String word() {
+        int start = pos;
+        while (pos < src.length() && !isSpecial(src.charAt(pos)) && !Character.isWhitespace(src.charAt(pos)))
+            pos++;
+        if (start == pos)
+            throw error("Carácter inesperado '" + peek() + "'");
+        return src.substring(start, pos);
+    }
+
+    private static boolean isSpecial(char c) {
+        switch (c) {
+            case '<': case '>': case '(': case ')': case '[': case ']': case '|': case ';':
+            case '=': case '*': case '+': case '{': case '}': case '"': case '/':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    //Salta espacios y comentarios // y /* */
+    private void skipSpace() {
+        while (pos < src.length()) {
+            char c = src.charAt(pos);
+            if (Character.isWhitespace(c))
+                pos++;
+            else if (src.startsWith("//", pos)) {
+                int end = src.indexOf('\n', pos);
+                pos = end < 0 ? src.length() : end + 1;
+            }
+            else if (src.startsWith("/*", pos)) {
+                int end = src.indexOf("*/", pos + 2);
+                if (end < 0)
+                    throw error("Comentario sin cerrar");
+                pos = end + 2;
+            }
+            else
+                break;
+        }
+    }
+
+    private void skipPast(char c) {
+        int end = src.indexOf(c, pos);
+        if (end < 0)
+            throw error("Falta '" + c + "'");
+        pos = end + 1;
+    }
+
+    private char peek() {
+        return pos < src.length() ? src.charAt(pos) : 0;
+    }
+
+    private void expect(char c) {
+        if (peek() != c)
+            throw error("Se esperaba '" + c + "'");
+        pos++;
+    }
+
+    private IllegalArgumentException error(String msg) {
+        int line = 1;
+        for (int i = 0; i < pos && i < src.length(); ++i)
+            if (src.charAt(i) == '\n')
+                line++;
+        return new IllegalArgumentException(msg + " (línea " + line + ")");
+    }
+}
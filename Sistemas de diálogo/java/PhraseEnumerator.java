@@ -0,0 +1,320 @@
+package com.example.laura.dialogo;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Frases que acepta una gramática compilada, para generar corpus de prueba y pistas para el ASR.
+ * Trabaja sobre el autómata mínimo y no sobre la gramática, así que los opcionales anidados de
+ * horas.jsgf no se expanden nunca:
+ * - cuenta las frases por programación dinámica sobre los estados,
+ * - las recorre de una en una en orden estable (el de las palabras en la gramática) con una pila de
+ *   profundidad igual a la longitud máxima de frase, y
+ * - las muestrea de manera uniforme usando los recuentos de cada estado.
+ *
+ * Si la gramática tiene repeticiones (* o +) el número de frases es infinito; en ese caso hay que
+ * indicar un número máximo de palabras.
+ */
+public final class PhraseEnumerator {
+
+    private final CompiledGrammar grammar;
+    private final int numStates;
+    //Mínimo de palabras desde cada estado hasta un estado final
+    private final int[] minToAccept;
+    //Máximo de palabras desde el estado inicial (-1 si hay ciclos)
+    private final int longest;
+
+    //Recuentos por (palabras restantes, estado) para muestrear; se calculan bajo demanda
+    private long[] ways;
+    private int waysMaxWords = -1;
+
+    public PhraseEnumerator(CompiledGrammar grammar) {
+        this.grammar = grammar;
+        this.numStates = grammar.numStates();
+        this.minToAccept = shortestToAccept();
+        this.longest = longestPath();
+    }
+
+    public boolean isFinite() {
+        return longest >= 0;
+    }
+
+    /**
+     * Número de palabras de la frase más larga, o -1 si no hay límite
+     */
+    public int longestPhrase() {
+        return longest;
+    }
+
+    /**
+     * Número total de frases, -1 si es infinito y Long.MAX_VALUE si no cabe en un long
+     */
+    public long count() {
+        return isFinite() ? count(longest) : -1;
+    }
+
+    /**
+     * Número de frases de como mucho maxWords palabras (Long.MAX_VALUE si no cabe en un long)
+     */
+    public long count(int maxWords) {
+        if (minToAccept[0] < 0 || maxWords < 0)
+            return 0;
+        return table(maxWords)[maxWords * numStates];
+    }
+
+    /**
+     * Recorre perezosamente todas las frases (la gramática debe ser finita)
+     */
+    public Iterator<String> phrases() {
+        if (!isFinite())
+            throw new IllegalStateException("La gramática acepta infinitas frases: indique un máximo de palabras");
+        return phrases(longest);
+    }
+
+    /**
+     * Recorre perezosamente las frases de como mucho maxWords palabras, en orden estable: primero la
+     * frase más corta de cada prefijo y después sus continuaciones, en el orden de la gramática.
+     * Solo guarda el camino actual, así que la memoria es proporcional a maxWords.
+     */
+    public Iterator<String> phrases(int maxWords) {
+        return new PhraseIterator(maxWords);
+    }
+
+    /**
+     * Elige una frase de como mucho maxWords palabras con probabilidad uniforme
+     * @return la frase, o null si no hay ninguna
+     */
+    public String sample(Random random, int maxWords) {
+        StringBuilder sb = new StringBuilder();
+        return sample(random, maxWords, sb) ? sb.toString() : null;
+    }
+
+    public boolean sample(Random random, int maxWords, StringBuilder out) {
+        long total = count(maxWords);
+        if (total == 0)
+            return false;
+        if (total == Long.MAX_VALUE)
+            throw new IllegalStateException("Demasiadas frases para muestrear de manera uniforme");
+
+        long[] w = table(maxWords);
+        int state = 0;
+        boolean firstWord = true;
+        for (int remaining = maxWords; ; --remaining) {
+            long r = nextLong(random, w[remaining * numStates + state]);
+            //Terminar aquí es una de las opciones si el estado es final
+            if (grammar.isAccepting(state)) {
+                if (r == 0)
+                    return true;
+                r--;
+            }
+            int next = -1;
+            for (int t = grammar.firstTransition(state), end = grammar.endTransition(state); t < end; ++t) {
+                long n = w[(remaining - 1) * numStates + grammar.transitionTarget(t)];
+                if (r < n) {
+                    if (!firstWord)
+                        out.append(' ');
+                    grammar.getSymbols().appendWord(grammar.transitionSymbol(t), out);
+                    firstWord = false;
+                    next = grammar.transitionTarget(t);
+                    break;
+                }
+                r -= n;
+            }
+            state = next;
+        }
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    ///                         PROGRAMACIÓN DINÁMICA                                 ///
+    /////////////////////////////////////////////////////////////////////////////////////
+
+    /*
+     * ways[l][q] = frases de como mucho l palabras que se aceptan empezando en q
+     *            = (q final ? 1 : 0) + suma de ways[l-1][destino] por cada transición de q
+     */
+    private long[] table(int maxWords) {
+        if (waysMaxWords >= maxWords)
+            return ways;
+
+        long[] w = new long[(maxWords + 1) * numStates];
+        for (int q = 0; q < numStates; ++q)
+            w[q] = grammar.isAccepting(q) ? 1 : 0;
+        for (int l = 1; l <= maxWords; ++l) {
+            int row = l * numStates;
+            int prev = row - numStates;
+            for (int q = 0; q < numStates; ++q) {
+                long n = grammar.isAccepting(q) ? 1 : 0;
+                for (int t = grammar.firstTransition(q), end = grammar.endTransition(q); t < end; ++t)
+                    n = add(n, w[prev + grammar.transitionTarget(t)]);
+                w[row + q] = n;
+            }
+        }
+        ways = w;
+        waysMaxWords = maxWords;
+        return w;
+    }
+
+    private static long add(long a, long b) {
+        return a > Long.MAX_VALUE - b ? Long.MAX_VALUE : a + b;
+    }
+
+    //Número aleatorio uniforme en [0, bound)
+    private static long nextLong(Random random, long bound) {
+        long bits, value;
+        do {
+            bits = random.nextLong() >>> 1;
+            value = bits % bound;
+        } while (bits - value + (bound - 1) < 0);
+        return value;
+    }
+
+    //Distancia en palabras desde cada estado al estado final más cercano (-1 si no hay ninguno)
+    private int[] shortestToAccept() {
+        int[] dist = new int[numStates];
+        Arrays.fill(dist, -1);
+        boolean changed = true;
+        for (int q = 0; q < numStates; ++q)
+            if (grammar.isAccepting(q))
+                dist[q] = 0;
+        //Bellman-Ford: el autómata es pequeño y se hace una sola vez
+        while (changed) {
+            changed = false;
+            for (int q = 0; q < numStates; ++q) {
+                for (int t = grammar.firstTransition(q), end = grammar.endTransition(q); t < end; ++t) {
+                    int d = dist[grammar.transitionTarget(t)];
+                    if (d >= 0 && (dist[q] < 0 || d + 1 < dist[q])) {
+                        dist[q] = d + 1;
+                        changed = true;
+                    }
+                }
+            }
+        }
+        return dist;
+    }
+
+    //Camino más largo desde el estado inicial, o -1 si hay un ciclo (orden topológico por DFS)
+    private int longestPath() {
+        int[] longestFrom = new int[numStates];
+        byte[] mark = new byte[numStates]; //0 sin visitar, 1 en la pila, 2 terminado
+        int[] stack = new int[numStates];
+        int[] cursor = new int[numStates];
+        int depth = 0;
+        stack[0] = 0;
+        cursor[0] = grammar.firstTransition(0);
+        mark[0] = 1;
+        while (depth >= 0) {
+            int q = stack[depth];
+            if (cursor[depth] < grammar.endTransition(q)) {
+                int next = grammar.transitionTarget(cursor[depth]++);
+                if (mark[next] == 1)
+                    return -1;
+                if (mark[next] == 0) {
+                    mark[next] = 1;
+                    stack[++depth] = next;
+                    cursor[depth] = grammar.firstTransition(next);
+                }
+            }
+            else {
+                int best = 0;
+                for (int t = grammar.firstTransition(q), end = grammar.endTransition(q); t < end; ++t)
+                    best = Math.max(best, longestFrom[grammar.transitionTarget(t)] + 1);
+                longestFrom[q] = best;
+                mark[q] = 2;
+                depth--;
+            }
+        }
+        return longestFrom[0];
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    ///                         RECORRIDO PEREZOSO                                    ///
+    /////////////////////////////////////////////////////////////////////////////////////
+
+    private final class PhraseIterator implements Iterator<String> {
+
+        private final int maxWords;
+        private final int[] states;
+        private final int[] cursor;
+        private final int[] symbols;
+        private int depth;
+        private boolean pendingEmit;
+        private String next;
+
+        PhraseIterator(int maxWords) {
+            this.maxWords = maxWords;
+            states = new int[maxWords + 1];
+            cursor = new int[maxWords + 1];
+            symbols = new int[maxWords + 1];
+            if (minToAccept[0] < 0 || minToAccept[0] > maxWords) {
+                depth = -1;
+            }
+            else {
+                depth = 0;
+                states[0] = 0;
+                cursor[0] = grammar.firstTransition(0);
+                pendingEmit = grammar.isAccepting(0);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null)
+                next = advance();
+            return next != null;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            String result = next;
+            next = null;
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private String advance() {
+            while (depth >= 0) {
+                if (pendingEmit) {
+                    pendingEmit = false;
+                    return phrase();
+                }
+                int q = states[depth];
+                int end = grammar.endTransition(q);
+                boolean pushed = false;
+                while (cursor[depth] < end) {
+                    int t = cursor[depth]++;
+                    int target = grammar.transitionTarget(t);
+                    //Poda: desde ahí no se llega a un final sin pasarse de maxWords
+                    if (depth + 1 + minToAccept[target] > maxWords)
+                        continue;
+                    symbols[depth + 1] = grammar.transitionSymbol(t);
+                    states[++depth] = target;
+                    cursor[depth] = grammar.firstTransition(target);
+                    pendingEmit = grammar.isAccepting(target);
+                    pushed = true;
+                    break;
+                }
+                if (!pushed)
+                    depth--;
+            }
+            return null;
+        }
+
+        private String phrase() {
+            StringBuilder sb = new StringBuilder();
+            for (int d = 1; d <= depth; ++d) {
+                if (d > 1)
+                    sb.append(' ');
+                grammar.getSymbols().appendWord(symbols[d], sb);
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.example.laura.dialogo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Diálogo de relleno de slots (p.ej. pedir cita con fechas.jsgf y horas.jsgf).
+ *
+ * En cada turno se buscan en la frase reconocida todos los fragmentos de todas las gramáticas, así
+ * que el usuario puede dar varios slots a la vez ("el dos de mayo a las cinco de la tarde") y solo
+ * se le pregunta por los que faltan. La confirmación es implícita: lo entendido se repite al principio
+ * de la siguiente pregunta ("Vale, el dos de mayo. ¿A qué hora?") y si el usuario lo corrige en su
+ * siguiente respuesta el valor nuevo sustituye al anterior. Con una buena primera respuesta la cita
+ * queda completa en uno o dos turnos.
+ *
+ * Es independiente de Android: VoiceActivity lo usa para encadenar preguntas y reconocimientos.
+ */
+public class SlotFillingDialogue {
+
+    private final String openingPrompt;
+    private final List<GrammarMatcher> matchers = new ArrayList<GrammarMatcher>();
+    private final Map<String, SlotSpec> specs = new LinkedHashMap<String, SlotSpec>();
+    private final Map<String, String> values = new LinkedHashMap<String, String>();
+    //Slots entendidos en el último turno (nuevos, corregidos o repetidos), para la confirmación implícita
+    private final List<String> lastSpotted = new ArrayList<String>();
+    private boolean lastTurnUnderstood = true;
+    private int turns;
+
+    private static final class SlotSpec {
+        final String name;
+        final boolean required;
+        final String question;
+        final String confirmation;
+
+        SlotSpec(String name, boolean required, String question, String confirmation) {
+            this.name = name;
+            this.required = required;
+            this.question = question;
+            this.confirmation = confirmation;
+        }
+    }
+
+    /**
+     * @param openingPrompt pregunta abierta con la que empieza el diálogo, p.ej. "¿Para cuándo quiere la cita?"
+     */
+    public SlotFillingDialogue(String openingPrompt) {
+        this.openingPrompt = openingPrompt;
+    }
+
+    public SlotFillingDialogue addGrammar(CompiledGrammar grammar) {
+        matchers.add(new GrammarMatcher(grammar));
+        return this;
+    }
+
+    /**
+     * Slot obligatorio
+     * @param question pregunta para pedirlo; los slots con la misma pregunta se piden juntos (dia y mes)
+     * @param confirmation cómo se repite al confirmar, con %s en el lugar del valor, p.ej. "el %s"
+     */
+    public SlotFillingDialogue require(String slot, String question, String confirmation) {
+        specs.put(slot, new SlotSpec(slot, true, question, confirmation));
+        return this;
+    }
+
+    /**
+     * Slot opcional: se guarda y se confirma si el usuario lo dice, pero nunca se pregunta
+     */
+    public SlotFillingDialogue optional(String slot, String confirmation) {
+        specs.put(slot, new SlotSpec(slot, false, null, confirmation));
+        return this;
+    }
+
+    public String getOpeningPrompt() {
+        return openingPrompt;
+    }
+
+    public void reset() {
+        values.clear();
+        lastSpotted.clear();
+        lastTurnUnderstood = true;
+        turns = 0;
+    }
+
+    /**
+     * Procesa los resultados del reconocedor: de todas las hipótesis se queda con la de más slots por
+     * su confianza, así que una hipótesis poco probable necesita rellenar claramente más slots para
+     * ganar a la primera (a igualdad, la de más confianza)
+     * @param nBestConfidences confianzas de las hipótesis; si es null (o no la hay) se usa una confianza decreciente con la posición
+     * @return true si se ha entendido algún slot, aunque repita un valor que ya se tenía
+     */
+    public boolean process(List<String> nBestList, float[] nBestConfidences) {
+        turns++;
+        lastSpotted.clear();
+        Map<String, String> best = null;
+        float bestScore = 0;
+        float bestConfidence = 0;
+        if (nBestList != null) {
+            for (int h = 0; h < nBestList.size(); ++h) {
+                float confidence = nBestConfidences != null && h < nBestConfidences.length && nBestConfidences[h] > 0
+                        ? nBestConfidences[h] : 1.0f / (h + 1);
+                Map<String, String> found = spot(nBestList.get(h));
+                float score = confidence * found.size();
+                if (score > bestScore || (score == bestScore && confidence > bestConfidence)) {
+                    best = found;
+                    bestScore = score;
+                    bestConfidence = confidence;
+                }
+            }
+        }
+
+        if (best != null) {
+            for (Map.Entry<String, String> e : best.entrySet()) {
+                lastSpotted.add(e.getKey());
+                values.put(e.getKey(), e.getValue());
+            }
+        }
+        lastTurnUnderstood = !lastSpotted.isEmpty();
+        return lastTurnUnderstood;
+    }
+
+    /*
+     * Todos los slots conocidos que aparecen en la frase. Se buscan los fragmentos de cada gramática y,
+     * como pueden solaparse (el "dos" de "el dos de mayo" también es una hora), se eligen sin solapes
+     * empezando por los más largos y, a igual longitud, por los que rellenan algún slot que falta.
+     */
+    private Map<String, String> spot(String utterance) {
+        List<Fragment> fragments = new ArrayList<Fragment>();
+        for (GrammarMatcher m : matchers) {
+            int from = 0;
+            int end;
+            while ((end = m.find(utterance, from)) >= 0) {
+                Fragment f = new Fragment(m.matchStart(), end);
+                CompiledGrammar g = m.getGrammar();
+                for (int s = 0; s < g.numSlots(); ++s) {
+                    String name = g.slotName(s);
+                    if (m.hasSlot(s) && specs.containsKey(name)) {
+                        f.values.put(name, m.slotValue(s));
+                        if (specs.get(name).required && !values.containsKey(name))
+                            f.fillsMissing = true;
+                    }
+                }
+                if (!f.values.isEmpty())
+                    fragments.add(f);
+                from = end;
+            }
+        }
+
+        Collections.sort(fragments, new Comparator<Fragment>() {
+            public int compare(Fragment a, Fragment b) {
+                if (a.end - a.start != b.end - b.start)
+                    return (b.end - b.start) - (a.end - a.start);
+                if (a.fillsMissing != b.fillsMissing)
+                    return a.fillsMissing ? -1 : 1;
+                return a.start - b.start;
+            }
+        });
+
+        Map<String, String> found = new LinkedHashMap<String, String>();
+        List<Fragment> chosen = new ArrayList<Fragment>();
+        for (Fragment f : fragments) {
+            boolean overlaps = false;
+            for (Fragment c : chosen)
+                overlaps |= f.start < c.end && c.start < f.end;
+            if (!overlaps) {
+                chosen.add(f);
+                found.putAll(f.values);
+            }
+        }
+        return found;
+    }
+
+    private static final class Fragment {
+        final int start;
+        final int end;
+        final Map<String, String> values = new LinkedHashMap<String, String>();
+        boolean fillsMissing;
+
+        Fragment(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    public boolean isComplete() {
+        for (SlotSpec spec : specs.values())
+            if (spec.required && !values.containsKey(spec.name))
+                return false;
+        return true;
+    }
+
+    public String getValue(String slot) {
+        return values.get(slot);
+    }
+
+    public Map<String, String> getValues() {
+        return new LinkedHashMap<String, String>(values);
+    }
+
+    public int getTurns() {
+        return turns;
+    }
+
+    /**
+     * Descarta un slot (p.ej. porque no es válido o está ocupado) para volver a preguntarlo
+     */
+    public void clear(String slot) {
+        values.remove(slot);
+        lastSpotted.remove(slot);
+    }
+
+    /**
+     * Lo siguiente que hay que decir: confirmación implícita de lo entendido en el último turno y
+     * pregunta por los slots que faltan, o la confirmación de todos los valores si ya está completo
+     */
+    public String nextPrompt() {
+        if (turns == 0)
+            return openingPrompt;
+        if (isComplete())
+            return "Vale, " + summary() + ".";
+
+        StringBuilder sb = new StringBuilder();
+        if (!lastTurnUnderstood)
+            sb.append("Perdone, no le he entendido. ");
+        //Si lo entendido se ha descartado con clear() ya no hay nada que confirmar
+        else if (!lastSpotted.isEmpty()) {
+            sb.append("Vale, ");
+            appendConfirmation(sb, lastSpotted);
+            sb.append(". ");
+        }
+
+        String lastQuestion = null;
+        for (SlotSpec spec : specs.values()) {
+            if (spec.required && !values.containsKey(spec.name) && !spec.question.equals(lastQuestion)) {
+                if (lastQuestion != null)
+                    sb.append(' ');
+                sb.append(spec.question);
+                lastQuestion = spec.question;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Confirmación completa de todos los slots, p.ej. para el mensaje final
+     */
+    public String summary() {
+        StringBuilder sb = new StringBuilder();
+        appendConfirmation(sb, new ArrayList<String>(values.keySet()));
+        return sb.toString();
+    }
+
+    //Valores en el orden en que se declararon los slots
+    private void appendConfirmation(StringBuilder sb, List<String> slots) {
+        boolean first = true;
+        for (SlotSpec spec : specs.values()) {
+            if (!slots.contains(spec.name))
+                continue;
+            if (!first)
+                sb.append(' ');
+            sb.append(String.format(spec.confirmation, values.get(spec.name)));
+            first = false;
+        }
+    }
+}
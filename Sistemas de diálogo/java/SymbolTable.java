@@ -0,0 +1,209 @@
+package com.example.laura.dialogo;
+
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Vocabulario de una gramática compilada. Cada palabra tiene un identificador entero consecutivo.
+ * La búsqueda se hace directamente sobre un fragmento del texto reconocido (sin crear Strings),
+ * pasando cada carácter a minúsculas y quitando tildes, para que "Mediodía" y "mediodia" coincidan.
+ * Las tablas pueden estar en memoria o proyectadas desde un fichero de {@link GrammarCache}.
+ */
+public final class SymbolTable {
+
+    //Caracteres de todas las palabras, una detrás de otra
+    private final CharBuffer chars;
+    //Inicio de cada palabra en chars (el fin es el inicio de la siguiente)
+    private final IntBuffer offsets;
+    //Tabla hash con direccionamiento abierto: identificador + 1, 0 si el hueco está libre
+    private final IntBuffer table;
+    private final int mask;
+
+    SymbolTable(String[] words) {
+        int total = 0;
+        for (String w : words)
+            total += w.length();
+
+        char[] c = new char[total];
+        int[] o = new int[words.length + 1];
+        int p = 0;
+        for (int i = 0; i < words.length; ++i) {
+            o[i] = p;
+            for (int k = 0; k < words[i].length(); ++k)
+                c[p++] = fold(words[i].charAt(k));
+        }
+        o[words.length] = p;
+
+        int capacity = 2;
+        while (capacity < words.length * 2)
+            capacity <<= 1;
+        int[] t = new int[capacity];
+        for (int i = 0; i < words.length; ++i) {
+            int h = hash(c, o[i], o[i + 1]) & (capacity - 1);
+            while (t[h] != 0)
+                h = (h + 1) & (capacity - 1);
+            t[h] = i + 1;
+        }
+
+        chars = CharBuffer.wrap(c);
+        offsets = IntBuffer.wrap(o);
+        table = IntBuffer.wrap(t);
+        mask = capacity - 1;
+    }
+
+    //Tablas ya construidas (p.ej. proyectadas desde un fichero). table.capacity() debe ser potencia de 2
+    SymbolTable(CharBuffer chars, IntBuffer offsets, IntBuffer table) {
+        this.chars = chars;
+        this.offsets = offsets;
+        this.table = table;
+        this.mask = table.capacity() - 1;
+    }
+
+    public int size() {
+        return offsets.capacity() - 1;
+    }
+
+    public String word(int id) {
+        int from = offsets.get(id);
+        int to = offsets.get(id + 1);
+        StringBuilder sb = new StringBuilder(to - from);
+        for (int i = from; i < to; ++i)
+            sb.append(chars.get(i));
+        return sb.toString();
+    }
+
+    //Añade la palabra a sb sin crear un String
+    public void appendWord(int id, StringBuilder sb) {
+        int to = offsets.get(id + 1);
+        for (int i = offsets.get(id); i < to; ++i)
+            sb.append(chars.get(i));
+    }
+
+    //Número de caracteres de la palabra
+    int length(int id) {
+        return offsets.get(id + 1) - offsets.get(id);
+    }
+
+    /**
+     * true si las palabras de text[start, end), juntas y sin separadores, se diferencian de la palabra id
+     * en como mucho un carácter añadido, quitado o cambiado (p.ej. "veinte dos" y "veintidos")
+     * @param length número de caracteres de palabra en text[start, end)
+     */
+    boolean nearJoined(int id, CharSequence text, int start, int end, int length) {
+        int from = offsets.get(id);
+        int to = offsets.get(id + 1);
+        int w = to - from;
+        if (Math.abs(w - length) > 1)
+            return false;
+        int min = Math.min(w, length);
+
+        //Prefijo común
+        int p = 0;
+        for (int i = start, k = from; i < end && p < min; ++i) {
+            char c = text.charAt(i);
+            if (!isWordChar(c))
+                continue;
+            if (fold(c) != chars.get(k++))
+                break;
+            p++;
+        }
+        //Sufijo común, sin solaparse con el prefijo
+        int s = 0;
+        for (int i = end - 1, k = to - 1; i >= start && p + s < min; --i) {
+            char c = text.charAt(i);
+            if (!isWordChar(c))
+                continue;
+            if (fold(c) != chars.get(k--))
+                break;
+            s++;
+        }
+        return p + s >= Math.max(w, length) - 1;
+    }
+
+    CharBuffer chars() {
+        return chars.duplicate();
+    }
+
+    IntBuffer offsets() {
+        return offsets.duplicate();
+    }
+
+    IntBuffer table() {
+        return table.duplicate();
+    }
+
+    /**
+     * Devuelve el identificador de la palabra text[start, end) o -1 si no está en el vocabulario.
+     */
+    public int lookup(CharSequence text, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; ++i)
+            h = 31 * h + fold(text.charAt(i));
+        h = mix(h) & mask;
+
+        int entry;
+        while ((entry = table.get(h)) != 0) {
+            int id = entry - 1;
+            if (equalsFolded(id, text, start, end))
+                return id;
+            h = (h + 1) & mask;
+        }
+        return -1;
+    }
+
+    public int lookup(CharSequence word) {
+        return lookup(word, 0, word.length());
+    }
+
+    private boolean equalsFolded(int id, CharSequence text, int start, int end) {
+        int from = offsets.get(id);
+        if (offsets.get(id + 1) - from != end - start)
+            return false;
+        for (int i = start; i < end; ++i)
+            if (chars.get(from++) != fold(text.charAt(i)))
+                return false;
+        return true;
+    }
+
+    private static int hash(char[] c, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; ++i)
+            h = 31 * h + c[i];
+        return mix(h);
+    }
+
+    private static int mix(int h) {
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        return h ^ (h >>> 13);
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    ///                         NORMALIZACIÓN DE PALABRAS                             ///
+    /////////////////////////////////////////////////////////////////////////////////////
+
+    //Minúsculas y sin tildes (la ñ se conserva)
+    public static char fold(char c) {
+        if (c < 128)
+            return (c >= 'A' && c <= 'Z') ? (char) (c + 32) : c;
+        switch (c) {
+            case 'á': case 'à': case 'ä': case 'Á': case 'À': case 'Ä':
+                return 'a';
+            case 'é': case 'è': case 'ë': case 'É': case 'È': case 'Ë':
+                return 'e';
+            case 'í': case 'ì': case 'ï': case 'Í': case 'Ì': case 'Ï':
+                return 'i';
+            case 'ó': case 'ò': case 'ö': case 'Ó': case 'Ò': case 'Ö':
+                return 'o';
+            case 'ú': case 'ù': case 'ü': case 'Ú': case 'Ù': case 'Ü':
+                return 'u';
+            default:
+                return Character.toLowerCase(c);
+        }
+    }
+
+    //Caracteres que forman parte de una palabra; el resto separa palabras
+    public static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c);
+    }
+}
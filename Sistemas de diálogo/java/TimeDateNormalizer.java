@@ -0,0 +1,341 @@
+package com.example.laura.dialogo;
+
+import java.time.LocalDate;
+
+/**
+ * Convierte los slots de horas.jsgf y fechas.jsgf (o grammar.xml, que además tiene el año) en valores:
+ * - hora ("cinco y cuarto", "una menos diez", "doce en punto") + periodo ("de la tarde", "del mediodía")
+ *   en minutos desde medianoche (0..1439), pasando de 12 a 24 horas con el periodo, y
+ * - dia + mes (+ anio) en una fecha, comprobando que el día existe en ese mes.
+ *
+ * Las palabras se buscan en tablas precalculadas (sin tildes ni mayúsculas) directamente sobre el
+ * texto, sin crear objetos, para poder normalizar millones de frases por segundo en evaluaciones
+ * por lotes. Las fechas se devuelven empaquetadas como aaaammdd; {@link #date} crea el LocalDate.
+ */
+public final class TimeDateNormalizer {
+
+    public static final int INVALID = -1;
+
+    //Tipos de palabra
+    private static final int NUMBER = 1, MINUTES = 2, MONTH = 3, PLUS = 4, MINUS = 5, PERIOD = 6, FILLER = 7;
+
+    //Periodos del día
+    private static final int MORNING = 1, AFTERNOON = 2, NIGHT = 3, NOON = 4;
+
+    private static final String[] WORDS = {
+            "un", "uno", "una", "primero", "dos", "tres", "cuatro", "cinco", "seis", "siete", "ocho", "nueve", "diez",
+            "once", "doce", "trece", "catorce", "quince", "dieciseis", "diecisiete", "dieciocho", "diecinueve",
+            "veinte", "veintiuno", "veintiuna", "veintidos", "veintitres", "veinticuatro", "veinticinco",
+            "veintiseis", "veintisiete", "veintiocho", "veintinueve", "treinta", "treintaiuno",
+            "cuarenta", "cincuenta", "sesenta", "setenta", "ochenta", "noventa", "mil",
+            "cuarto", "media",
+            "enero", "febrero", "marzo", "abril", "mayo", "junio", "julio", "agosto", "septiembre", "setiembre",
+            "octubre", "noviembre", "diciembre",
+            "y", "menos",
+            "mañana", "madrugada", "tarde", "noche", "mediodia",
+            "en", "punto", "de", "del", "la", "las", "el", "a", "dia"};
+
+    private static final int[] KIND = {
+            NUMBER, NUMBER, NUMBER, NUMBER, NUMBER, NUMBER, NUMBER, NUMBER, NUMBER, NUMBER, NUMBER, NUMBER, NUMBER,
+            NUMBER, NUMBER, NUMBER, NUMBER, NUMBER, NUMBER, NUMBER, NUMBER, NUMBER,
+            NUMBER, NUMBER, NUMBER, NUMBER, NUMBER, NUMBER, NUMBER,
+            NUMBER, NUMBER, NUMBER, NUMBER, NUMBER, NUMBER,
+            NUMBER, NUMBER, NUMBER, NUMBER, NUMBER, NUMBER, NUMBER,
+            MINUTES, MINUTES,
+            MONTH, MONTH, MONTH, MONTH, MONTH, MONTH, MONTH, MONTH, MONTH, MONTH,
+            MONTH, MONTH, MONTH,
+            PLUS, MINUS,
+            PERIOD, PERIOD, PERIOD, PERIOD, PERIOD,
+            FILLER, FILLER, FILLER, FILLER, FILLER, FILLER, FILLER, FILLER, FILLER};
+
+    private static final int[] VALUE = {
+            1, 1, 1, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10,
+            11, 12, 13, 14, 15, 16, 17, 18, 19,
+            20, 21, 21, 22, 23, 24, 25,
+            26, 27, 28, 29, 30, 31,
+            40, 50, 60, 70, 80, 90, 1000,
+            15, 30,
+            1, 2, 3, 4, 5, 6, 7, 8, 9, 9,
+            10, 11, 12,
+            0, 0,
+            MORNING, NIGHT, AFTERNOON, NIGHT, NOON,
+            0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+    private static final int[] DAYS_IN_MONTH = {0, 31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
+    private final SymbolTable words;
+
+    public TimeDateNormalizer() {
+        if (WORDS.length != KIND.length || WORDS.length != VALUE.length)
+            throw new IllegalStateException("Tablas de palabras inconsistentes");
+        words = new SymbolTable(WORDS);
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    ///                         HORAS                                                 ///
+    /////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Minutos desde medianoche a partir de los slots hora y periodo de horas.jsgf
+     * @return 0..1439, o INVALID si la hora no se puede interpretar
+     */
+    public int minuteOfDay(GrammarMatcher matcher) {
+        int hora = matcher.slotIndex("hora");
+        int periodo = matcher.slotIndex("periodo");
+        if (hora == CompiledGrammar.NO_SLOT || !matcher.hasSlot(hora))
+            return INVALID;
+        boolean hasPeriod = periodo != CompiledGrammar.NO_SLOT && matcher.hasSlot(periodo);
+        CharSequence text = matcher.input();
+        return minuteOfDay(text, matcher.slotStart(hora), matcher.slotEnd(hora),
+                hasPeriod ? text : null, hasPeriod ? matcher.slotStart(periodo) : 0, hasPeriod ? matcher.slotEnd(periodo) : 0);
+    }
+
+    /**
+     * @param hora p.ej. "cinco y cuarto"
+     * @param periodo p.ej. "de la tarde", o null
+     */
+    public int minuteOfDay(CharSequence hora, CharSequence periodo) {
+        return minuteOfDay(hora, 0, hora.length(), periodo, 0, periodo == null ? 0 : periodo.length());
+    }
+
+    /**
+     * Igual que {@link #minuteOfDay(CharSequence, CharSequence)} pero sobre fragmentos de un texto
+     */
+    public int minuteOfDay(CharSequence hora, int start, int end, CharSequence periodo, int periodStart, int periodEnd) {
+        int hour = -1;
+        int offset = 0;
+        int sign = 0;
+        int i = start;
+        while ((i = skipSeparators(hora, i, end)) < end) {
+            int j = wordEnd(hora, i, end);
+            int id = words.lookup(hora, i, j);
+            if (id < 0)
+                return INVALID;
+            int kind = KIND[id];
+            if (kind == NUMBER || kind == MINUTES) {
+                int v = VALUE[id];
+                if (hour < 0) {
+                    //La primera cifra es la hora: "una", ..., "doce"
+                    if (kind != NUMBER || v < 1 || v > 12)
+                        return INVALID;
+                    hour = v;
+                }
+                else {
+                    //Las siguientes son minutos y van siempre tras "y" o "menos"
+                    if (sign == 0 || v > 30)
+                        return INVALID;
+                    offset += sign * v;
+                    sign = 0;
+                }
+            }
+            else if (kind == PLUS)
+                sign = 1;
+            else if (kind == MINUS)
+                sign = -1;
+            else if (kind == PERIOD)
+                return INVALID;
+            else if (kind != FILLER)
+                return INVALID;
+            i = j;
+        }
+        if (hour < 0 || sign != 0 || offset <= -60 || offset >= 60)
+            return INVALID;
+
+        int period = 0;
+        if (periodo != null) {
+            period = period(periodo, periodStart, periodEnd);
+            if (period == INVALID)
+                return INVALID;
+        }
+        return (to24h(hour, period) * 60 + offset + 1440) % 1440;
+    }
+
+    private int period(CharSequence text, int start, int end) {
+        int period = 0;
+        int i = start;
+        while ((i = skipSeparators(text, i, end)) < end) {
+            int j = wordEnd(text, i, end);
+            int id = words.lookup(text, i, j);
+            if (id < 0 || (KIND[id] != PERIOD && KIND[id] != FILLER))
+                return INVALID;
+            if (KIND[id] == PERIOD)
+                period = VALUE[id];
+            i = j;
+        }
+        return period;
+    }
+
+    /*
+     * De 12 a 24 horas:
+     * - de la mañana: 1..11 igual, 12 es mediodía
+     * - del mediodía / de la tarde: 12 es mediodía, el resto +12 ("la una del mediodía" = 13:00)
+     * - de la noche: 12 es medianoche, 1..5 son de madrugada, el resto +12
+     * - sin periodo (horario de citas): 8..12 por la mañana y 1..7 por la tarde
+     */
+    private static int to24h(int hour, int period) {
+        switch (period) {
+            case MORNING:
+                return hour;
+            case NOON:
+            case AFTERNOON:
+                return hour == 12 ? 12 : hour + 12;
+            case NIGHT:
+                if (hour == 12)
+                    return 0;
+                return hour <= 5 ? hour : hour + 12;
+            default:
+                return hour >= 8 ? hour : hour + 12;
+        }
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    ///                         FECHAS                                                ///
+    /////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Fecha a partir de los slots dia y mes de fechas.jsgf, y anio si lo hay (grammar.xml)
+     * @param today fecha de referencia empaquetada (aaaammdd); si no se dice el año se toma la
+     *              primera fecha igual o posterior a ella
+     * @return fecha empaquetada aaaammdd, o INVALID
+     */
+    public int packedDate(GrammarMatcher matcher, int today) {
+        int dia = matcher.slotIndex("dia");
+        int mes = matcher.slotIndex("mes");
+        int anio = matcher.slotIndex("anio");
+        if (dia == CompiledGrammar.NO_SLOT || mes == CompiledGrammar.NO_SLOT || !matcher.hasSlot(dia) || !matcher.hasSlot(mes))
+            return INVALID;
+        CharSequence text = matcher.input();
+        int year = 0;
+        if (anio != CompiledGrammar.NO_SLOT && matcher.hasSlot(anio)) {
+            year = number(text, matcher.slotStart(anio), matcher.slotEnd(anio));
+            if (year == INVALID)
+                return INVALID;
+        }
+        return packedDate(number(text, matcher.slotStart(dia), matcher.slotEnd(dia)),
+                month(text, matcher.slotStart(mes), matcher.slotEnd(mes)), year, today);
+    }
+
+    /**
+     * @param dia p.ej. "veintidos" o "22"
+     * @param mes p.ej. "mayo"
+     * @param anio p.ej. "dos mil diecisiete", "2017" o null
+     * @param today fecha de referencia empaquetada (aaaammdd)
+     */
+    public int packedDate(CharSequence dia, CharSequence mes, CharSequence anio, int today) {
+        int year = 0;
+        if (anio != null) {
+            year = number(anio, 0, anio.length());
+            if (year == INVALID)
+                return INVALID;
+        }
+        return packedDate(number(dia, 0, dia.length()), month(mes, 0, mes.length()), year, today);
+    }
+
+    public LocalDate date(CharSequence dia, CharSequence mes, CharSequence anio, LocalDate today) {
+        return toLocalDate(packedDate(dia, mes, anio, pack(today.getYear(), today.getMonthValue(), today.getDayOfMonth())));
+    }
+
+    public LocalDate date(GrammarMatcher matcher, LocalDate today) {
+        return toLocalDate(packedDate(matcher, pack(today.getYear(), today.getMonthValue(), today.getDayOfMonth())));
+    }
+
+    public static int pack(int year, int month, int day) {
+        return year * 10000 + month * 100 + day;
+    }
+
+    public static LocalDate toLocalDate(int packed) {
+        return packed == INVALID ? null : LocalDate.of(packed / 10000, packed / 100 % 100, packed % 100);
+    }
+
+    private static int packedDate(int day, int month, int year, int today) {
+        if (day == INVALID || month == INVALID || day < 1 || day > DAYS_IN_MONTH[month])
+            return INVALID;
+        if (year == 0) {
+            year = today / 10000;
+            if (pack(year, month, day) < today)
+                year++;
+            //29 de febrero: el siguiente año bisiesto
+            while (month == 2 && day == 29 && !isLeap(year))
+                year++;
+        }
+        if (month == 2 && day == 29 && !isLeap(year))
+            return INVALID;
+        return pack(year, month, day);
+    }
+
+    private static boolean isLeap(int year) {
+        return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+    }
+
+    private int month(CharSequence text, int start, int end) {
+        int month = INVALID;
+        int i = start;
+        while ((i = skipSeparators(text, i, end)) < end) {
+            int j = wordEnd(text, i, end);
+            int id = words.lookup(text, i, j);
+            if (id < 0 || (KIND[id] != MONTH && KIND[id] != FILLER) || (KIND[id] == MONTH && month != INVALID))
+                return INVALID;
+            if (KIND[id] == MONTH)
+                month = VALUE[id];
+            i = j;
+        }
+        return month;
+    }
+
+    /*
+     * Número en cifras ("22", "2017") o en palabras ("treinta y uno", "dos mil diecisiete").
+     * Cada "mil" multiplica lo acumulado hasta entonces; el resto de palabras se suman.
+     */
+    private int number(CharSequence text, int start, int end) {
+        int total = 0;
+        int current = 0;
+        boolean any = false;
+        int i = start;
+        while ((i = skipSeparators(text, i, end)) < end) {
+            int j = wordEnd(text, i, end);
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (any)
+                    return INVALID;
+                int v = 0;
+                for (int k = i; k < j; ++k) {
+                    char d = text.charAt(k);
+                    if (d < '0' || d > '9' || v > 100000)
+                        return INVALID;
+                    v = 10 * v + (d - '0');
+                }
+                current = v;
+            }
+            else {
+                int id = words.lookup(text, i, j);
+                if (id < 0)
+                    return INVALID;
+                if (KIND[id] == NUMBER) {
+                    if (VALUE[id] == 1000) {
+                        total += (current == 0 ? 1 : current) * 1000;
+                        current = 0;
+                    }
+                    else
+                        current += VALUE[id];
+                }
+                else if (KIND[id] != PLUS && KIND[id] != FILLER)
+                    return INVALID;
+            }
+            any = true;
+            i = j;
+        }
+        return any ? total + current : INVALID;
+    }
+
+    private static int skipSeparators(CharSequence text, int i, int end) {
+        while (i < end && !SymbolTable.isWordChar(text.charAt(i)))
+            i++;
+        return i;
+    }
+
+    private static int wordEnd(CharSequence text, int i, int end) {
+        while (i < end && SymbolTable.isWordChar(text.charAt(i)))
+            i++;
+        return i;
+    }
+}